@@ -0,0 +1,103 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/**
+ * Generate synthetic archives for benchmarks.
+ *
+ * All layouts have about the same uncompressed size. So, results of
+ * layouts can be compared.
+ */
+final class BenchmarkCorpus {
+    static final int TOTAL_BYTES = 48 * 1024 * 1024;
+
+    // Many small entries like log files.
+    static final String SMALL = "small";
+    // A few huge entries like database dumps.
+    static final String HUGE = "huge";
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * @param format one of tar, tgz, tbz2, txz and zip.
+     * @param layout small or huge.
+     */
+    static byte[] create(String format, String layout) throws IOException {
+        int entries = SMALL.equals(layout) ? 12 * 1024 : 3;
+        int entryBytes = TOTAL_BYTES / entries;
+        Random random = new Random(entries);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(TOTAL_BYTES / 4);
+        try (ArchiveOutputStream aout = newArchiveOutputStream(format, newCompressorOutputStream(format, bout))) {
+            for (int i = 0; i < entries; i++) {
+                byte[] contents = newCsvContents(random, entryBytes);
+                String name = String.format("data/part-%05d.csv", i);
+                ArchiveEntry entry;
+                if ("zip".equals(format)) {
+                    entry = new ZipArchiveEntry(name);
+                } else {
+                    TarArchiveEntry tarEntry = new TarArchiveEntry(name);
+                    tarEntry.setSize(contents.length);
+                    entry = tarEntry;
+                }
+                aout.putArchiveEntry(entry);
+                aout.write(contents);
+                aout.closeArchiveEntry();
+            }
+            aout.finish();
+        }
+        return bout.toByteArray();
+    }
+
+    private static ArchiveOutputStream newArchiveOutputStream(String format, OutputStream out) {
+        if ("zip".equals(format)) {
+            return new ZipArchiveOutputStream(out);
+        }
+        TarArchiveOutputStream tout = new TarArchiveOutputStream(out);
+        tout.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        return tout;
+    }
+
+    private static OutputStream newCompressorOutputStream(String format, OutputStream out) throws IOException {
+        String compressor;
+        if ("tgz".equals(format)) {
+            compressor = CompressorStreamFactory.GZIP;
+        } else if ("tbz2".equals(format)) {
+            compressor = CompressorStreamFactory.BZIP2;
+        } else if ("txz".equals(format)) {
+            compressor = CompressorStreamFactory.XZ;
+        } else if ("tar".equals(format) || "zip".equals(format)) {
+            return out;
+        } else {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+        try {
+            return new CompressorStreamFactory().createCompressorOutputStream(compressor, out);
+        } catch (CompressorException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] newCsvContents(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append(random.nextInt(1000000)).append(",name").append(random.nextInt(10000))
+                    .append(',').append(random.nextInt(100000) / 100.0).append('\n');
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes();
+    }
+}
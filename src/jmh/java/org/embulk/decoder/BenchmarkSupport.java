@@ -0,0 +1,181 @@
+package org.embulk.decoder;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.embulk.decoder.CommonsCompressDecoderPlugin.PluginTask;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.FileInput;
+import org.embulk.util.config.Config;
+import org.embulk.util.config.ConfigDefault;
+
+/**
+ * Embulk objects for benchmarks without an Embulk runtime.
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Create a PluginTask which returns values in config or @ConfigDefault.
+     */
+    static PluginTask newTask(final Map<String, Object> config) {
+        return (PluginTask) Proxy.newProxyInstance(PluginTask.class.getClassLoader(),
+                new Class<?>[]{PluginTask.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Config name = method.getAnnotation(Config.class);
+                        if (name == null) {
+                            return null;
+                        } else if (config.containsKey(name.value())) {
+                            return config.get(name.value());
+                        }
+                        return parseDefault(method);
+                    }
+                });
+    }
+
+    private static Object parseDefault(Method method) {
+        String value = method.getAnnotation(ConfigDefault.class).value();
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.valueOf(value);
+        } else if (type == int.class) {
+            return Integer.valueOf(value);
+        } else if (type == long.class) {
+            return Long.valueOf(value);
+        } else if (type == String.class) {
+            return value.substring(1, value.length() - 1);
+        } else if (type == List.class && "[]".equals(value)) {
+            return Collections.emptyList();
+        }
+        throw new UnsupportedOperationException("Unsupported default of " + method.getName() + ": " + value);
+    }
+
+    static BufferAllocator newAllocator(final int bufferSize) {
+        return new BufferAllocator() {
+            @Override
+            public Buffer allocate() {
+                return allocate(bufferSize);
+            }
+
+            @Override
+            public Buffer allocate(int size) {
+                return new HeapBuffer(new byte[size]);
+            }
+        };
+    }
+
+    /**
+     * A FileInput which returns one file split into buffers like a file input
+     * plugin.
+     */
+    static class BytesFileInput implements FileInput {
+        private final byte[] data;
+        private final int bufferSize;
+        private boolean opened = false;
+        private int pos = 0;
+
+        BytesFileInput(byte[] data, int bufferSize) {
+            this.data = data;
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        public boolean nextFile() {
+            if (opened) {
+                return false;
+            }
+            opened = true;
+            return true;
+        }
+
+        @Override
+        public Buffer poll() {
+            if (pos >= data.length) {
+                return null;
+            }
+            int len = Math.min(bufferSize, data.length - pos);
+            HeapBuffer buffer = new HeapBuffer(new byte[len]);
+            buffer.setBytes(0, data, pos, len);
+            pos += len;
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class HeapBuffer extends Buffer {
+        private final byte[] bytes;
+        private int offset = 0;
+        private int limit;
+
+        HeapBuffer(byte[] bytes) {
+            this.bytes = bytes;
+            this.limit = bytes.length;
+        }
+
+        @Override
+        public byte[] array() {
+            return bytes;
+        }
+
+        @Override
+        public int offset() {
+            return offset;
+        }
+
+        @Override
+        public Buffer offset(int offset) {
+            this.offset = offset;
+            return this;
+        }
+
+        @Override
+        public int limit() {
+            return limit;
+        }
+
+        @Override
+        public Buffer limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        @Override
+        public int capacity() {
+            return bytes.length;
+        }
+
+        @Override
+        public void setBytes(int index, byte[] source, int sourceIndex, int length) {
+            System.arraycopy(source, sourceIndex, bytes, offset + index, length);
+        }
+
+        @Override
+        public void setBytes(int index, Buffer source, int sourceIndex, int length) {
+            source.getBytes(sourceIndex, bytes, offset + index, length);
+        }
+
+        @Override
+        public void getBytes(int index, byte[] dest, int destIndex, int length) {
+            System.arraycopy(bytes, offset + index, dest, destIndex, length);
+        }
+
+        @Override
+        public void getBytes(int index, Buffer dest, int destIndex, int length) {
+            dest.setBytes(destIndex, bytes, offset + index, length);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
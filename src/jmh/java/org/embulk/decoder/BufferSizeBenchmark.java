@@ -0,0 +1,108 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.decoder.BenchmarkSupport.BytesFileInput;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.util.file.FileInputInputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure decoded bytes/s against input_buffer_size and inflate_buffer_size.
+ * inputBufferSize 0 is the default behavior without a buffer for an
+ * explicit format. adaptive starts at inputBufferSize and grows the buffer.
+ *
+ * decodedBytes in the result is bytes/s. Divide it by 1048576 for MB/s.
+ *
+ * Run with ./gradlew jmh -PjmhIncludes=BufferSizeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BufferSizeBenchmark {
+    // Size of buffers passed to a parser.
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    @Param({"tgz", "tbz2"})
+    public String format;
+
+    // Size of buffers from a file input plugin.
+    @Param({"4096", "32768"})
+    public int upstreamBufferSize;
+
+    @Param({"0", "8192", "65536", "262144", "1048576"})
+    public int inputBufferSize;
+
+    @Param({"false", "true"})
+    public boolean adaptive;
+
+    private byte[] corpus;
+    private CommonsCompressDecoderPlugin.PluginTask task;
+    private BufferAllocator allocator;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long decodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            decodedBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = BenchmarkCorpus.create(format, BenchmarkCorpus.HUGE);
+        Map<String, Object> config = new HashMap<>();
+        config.put("format", format);
+        config.put("inflate_backend", "jdk");
+        config.put("inflate_buffer_size", inputBufferSize);
+        config.put("input_buffer_size", inputBufferSize);
+        config.put("adaptive_buffer_size", adaptive);
+        task = BenchmarkSupport.newTask(config);
+        allocator = BenchmarkSupport.newAllocator(BUFFER_SIZE);
+    }
+
+    @Benchmark
+    public long decode(Counters counters) throws IOException {
+        CommonsCompressFileInput input = new CommonsCompressFileInput(allocator,
+                new CommonsCompressProvider(task,
+                        new FileInputInputStream(new BytesFileInput(corpus, upstreamBufferSize))),
+                CommonsCompressDecoderPlugin.getMinFillSize(task));
+        long checksum = 0;
+        try {
+            while (input.nextFile()) {
+                Buffer buffer = input.poll();
+                while (buffer != null) {
+                    counters.decodedBytes += buffer.limit();
+                    checksum += buffer.array()[buffer.offset()];
+                    buffer.release();
+                    buffer = input.poll();
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,106 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.decoder.BenchmarkSupport.BytesFileInput;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.util.file.FileInputInputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the whole decoder path: CommonsCompressProvider.openNext() and
+ * CommonsCompressFileInput.poll() for each format and buffer size.
+ *
+ * Besides ops/s, the result has decodedBytes (bytes/s) and buffers
+ * (Buffers/s). The gc profiler configured in build.gradle adds the
+ * allocation rate (gc.alloc.rate.norm is bytes per operation).
+ *
+ * Run with ./gradlew jmh
+ * The result is written to build/reports/jmh/results.json
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DecoderBenchmark {
+    // Size of buffers from a file input plugin.
+    private static final int INPUT_BUFFER_SIZE = 32 * 1024;
+
+    @Param({"tar", "tgz", "tbz2", "txz", "zip"})
+    public String format;
+
+    @Param({BenchmarkCorpus.SMALL, BenchmarkCorpus.HUGE})
+    public String layout;
+
+    // Size of buffers passed to a parser.
+    @Param({"32768", "131072"})
+    public int bufferSize;
+
+    private byte[] corpus;
+    private CommonsCompressDecoderPlugin.PluginTask task;
+    private BufferAllocator allocator;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long decodedBytes;
+        public long buffers;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            decodedBytes = 0;
+            buffers = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = BenchmarkCorpus.create(format, layout);
+        Map<String, Object> config = new HashMap<>();
+        config.put("format", format);
+        task = BenchmarkSupport.newTask(config);
+        allocator = BenchmarkSupport.newAllocator(bufferSize);
+    }
+
+    @Benchmark
+    public long decode(Counters counters) throws IOException {
+        CommonsCompressFileInput input = new CommonsCompressFileInput(allocator,
+                new CommonsCompressProvider(task,
+                        new FileInputInputStream(new BytesFileInput(corpus, INPUT_BUFFER_SIZE))),
+                CommonsCompressDecoderPlugin.getMinFillSize(task));
+        long checksum = 0;
+        try {
+            while (input.nextFile()) {
+                Buffer buffer = input.poll();
+                while (buffer != null) {
+                    counters.decodedBytes += buffer.limit();
+                    counters.buffers++;
+                    checksum += buffer.array()[buffer.offset()];
+                    buffer.release();
+                    buffer = input.poll();
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return checksum;
+    }
+}
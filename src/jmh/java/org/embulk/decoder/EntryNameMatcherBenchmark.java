@@ -0,0 +1,72 @@
+package org.embulk.decoder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare EntryNameMatcher with String.matches which was used for
+ * match_name before.
+ *
+ * Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntryNameMatcherBenchmark {
+    private static final int NAMES = 100000;
+    private static final String[] EXTENSIONS = {".csv", ".json", ".txt", ".csv.gz"};
+
+    @Param({".*\\.csv", "logs/2024/.*", "logs/2024/01/part-00001\\.csv", "logs/20[0-9]+/.*\\.csv"})
+    public String regex;
+
+    private String[] names;
+    private EntryNameMatcher matcher;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(NAMES);
+        names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            names[i] = String.format("logs/%d/%02d/part-%05d%s", 2020 + random.nextInt(5),
+                    1 + random.nextInt(12), i, EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+        }
+        matcher = EntryNameMatcher.of(regex);
+    }
+
+    @Benchmark
+    public int stringMatches() {
+        int count = 0;
+        for (String name : names) {
+            if (name.matches(regex)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int entryNameMatcher() {
+        int count = 0;
+        for (String name : names) {
+            if (matcher.matches(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
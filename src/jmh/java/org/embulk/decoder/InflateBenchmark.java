@@ -0,0 +1,95 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare inflate_backend: commons_compress and jdk.
+ *
+ * The input is read in 8KB chunks like FileInputInputStream which returns
+ * data of Embulk buffers.
+ *
+ * Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InflateBenchmark {
+    private static final int CONTENTS_BYTES = 32 * 1024 * 1024;
+
+    @Param({"8192", "65536"})
+    public int readSize;
+
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(CONTENTS_BYTES);
+        StringBuilder sb = new StringBuilder(CONTENTS_BYTES + 64);
+        while (sb.length() < CONTENTS_BYTES) {
+            sb.append(random.nextInt(1000000)).append(",name").append(random.nextInt(10000))
+                    .append(',').append(random.nextDouble()).append('\n');
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (GzipCompressorOutputStream out = new GzipCompressorOutputStream(bout)) {
+            out.write(sb.toString().getBytes());
+        }
+        compressed = bout.toByteArray();
+    }
+
+    @Benchmark
+    public long commonsCompress() throws IOException {
+        return drain(new GzipCompressorInputStream(newInput(), true));
+    }
+
+    @Benchmark
+    public long jdk() throws IOException {
+        return drain(InflaterCompressorInputStream.gzip(newInput(), true,
+                InflaterCompressorInputStream.DEFAULT_BUFFER_SIZE));
+    }
+
+    private InputStream newInput() {
+        return new ByteArrayInputStream(compressed) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 8192));
+            }
+        };
+    }
+
+    private long drain(InputStream in) throws IOException {
+        byte[] buff = new byte[readSize];
+        long total = 0;
+        try {
+            int len = in.read(buff);
+            while (len != -1) {
+                total += len;
+                len = in.read(buff);
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
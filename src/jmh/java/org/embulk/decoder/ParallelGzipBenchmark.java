@@ -0,0 +1,142 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare gzip_parallel with gzip and decompress_concatenated=true.
+ *
+ * Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelGzipBenchmark {
+    private static final int CONTENTS_BYTES = 64 * 1024 * 1024;
+    private static final int BGZF_MEMBER_BYTES = 64 * 1024 - 1024;
+    private static final int PIGZ_MEMBER_BYTES = 128 * 1024;
+
+    /**
+     * bgzf writes BGZF members. members writes members without the extra
+     * field like pigz --independent or concatenated gzip files.
+     */
+    @Param({"bgzf", "members"})
+    public String layout;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private byte[] compressed;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean bgzf = "bgzf".equals(layout);
+        compressed = compress(newContents(CONTENTS_BYTES), bgzf ? BGZF_MEMBER_BYTES : PIGZ_MEMBER_BYTES, bgzf);
+        executor = DecoderExecutors.newWorkerPool("benchmark", threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long sequential() throws IOException {
+        return drain(new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true));
+    }
+
+    @Benchmark
+    public long parallel() throws IOException {
+        return drain(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), executor, threads * 2));
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buff = new byte[32 * 1024];
+        long total = 0;
+        try {
+            int len = in.read(buff);
+            while (len != -1) {
+                total += len;
+                len = in.read(buff);
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    private static byte[] newContents(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append(random.nextInt(1000000)).append(",name").append(random.nextInt(10000))
+                    .append(',').append(random.nextDouble()).append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] compress(byte[] contents, int memberSize, boolean bgzf) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length / 2);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        byte[] buff = new byte[64 * 1024];
+        for (int off = 0; off < contents.length; off += memberSize) {
+            int len = Math.min(memberSize, contents.length - off);
+            deflater.reset();
+            deflater.setInput(contents, off, len);
+            deflater.finish();
+            deflated.reset();
+            while (!deflater.finished()) {
+                deflated.write(buff, 0, deflater.deflate(buff));
+            }
+
+            if (bgzf) {
+                int blockSize = 18 + deflated.size() + 8;
+                out.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                        (byte) ((blockSize - 1) & 0xff), (byte) ((blockSize - 1) >>> 8)}, 0, 18);
+            } else {
+                out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3}, 0, 10);
+            }
+            byte[] bytes = deflated.toByteArray();
+            out.write(bytes, 0, bytes.length);
+            CRC32 crc = new CRC32();
+            crc.update(contents, off, len);
+            writeInt(out, crc.getValue());
+            writeInt(out, len);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.decoder.BenchmarkSupport.BytesFileInput;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+import org.embulk.util.file.FileInputInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare plain tar decoding with and without zero_copy.
+ *
+ * Run with ./gradlew jmh -PjmhIncludes=TarPassThroughBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarPassThroughBenchmark {
+    @Param({BenchmarkCorpus.SMALL, BenchmarkCorpus.HUGE})
+    public String layout;
+
+    // Size of buffers from a file input plugin.
+    @Param({"32768", "131072"})
+    public int inputBufferSize;
+
+    private byte[] corpus;
+    private CommonsCompressDecoderPlugin.PluginTask task;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = BenchmarkCorpus.create("tar", layout);
+        Map<String, Object> config = new HashMap<>();
+        config.put("format", "tar");
+        task = BenchmarkSupport.newTask(config);
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        return drain(new CommonsCompressFileInput(BenchmarkSupport.newAllocator(inputBufferSize),
+                new CommonsCompressProvider(task,
+                        new FileInputInputStream(new BytesFileInput(corpus, inputBufferSize)))));
+    }
+
+    @Benchmark
+    public long passThrough() {
+        return drain(new TarPassThroughFileInput(new BytesFileInput(corpus, inputBufferSize),
+                EntryNameMatcher.of(""), new EntryStats(), new DecoderMetrics()));
+    }
+
+    private long drain(FileInput input) {
+        long bytes = 0;
+        try {
+            while (input.nextFile()) {
+                Buffer buffer = input.poll();
+                while (buffer != null) {
+                    bytes += buffer.limit();
+                    buffer.release();
+                    buffer = input.poll();
+                }
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,125 @@
+package org.embulk.decoder;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A BufferedInputStream which grows its buffer while larger reads improve
+ * the throughput of the underlying stream.
+ *
+ * Reads of the underlying stream are timed. After SAMPLE_READS reads at a
+ * size, the buffer is doubled if the throughput is MIN_IMPROVEMENT times
+ * or more of the previous size, up to the maximum size. Otherwise, the size
+ * is fixed. The buffer is replaced only when it is empty and not marked.
+ * So, mark and reset work the same as BufferedInputStream.
+ */
+class AdaptiveBufferedInputStream extends BufferedInputStream {
+    static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+    static final int SAMPLE_READS = 8;
+    static final double MIN_IMPROVEMENT = 1.1;
+
+    private final TimedInputStream timed;
+    private final int maxSize;
+    private double lastThroughput = 0;
+    private boolean settled = false;
+    private boolean growing = false;
+
+    /**
+     * @param initialSize the first size of the buffer.
+     * @param maxSize the maximum size of the buffer.
+     */
+    AdaptiveBufferedInputStream(InputStream in, int initialSize, int maxSize) {
+        this(new TimedInputStream(in), initialSize, maxSize);
+    }
+
+    private AdaptiveBufferedInputStream(TimedInputStream timed, int initialSize, int maxSize) {
+        super(timed, initialSize);
+        this.timed = timed;
+        timed.owner = this;
+        this.maxSize = Math.max(initialSize, maxSize);
+    }
+
+    int getBufferSize() {
+        return buf.length;
+    }
+
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        adapt();
+        return super.read();
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        adapt();
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        adapt();
+        return super.skip(n);
+    }
+
+    private void adapt() {
+        if (settled) {
+            return;
+        }
+        if (!growing && timed.reads >= SAMPLE_READS) {
+            double throughput = (double) timed.bytes / Math.max(1, timed.nanos);
+            if (throughput >= lastThroughput * MIN_IMPROVEMENT && buf.length < maxSize) {
+                growing = true;
+            } else {
+                settled = true;
+            }
+            lastThroughput = throughput;
+            timed.clearSamples();
+        }
+        if (growing && pos >= count && markpos < 0) {
+            buf = new byte[(int) Math.min((long) buf.length * 2, maxSize)];
+            pos = 0;
+            count = 0;
+            growing = false;
+            // Reads until the new buffer is used are not counted.
+            timed.clearSamples();
+        }
+    }
+
+    /**
+     * Measure reads of the underlying stream. Skips are not measured.
+     */
+    private static class TimedInputStream extends FilterInputStream {
+        private AdaptiveBufferedInputStream owner;
+        private int reads = 0;
+        private long bytes = 0;
+        private long nanos = 0;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = owner.nanoTime();
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                nanos += owner.nanoTime() - start;
+                bytes += n;
+                reads++;
+            }
+            return n;
+        }
+
+        void clearSamples() {
+            reads = 0;
+            bytes = 0;
+            nanos = 0;
+        }
+    }
+}
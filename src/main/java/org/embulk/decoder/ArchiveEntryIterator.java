@@ -0,0 +1,22 @@
+package org.embulk.decoder;
+
+import java.io.InputStream;
+import java.util.Iterator;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+/**
+ * Iterate streams of files in an archive.
+ *
+ * Each stream is a separate file. On the other hand, an iterator of
+ * a compressor format returns the same file decompressed.
+ */
+interface ArchiveEntryIterator extends Iterator<InputStream> {
+    EntryStats getStats();
+
+    /**
+     * @return the entry of the stream returned by the last next(). null
+     * before next() is called.
+     */
+    ArchiveEntry getCurrentEntry();
+}
@@ -0,0 +1,240 @@
+package org.embulk.decoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/**
+ * An index of entries in a tar file or a tar.gz file. It is saved in
+ * index_dir and used by the next runs to skip to matched entries.
+ *
+ * An entry has its name, its size and the offset of its first header in
+ * the uncompressed tar stream. A restart point is the start of a gzip member.
+ * Inflater can start at a member without the previous data. So, bgzip and
+ * other multi-member gzip files are skipped without decompression. A
+ * single-member gzip file has only one restart point, and its data before
+ * matched entries is decompressed and discarded.
+ *
+ * An index file is named by the digest of formats and the first
+ * KEY_PREFIX_SIZE bytes of a file. Different files can have the same
+ * prefix, like logs appended after the first run. So, the index also has
+ * the length of the file, and readers check it at the end of the file
+ * before they trust that no entry is after the last matched one. Files with
+ * the same prefix and the same length are not distinguished.
+ */
+final class ArchiveIndex {
+    static final int KEY_PREFIX_SIZE = 64 * 1024;
+    static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x45444958;  // "EDIX"
+    private static final int VERSION = 2;
+
+    private final String key;
+    private long length = -1;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<RestartPoint> restartPoints = new ArrayList<>();
+
+    ArchiveIndex(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return true if files of formats can be indexed. formats is the result
+     * of CommonsCompressUtil.toFormats().
+     */
+    static boolean isSupported(String[] formats) {
+        if (formats == null || formats.length == 0 || formats.length > 2
+                || !ArchiveStreamFactory.TAR.equalsIgnoreCase(formats[formats.length - 1])) {
+            return false;
+        }
+        return formats.length == 1 || CompressorStreamFactory.GZIP.equalsIgnoreCase(formats[0]);
+    }
+
+    static boolean isCompressed(String[] formats) {
+        return formats.length > 1;
+    }
+
+    static String createKey(String[] formats, byte[] prefix, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String format : formats) {
+                digest.update(format.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            digest.update(prefix, 0, length);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Path getPath(Path indexDir, String key) {
+        return indexDir.resolve(key + SUFFIX);
+    }
+
+    /**
+     * @return null if there is no index file for key.
+     * @throws IOException if the index file is broken or for another key.
+     */
+    static ArchiveIndex read(Path file, String key) throws IOException {
+        InputStream in;
+        try {
+            in = Files.newInputStream(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new IOException("Unsupported index file: " + file);
+            } else if (!key.equals(data.readUTF())) {
+                throw new IOException("Index file is for another archive: " + file);
+            }
+            ArchiveIndex index = new ArchiveIndex(key);
+            index.setLength(data.readLong());
+            int restartPoints = data.readInt();
+            for (int i = 0; i < restartPoints; i++) {
+                index.addRestartPoint(data.readLong(), data.readLong());
+            }
+            int entries = data.readInt();
+            for (int i = 0; i < entries; i++) {
+                index.addEntry(data.readUTF(), data.readLong(), data.readLong());
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Write this index to a temporary file and rename it. So, other tasks
+     * never read a partially written file.
+     */
+    void write(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), "." + key, SUFFIX);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp);
+                    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                data.writeUTF(key);
+                data.writeLong(length);
+                data.writeInt(restartPoints.size());
+                for (RestartPoint point : restartPoints) {
+                    data.writeLong(point.compressedOffset);
+                    data.writeLong(point.uncompressedOffset);
+                }
+                data.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    data.writeUTF(entry.name);
+                    data.writeLong(entry.headerOffset);
+                    data.writeLong(entry.size);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the length of the file in bytes. It is compressed bytes for
+     * tar.gz. -1 if it is unknown.
+     */
+    long getLength() {
+        return length;
+    }
+
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    void addEntry(String name, long headerOffset, long size) {
+        entries.add(new Entry(name, headerOffset, size));
+    }
+
+    /**
+     * Restart points must be added in order.
+     */
+    void addRestartPoint(long compressedOffset, long uncompressedOffset) {
+        restartPoints.add(new RestartPoint(compressedOffset, uncompressedOffset));
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    List<RestartPoint> getRestartPoints() {
+        return Collections.unmodifiableList(restartPoints);
+    }
+
+    /**
+     * @return the last restart point before or at uncompressedOffset. null
+     * if there is no such point.
+     */
+    RestartPoint findRestartPoint(long uncompressedOffset) {
+        int low = 0;
+        int high = restartPoints.size() - 1;
+        RestartPoint found = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            RestartPoint point = restartPoints.get(mid);
+            if (point.uncompressedOffset <= uncompressedOffset) {
+                found = point;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    static final class Entry {
+        final String name;
+        final long headerOffset;
+        final long size;
+
+        Entry(String name, long headerOffset, long size) {
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.size = size;
+        }
+    }
+
+    static final class RestartPoint {
+        final long compressedOffset;
+        final long uncompressedOffset;
+
+        RestartPoint(long compressedOffset, long uncompressedOffset) {
+            this.compressedOffset = compressedOffset;
+            this.uncompressedOffset = uncompressedOffset;
+        }
+    }
+}
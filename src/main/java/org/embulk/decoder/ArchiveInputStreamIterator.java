@@ -1,26 +1,70 @@
 package org.embulk.decoder;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 
-class ArchiveInputStreamIterator implements Iterator<InputStream> {
-    private ArchiveInputStream ain;
+class ArchiveInputStreamIterator implements ArchiveEntryIterator, Closeable {
+    private ArchiveInputStream<? extends ArchiveEntry> ain;
     private ArchiveEntry entry;
-    private String matchRegex = "";
+    private ArchiveEntry currentEntry;
+    private final EntryNameMatcher matcher;
+    private final EntrySlice slice;
+    private final EntryStats stats;
+    private final Closeable resource;
+    private long entryStartBytes = -1;
     private boolean endOfArchive = false;
 
-    ArchiveInputStreamIterator(ArchiveInputStream ain)
+    ArchiveInputStreamIterator(ArchiveInputStream<? extends ArchiveEntry> ain)
     {
-        this.ain = ain;
+        this(ain, EntryNameMatcher.of(""));
+    }
+
+    ArchiveInputStreamIterator(ArchiveInputStream<? extends ArchiveEntry> ain, String matchRegex) {
+        this(ain, EntryNameMatcher.of(matchRegex));
     }
 
-    ArchiveInputStreamIterator(ArchiveInputStream ain, String matchRegex) {
+    ArchiveInputStreamIterator(ArchiveInputStream<? extends ArchiveEntry> ain, EntryNameMatcher matcher) {
+        this(ain, matcher, new EntryStats());
+    }
+
+    ArchiveInputStreamIterator(ArchiveInputStream<? extends ArchiveEntry> ain, EntryNameMatcher matcher, EntryStats stats) {
+        this(ain, matcher, stats, null);
+    }
+
+    /**
+     * @param resource closed by close(). ain is not closed because it may
+     * read the input of the plugin.
+     */
+    ArchiveInputStreamIterator(ArchiveInputStream<? extends ArchiveEntry> ain, EntryNameMatcher matcher, EntryStats stats,
+            Closeable resource) {
+        this(ain, matcher, EntrySlice.ALL, stats, resource);
+    }
+
+    /**
+     * @param slice selects matched entries. EntrySlice.ALL if entries are
+     * not returned as they are like when they may be nested archives.
+     */
+    ArchiveInputStreamIterator(ArchiveInputStream<? extends ArchiveEntry> ain, EntryNameMatcher matcher, EntrySlice slice,
+            EntryStats stats, Closeable resource) {
         this.ain = ain;
-        this.matchRegex = matchRegex;
+        this.matcher = matcher;
+        this.slice = slice;
+        this.stats = stats;
+        this.resource = resource;
+    }
+
+    @Override
+    public EntryStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public ArchiveEntry getCurrentEntry() {
+        return currentEntry;
     }
 
     @Override
@@ -36,6 +80,7 @@ class ArchiveInputStreamIterator implements Iterator<InputStream> {
     public InputStream next() {
         try {
             if (checkNext()) {
+                currentEntry = entry;
                 entry = null;
             } else {
                 return null;
@@ -52,6 +97,14 @@ class ArchiveInputStreamIterator implements Iterator<InputStream> {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void close() throws IOException {
+        endOfArchive = true;
+        if (resource != null) {
+            resource.close();
+        }
+    }
+
     private boolean checkNext() throws IOException {
         if (endOfArchive) {
             return false;
@@ -59,29 +112,32 @@ class ArchiveInputStreamIterator implements Iterator<InputStream> {
             return true;
         }
 
+        countDecodedBytes();
         while (true) {
+            // getNextEntry() skips the rest of the previous entry by skip()
+            // of the underlying stream. e.g. TarArchiveInputStream skips
+            // FileInputInputStream buffers without copying them.
             entry = ain.getNextEntry();
             if (entry == null) {
                 endOfArchive = true;
                 return false;
             } else if (entry.isDirectory()) {
                 continue;
-            } else if (!matchName(entry, matchRegex)){
+            } else if (!matcher.matches(entry) || !slice.next()) {
+                stats.entrySkipped(entry.getSize());
                 continue;
             } else {
+                stats.entryMatched();
+                entryStartBytes = ain.getBytesRead();
                 return true;
             }
         }
     }
 
-    private boolean matchName(ArchiveEntry entry, String regex) {
-        String name = entry.getName();
-        if(regex == null || regex.equals("")){
-            return true;
-        } else if(name == null) {
-            return false;
-        } else {
-            return name.matches(regex);
+    private void countDecodedBytes() {
+        if (entryStartBytes >= 0) {
+            stats.addDecodedBytes(ain.getBytesRead() - entryStartBytes);
+            entryStartBytes = -1;
         }
     }
 }
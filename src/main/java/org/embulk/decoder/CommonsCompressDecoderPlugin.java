@@ -1,5 +1,8 @@
 package org.embulk.decoder;
 
+import java.util.List;
+
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
 import org.embulk.util.config.ConfigMapper;
@@ -31,6 +34,118 @@ public class CommonsCompressDecoderPlugin
         @Config("match_name")
         @ConfigDefault("\"\"")
         public String getMatchName();
+
+        @Config("include_names")
+        @ConfigDefault("[]")
+        public List<String> getIncludeNames();
+
+        @Config("exclude_names")
+        @ConfigDefault("[]")
+        public List<String> getExcludeNames();
+
+        @Config("max_nesting_depth")
+        @ConfigDefault("0")
+        public int getMaxNestingDepth();
+
+        @Config("inflate_backend")
+        @ConfigDefault("\"commons_compress\"")
+        public String getInflateBackend();
+
+        @Config("inflate_buffer_size")
+        @ConfigDefault("0")
+        public int getInflateBufferSize();
+
+        @Config("input_buffer_size")
+        @ConfigDefault("0")
+        public int getInputBufferSize();
+
+        @Config("adaptive_buffer_size")
+        @ConfigDefault("false")
+        public boolean getAdaptiveBufferSize();
+
+        @Config("max_input_buffer_size")
+        @ConfigDefault("1048576")
+        public int getMaxInputBufferSize();
+
+        @Config("read_ahead")
+        @ConfigDefault("false")
+        public boolean getReadAhead();
+
+        @Config("read_ahead_buffers")
+        @ConfigDefault("16")
+        public int getReadAheadBuffers();
+
+        @Config("fill_buffer")
+        @ConfigDefault("false")
+        public boolean getFillBuffer();
+
+        @Config("min_fill_size")
+        @ConfigDefault("0")
+        public int getMinFillSize();
+
+        @Config("decode_threads")
+        @ConfigDefault("0")
+        public int getDecodeThreads();
+
+        @Config("virtual_threads")
+        @ConfigDefault("true")
+        public boolean getVirtualThreads();
+
+        @Config("random_access")
+        @ConfigDefault("false")
+        public boolean getRandomAccess();
+
+        @Config("temp_dir")
+        @ConfigDefault("\"\"")
+        public String getTempDir();
+
+        @Config("spill_memory_size")
+        @ConfigDefault("0")
+        public int getSpillMemorySize();
+
+        @Config("spill_max_size")
+        @ConfigDefault("0")
+        public long getSpillMaxSize();
+
+        @Config("parallel_entries")
+        @ConfigDefault("0")
+        public int getParallelEntries();
+
+        @Config("max_in_flight_bytes")
+        @ConfigDefault("67108864")
+        public long getMaxInFlightBytes();
+
+        @Config("verify_checksums")
+        @ConfigDefault("false")
+        public boolean getVerifyChecksums();
+
+        @Config("entry_digest")
+        @ConfigDefault("\"\"")
+        public String getEntryDigest();
+
+        @Config("index_dir")
+        @ConfigDefault("\"\"")
+        public String getIndexDir();
+
+        @Config("slice_count")
+        @ConfigDefault("1")
+        public int getSliceCount();
+
+        @Config("slice_index")
+        @ConfigDefault("0")
+        public int getSliceIndex();
+
+        @Config("zero_copy")
+        @ConfigDefault("false")
+        public boolean getZeroCopy();
+
+        @Config("metrics_log_interval")
+        @ConfigDefault("0")
+        public int getMetricsLogInterval();
+
+        @Config("metrics_jmx")
+        @ConfigDefault("false")
+        public boolean getMetricsJmx();
     }
 
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
@@ -45,18 +160,60 @@ public class CommonsCompressDecoderPlugin
     public FileInput open(TaskSource taskSource, FileInput input)
     {
         final PluginTask task = getTask(taskSource);
-        return new CommonsCompressFileInput(
-                getBufferAllocator(),
-                new CommonsCompressProvider(task, new FileInputInputStream(input) {
-                    // NOTE: This is workaround code to avoid hanging issue.
-                    // This issue will be fixed after merging #112.
-                    // https://github.com/embulk/embulk/pull/112
-                    @Override
-                    public long skip(long len) {
-                        long skipped = super.skip(len);
-                        return skipped > 0 ? skipped : 0;
-                    }
-                }));
+        final DecoderMetrics metrics = new DecoderMetrics();
+        final FileInput decoded;
+        if (isPassThrough(task)) {
+            final EntryStats entryStats = new EntryStats();
+            metrics.setEntryStats(entryStats);
+            decoded = new TarPassThroughFileInput(
+                    new MeteredFileInput(input, metrics),
+                    EntryNameMatcher.of(task.getMatchName(), task.getIncludeNames(), task.getExcludeNames()),
+                    EntrySlice.of(task.getSliceCount(), task.getSliceIndex()),
+                    entryStats,
+                    metrics.startReporting(task.getMetricsLogInterval(), task.getMetricsJmx()));
+        } else {
+            final CommonsCompressProvider provider =
+                    new CommonsCompressProvider(task, new FileInputInputStream(new MeteredFileInput(input, metrics)) {
+                        // NOTE: This is workaround code to avoid hanging issue.
+                        // This issue will be fixed after merging #112.
+                        // https://github.com/embulk/embulk/pull/112
+                        @Override
+                        public long skip(long len) {
+                            long skipped = super.skip(len);
+                            return skipped > 0 ? skipped : 0;
+                        }
+                    });
+            metrics.setEntryStats(provider.getEntryStats());
+            decoded = new CommonsCompressFileInput(
+                    getBufferAllocator(),
+                    provider,
+                    getMinFillSize(task),
+                    metrics.startReporting(task.getMetricsLogInterval(), task.getMetricsJmx()));
+        }
+        if (task.getReadAhead()) {
+            return new ReadAheadFileInput(decoded, task.getReadAheadBuffers(), task.getVirtualThreads());
+        }
+        return decoded;
+    }
+
+    /**
+     * zero_copy is used only for plain tar files. Other formats and nested
+     * archives need decoding anyway.
+     */
+    static boolean isPassThrough(PluginTask task) {
+        if (!task.getZeroCopy() || task.getMaxNestingDepth() > 0) {
+            return false;
+        }
+        String[] formats = CommonsCompressUtil.toFormats(task.getFormat());
+        return formats != null && formats.length == 1
+                && ArchiveStreamFactory.TAR.equalsIgnoreCase(formats[0]);
+    }
+
+    static int getMinFillSize(PluginTask task) {
+        if (!task.getFillBuffer()) {
+            return 1;
+        }
+        return task.getMinFillSize() > 0 ? task.getMinFillSize() : Integer.MAX_VALUE;
     }
 
     BufferAllocator getBufferAllocator() {
@@ -13,12 +13,39 @@ class CommonsCompressFileInput implements FileInput
 {
     private final BufferAllocator allocator;
     private final Provider provider;
+    private final int minFillSize;
+    private final DecoderMetrics metrics;
     private InputStream current;
+    // Data is read here and copied to a buffer because Buffer.array() is
+    // deprecated.
+    private byte[] readBuffer = new byte[0];
 
     public CommonsCompressFileInput(BufferAllocator allocator, Provider provider)
+    {
+        this(allocator, provider, 1);
+    }
+
+    /**
+     * @param minFillSize poll() reads until a buffer has at least this size
+     * of data or a stream reaches the end. The value is capped by the
+     * capacity of a buffer. So, Integer.MAX_VALUE fills whole buffers.
+     */
+    public CommonsCompressFileInput(BufferAllocator allocator, Provider provider, int minFillSize)
+    {
+        this(allocator, provider, minFillSize, new DecoderMetrics());
+    }
+
+    /**
+     * @param metrics records decompressed bytes and decode time. It is
+     * closed by close().
+     */
+    public CommonsCompressFileInput(BufferAllocator allocator, Provider provider, int minFillSize,
+            DecoderMetrics metrics)
     {
         this.allocator = allocator;
         this.provider = provider;
+        this.minFillSize = Math.max(1, minFillSize);
+        this.metrics = metrics;
         this.current = null;
     }
 
@@ -28,13 +55,29 @@ class CommonsCompressFileInput implements FileInput
         if (current == null) {
             throw new IllegalStateException("nextFile() must be called before poll()");
         }
+        final long start = System.nanoTime();
         Buffer buffer = allocator.allocate();
+        int filled = 0;
         try {
-            int n = current.read(buffer.array(), buffer.offset(), buffer.capacity());
-            if (n < 0) {
+            // Some streams like tar entries and bzip2 return only a part of
+            // requested data. So, read again to avoid emitting small buffers.
+            final int capacity = buffer.capacity();
+            if (readBuffer.length < capacity) {
+                readBuffer = new byte[capacity];
+            }
+            final int fillSize = Math.min(minFillSize, capacity);
+            while (filled < fillSize) {
+                int n = current.read(readBuffer, filled, capacity - filled);
+                if (n < 0) {
+                    break;
+                }
+                filled += n;
+            }
+            if (filled == 0) {
                 return null;
             }
-            buffer.limit(n);
+            buffer.setBytes(0, readBuffer, 0, filled);
+            buffer.limit(filled);
             Buffer b = buffer;
             buffer = null;
             return b;
@@ -45,12 +88,14 @@ class CommonsCompressFileInput implements FileInput
                 buffer.release();
                 buffer = null;
             }
+            metrics.addDecoded(filled, System.nanoTime() - start);
         }
     }
 
     @Override
     public boolean nextFile()
     {
+        final long start = System.nanoTime();
         try {
             // NOTE: DO NOT close current because this stream may
             // be one of a file in an archive. Provider manage it.
@@ -58,6 +103,8 @@ class CommonsCompressFileInput implements FileInput
             return current != null;
         } catch (IOException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            metrics.addDecoded(0, System.nanoTime() - start);
         }
     }
 
@@ -68,6 +115,8 @@ class CommonsCompressFileInput implements FileInput
             provider.close();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            metrics.close();
         }
     }
 }
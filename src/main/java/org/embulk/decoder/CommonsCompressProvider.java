@@ -1,31 +1,74 @@
 package org.embulk.decoder;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
 import org.embulk.decoder.CommonsCompressDecoderPlugin.PluginTask;
 import org.embulk.util.file.FileInputInputStream;
 import org.embulk.util.file.InputStreamFileInput.Provider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 class CommonsCompressProvider implements Provider {
     private static final String AUTO_DETECT_FORMAT = "";
+    // The same as the default size of BufferedInputStream.
+    private static final int DEFAULT_INPUT_BUFFER_SIZE = 8192;
+    private static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 64L * 1024 * 1024;
+    private static final Logger logger = LoggerFactory.getLogger(CommonsCompressProvider.class);
 
     private final FileInputInputStream files;
     private final boolean formatAutoDetection;
-    private Iterator<InputStream> inputStreamIterator;
+    private final Deque<Layer> layers = new ArrayDeque<>();
     private String[] formats;
     private final boolean decompressConcatenated;
-    private final String matchName;
+    private final EntrySlice slice;
+    private final EntrySlice readerSlice;
+    private final EntryNameMatcher matcher;
+    private final EntryStats entryStats = new EntryStats();
+    private final EntryVerifier verifier;
+    private final int decodeThreads;
+    private final boolean virtualThreads;
+    private ExecutorService decodeExecutor;
+    private final boolean randomAccess;
+    private final String tempDir;
+    private final int spillMemorySize;
+    private final long spillMaxSize;
+    private final int parallelEntries;
+    private final long maxInFlightBytes;
+    private final String indexDir;
+    private final int maxNestingDepth;
+    private final InflateBackend inflateBackend;
+    private final int inputBufferSize;
+    private final boolean adaptiveBufferSize;
+    private final int maxInputBufferSize;
+    private final ArchiveStreamFactory archiveStreamFactory = new ArchiveStreamFactory();
+    private final CompressorStreamFactory compressorStreamFactory;
+    private final FormatSniffer sniffer = new FormatSniffer();
+    private final DecoderPool pool = new DecoderPool();
+    // Spills of xz_parallel are deleted by close() when a stream isn't read to the end.
+    private final List<SpillFile> xzSpills = new ArrayList<>();
 
     CommonsCompressProvider(PluginTask task, FileInputInputStream files) {
         this.files = files;
@@ -39,36 +82,97 @@ class CommonsCompressProvider implements Provider {
         }
         this.decompressConcatenated = task == null
             || task.getDecompressConcatenated();
-        this.matchName = (task == null)? "" : task.getMatchName();
+        this.compressorStreamFactory = new CompressorStreamFactory(decompressConcatenated);
+        this.slice = (task == null)? EntrySlice.ALL
+                : EntrySlice.of(task.getSliceCount(), task.getSliceIndex());
+        this.matcher = (task == null)? EntryNameMatcher.of("")
+                : EntryNameMatcher.of(task.getMatchName(), task.getIncludeNames(), task.getExcludeNames());
+        this.verifier = (task == null)? new EntryVerifier(false, null)
+                : new EntryVerifier(task.getVerifyChecksums(), task.getEntryDigest());
+        this.decodeThreads = DecoderExecutors.getThreads(
+                (task == null)? 0 : task.getDecodeThreads());
+        this.virtualThreads = task != null && task.getVirtualThreads();
+        this.randomAccess = task != null && task.getRandomAccess();
+        this.tempDir = (task == null)? "" : task.getTempDir();
+        this.spillMemorySize = (task == null)? 0 : task.getSpillMemorySize();
+        this.spillMaxSize = (task == null)? 0 : task.getSpillMaxSize();
+        this.parallelEntries = (task == null)? 0 : task.getParallelEntries();
+        this.maxInFlightBytes = (task == null || task.getMaxInFlightBytes() <= 0)
+                ? DEFAULT_MAX_IN_FLIGHT_BYTES : task.getMaxInFlightBytes();
+        this.indexDir = (task == null)? "" : task.getIndexDir();
+        this.maxNestingDepth = (task == null)? 0 : task.getMaxNestingDepth();
+        // All entries are returned as they are without max_nesting_depth.
+        // So, archive readers can skip entries in other slices without decoding.
+        this.readerSlice = maxNestingDepth <= 0 ? slice : EntrySlice.ALL;
+        this.inflateBackend = InflateBackends.get((task == null)? null : task.getInflateBackend(), pool,
+                (task == null)? 0 : task.getInflateBufferSize());
+        this.inputBufferSize = (task == null)? 0 : task.getInputBufferSize();
+        this.adaptiveBufferSize = task != null && task.getAdaptiveBufferSize();
+        this.maxInputBufferSize = (task == null || task.getMaxInputBufferSize() <= 0)
+                ? AdaptiveBufferedInputStream.DEFAULT_MAX_SIZE : task.getMaxInputBufferSize();
     }
 
     @Override
     public InputStream openNext() throws IOException {
         while (true) {
-            if (inputStreamIterator == null) {
+            Layer layer = layers.peek();
+            if (layer == null) {
                 if (!files.nextFile()) {
                     return null;
                 }
-                inputStreamIterator = formatAutoDetection ? createInputStreamIterator(files)
-                        : createInputStreamIterator(formats, 0, files);
-            } else {
-                if (inputStreamIterator.hasNext()) {
-                    InputStream in = inputStreamIterator.next();
-                    if (in == null) {
-                        inputStreamIterator = null;
-                    } else {
+                layers.push(new Layer(parallelize(createFileIterator(), 0), 0));
+            } else if (layer.iterator.hasNext()) {
+                verifier.verifyPending();
+                InputStream in = layer.iterator.next();
+                if (in == null) {
+                    closeLayer(layers.pop());
+                    continue;
+                } else if (layer.isArchive() && !(layer.iterator instanceof ParallelEntryIterator)) {
+                    // ParallelEntryIterator verifies entries before decoding them.
+                    in = verifier.wrap(((ArchiveEntryIterator) layer.iterator).getCurrentEntry(), in);
+                }
+
+                // A file in an archive is one level deeper. A decompressed
+                // stream is the same file.
+                int level = layer.isArchive() ? layer.level + 1 : layer.level;
+                if (maxNestingDepth <= 0 || level > maxNestingDepth) {
+                    if (isInSlice(level)) {
+                        return in;
+                    }
+                    continue;
+                }
+                in = in.markSupported() ? in : newBufferedInputStream(in);
+                Iterator<InputStream> nested = createNestedIterator(in);
+                if (nested == null) {
+                    if (isInSlice(level)) {
                         return in;
                     }
-                } else {
-                    inputStreamIterator = null;
+                    continue;
                 }
+                layers.push(new Layer(parallelize(nested, level), level));
+            } else {
+                verifier.verifyPending();
+                closeLayer(layers.pop());
             }
         }
     }
 
     @Override
     public void close() throws IOException {
-        inputStreamIterator = null;
+        while (!layers.isEmpty()) {
+            closeLayer(layers.pop());
+        }
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdownNow();
+            decodeExecutor = null;
+        }
+        synchronized (xzSpills) {
+            for (SpillFile spill : xzSpills) {
+                spill.close();
+            }
+            xzSpills.clear();
+        }
+        pool.close();
         if (files != null) {
             files.close();
         }
@@ -82,24 +186,114 @@ class CommonsCompressProvider implements Provider {
         return formats;
     }
 
+    FormatSniffer getFormatSniffer() {
+        return sniffer;
+    }
+
+    /**
+     * @return counters of archive entries of all files in this task.
+     */
+    EntryStats getEntryStats() {
+        return entryStats;
+    }
+
+    /**
+     * Create an iterator for the current file of the input.
+     */
+    private Iterator<InputStream> createFileIterator() throws IOException {
+        if (formatAutoDetection) {
+            return createInputStreamIterator(files);
+        } else if (isIndexed()) {
+            return IndexedTarIterator.open(files, formats, Paths.get(indexDir), pool, matcher, readerSlice,
+                    entryStats);
+        } else if (inputBufferSize > 0 || adaptiveBufferSize) {
+            return createInputStreamIterator(formats, 0, newBufferedInputStream(files));
+        }
+        return createInputStreamIterator(formats, 0, files);
+    }
+
+    /**
+     * Create a buffer to read a file or decompressed data. The default size
+     * of BufferedInputStream is used when input_buffer_size is 0.
+     */
+    InputStream newBufferedInputStream(InputStream in) {
+        if (adaptiveBufferSize) {
+            return new AdaptiveBufferedInputStream(in,
+                    inputBufferSize > 0 ? inputBufferSize : DEFAULT_INPUT_BUFFER_SIZE, maxInputBufferSize);
+        } else if (inputBufferSize > 0) {
+            return new BufferedInputStream(in, inputBufferSize);
+        }
+        return new BufferedInputStream(in);
+    }
+
+    /**
+     * An index is used for tar and tar.gz when index_dir is set. A tar.gz
+     * file must be read to the end to index all entries.
+     */
+    boolean isIndexed() {
+        return indexDir != null && !indexDir.isEmpty() && ArchiveIndex.isSupported(formats)
+                && (!ArchiveIndex.isCompressed(formats) || decompressConcatenated);
+    }
+
+    /**
+     * Create an iterator for a file whose format is detected automatically.
+     *
+     * FormatSniffer reads a prefix of the file once. When it is a compressed
+     * file, a prefix of the decompressed data is also checked. So, solid
+     * compression formats like tar.gz are read as archives. Formats which
+     * FormatSniffer doesn't know are detected by ArchiveStreamFactory and
+     * CompressorStreamFactory.
+     */
     Iterator<InputStream> createInputStreamIterator(InputStream in)
             throws IOException {
         // It is required to support mark to detect a file format.
-        in = in.markSupported() ? in : new BufferedInputStream(in);
+        in = in.markSupported() ? in : newBufferedInputStream(in);
+        String format = sniffer.sniff(in);
+        if (format == null) {
+            return createDetectedInputStreamIterator(in);
+        } else if (CommonsCompressUtil.isArchiveFormat(format)) {
+            return createInputStreamIterator(new String[] {format}, 0, in);
+        }
+
+        InputStream decompressed;
         try {
-            return new ArchiveInputStreamIterator(
-                    createArchiveInputStream(AUTO_DETECT_FORMAT, in),
-                    this.matchName
-            );
-        } catch (IOException | ArchiveException e) {
-            // ArchiveStreamFactory set mark and reset the stream.
-            // So, we can use the same stream to check compressor.
+            decompressed = newBufferedInputStream(createCompressorInputStream(format, in));
+        } catch (CompressorException e) {
+            throw new IOException(e);
+        }
+        String archive = sniffer.sniffArchive(decompressed);
+        if (archive == null) {
+            return toIterator(decompressed);
+        }
+        return createInputStreamIterator(new String[] {archive}, 0, decompressed);
+    }
+
+    /**
+     * Detect a format by ArchiveStreamFactory and CompressorStreamFactory.
+     */
+    private Iterator<InputStream> createDetectedInputStreamIterator(InputStream in)
+            throws IOException {
+        String detected = detectArchiveFormat(in);
+        if (detected != null) {
             try {
-                return toIterator(createCompressorInputStream(AUTO_DETECT_FORMAT, in));
-            } catch (CompressorException e2) {
-                throw new IOException("Failed to detect a file format.", e2);
+                return new ArchiveInputStreamIterator(
+                        createArchiveInputStream(detected, in),
+                        this.matcher,
+                        this.readerSlice,
+                        this.entryStats,
+                        null
+                );
+            } catch (IOException | ArchiveException e) {
+                // ArchiveStreamFactory set mark and reset the stream.
+                // So, we can use the same stream to check compressor.
             }
         }
+
+        try {
+            return toIterator(createCompressorInputStream(AUTO_DETECT_FORMAT, in));
+        } catch (CompressorException e) {
+            throw new IOException("Failed to detect a file format.", e);
+        }
     }
 
     /**
@@ -120,10 +314,14 @@ class CommonsCompressProvider implements Provider {
 
         try {
             String format = inputFormats[pos];
-            if (CommonsCompressUtil.isArchiveFormat(format)) {
+            if (ArchiveStreamFactory.SEVEN_Z.equalsIgnoreCase(format)) {
+                return createSevenZFileIterator(in);
+            } else if (randomAccess && ArchiveStreamFactory.ZIP.equalsIgnoreCase(format)) {
+                return createZipFileIterator(in);
+            } else if (CommonsCompressUtil.isArchiveFormat(format)) {
                 return new ArchiveInputStreamIterator(
                         createArchiveInputStream(format, in),
-                        this.matchName);
+                        this.matcher, this.readerSlice, this.entryStats, null);
             } else if (CommonsCompressUtil.isCompressorFormat(format)) {
                 return createInputStreamIterator(inputFormats, pos + 1,
                         createCompressorInputStream(format, in));
@@ -148,37 +346,306 @@ class CommonsCompressProvider implements Provider {
      * 
      * @return a new ArchiveInputStream instance.
      */
-    ArchiveInputStream createArchiveInputStream(String format, InputStream in)
+    ArchiveInputStream<? extends ArchiveEntry> createArchiveInputStream(String format, InputStream in)
             throws IOException, ArchiveException {
-        ArchiveStreamFactory factory = new ArchiveStreamFactory();
         if (CommonsCompressUtil.isAutoDetect(format)) {
-            in = in.markSupported() ? in : new BufferedInputStream(in);
+            in = in.markSupported() ? in : newBufferedInputStream(in);
             try {
-                return factory.createArchiveInputStream(in);
+                return archiveStreamFactory.createArchiveInputStream(in);
             } catch (ArchiveException e) {
                 throw new IOException(
                         "Failed to detect a file format. Please try to set a format explicitly.",
                         e);
             }
         } else {
-            return factory.createArchiveInputStream(format, in);
+            return archiveStreamFactory.createArchiveInputStream(format, in);
+        }
+    }
+
+    /**
+     * Create an iterator for a file in an archive when it is an archive or
+     * a compressed file. Each file is detected by its magic bytes. The
+     * stream is read as it is without buffering the whole file.
+     *
+     * @param in a stream which supports mark.
+     * @return null if the file is neither an archive nor a compressed file.
+     */
+    Iterator<InputStream> createNestedIterator(InputStream in) throws IOException {
+        String archive = detectArchiveFormat(in);
+        if (ArchiveStreamFactory.SEVEN_Z.equals(archive)) {
+            return createSevenZFileIterator(in);
+        } else if (randomAccess && ArchiveStreamFactory.ZIP.equals(archive)) {
+            return createZipFileIterator(in);
+        } else if (archive != null) {
+            try {
+                return new ArchiveInputStreamIterator(
+                        createArchiveInputStream(archive, in), matcher, readerSlice, entryStats, null);
+            } catch (ArchiveException e) {
+                throw new IOException(e);
+            }
+        }
+
+        String compressor = detectCompressorFormat(in);
+        if (compressor != null) {
+            try {
+                return toIterator(createCompressorInputStream(compressor, in));
+            } catch (CompressorException e) {
+                throw new IOException(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create an iterator which reads a zip file by its central directory.
+     * The input is copied to a temporary file because FileInputInputStream
+     * doesn't support random access. The file is deleted when all entries
+     * are read or this provider is closed.
+     *
+     * A zip file larger than spill_max_size is read by local headers in
+     * order. The copied part is read again and then the rest of the input.
+     */
+    Iterator<InputStream> createZipFileIterator(InputStream in) throws IOException {
+        SpillFile spill = spill(in, ".zip");
+        SeekableByteChannel channel = null;
+        try {
+            if (!spill.isComplete()) {
+                logger.warn("A zip file is larger than spill_max_size. It is read as a stream without random_access.");
+                return new ArchiveInputStreamIterator(
+                        createArchiveInputStream(ArchiveStreamFactory.ZIP, spill.replay(in)),
+                        matcher, readerSlice, entryStats, spill);
+            }
+            channel = spill.newChannel();
+            return new ZipFileIterator(new ZipFile(channel), spill, matcher, readerSlice, entryStats);
+        } catch (ArchiveException e) {
+            spill.close();
+            throw new IOException(e);
+        } catch (IOException | RuntimeException e) {
+            // ZipFile doesn't close a given channel when it fails to open.
+            if (channel != null) {
+                channel.close();
+            }
+            spill.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create an iterator which reads a 7z file. 7z cannot be read as
+     * a stream. So, the input is always copied to a temporary file.
+     */
+    Iterator<InputStream> createSevenZFileIterator(InputStream in) throws IOException {
+        SpillFile spill = spill(in, ".7z");
+        if (!spill.isComplete()) {
+            spill.close();
+            throw new IOException("A 7z file is larger than spill_max_size: " + spillMaxSize
+                    + ". 7z cannot be read as a stream. Please increase spill_max_size.");
+        }
+        SeekableByteChannel channel = null;
+        try {
+            channel = spill.newChannel();
+            return new SevenZFileIterator(new SevenZFile(channel), spill, matcher, readerSlice, entryStats);
+        } catch (IOException | RuntimeException e) {
+            // SevenZFile doesn't close a given channel when it fails to open.
+            if (channel != null) {
+                channel.close();
+            }
+            spill.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the rest of a stream for random access. A stream up to
+     * spill_memory_size is kept in memory, and a larger one is written to
+     * temp_dir. Copying stops at spill_max_size.
+     */
+    SpillFile spill(InputStream in, String suffix) throws IOException {
+        return SpillFile.spill(in, tempDir, suffix, spillMemorySize, spillMaxSize);
+    }
+
+    /**
+     * @return an archive format detected by ArchiveStreamFactory. Otherwise,
+     * null. The stream must support mark.
+     */
+    private String detectArchiveFormat(InputStream in) {
+        try {
+            return ArchiveStreamFactory.detect(in);
+        } catch (ArchiveException e) {
+            // Not an archive. A compressor format is detected later.
+            return null;
+        }
+    }
+
+    /**
+     * @return a compressor format detected by CompressorStreamFactory.
+     * Otherwise, null. The stream must support mark.
+     */
+    private String detectCompressorFormat(InputStream in) {
+        try {
+            return CompressorStreamFactory.detect(in);
+        } catch (CompressorException e) {
+            return null;
         }
     }
 
     CompressorInputStream createCompressorInputStream(String format,
             InputStream in) throws IOException, CompressorException {
-        CompressorStreamFactory factory = new CompressorStreamFactory(decompressConcatenated);
+        if (CommonsCompressUtil.isParallelFormat(format)) {
+            return createParallelInputStream(format, in);
+        }
+
         if (CommonsCompressUtil.isAutoDetect(format)) {
-            in = in.markSupported() ? in : new BufferedInputStream(in);
+            in = in.markSupported() ? in : newBufferedInputStream(in);
             try {
-                return factory.createCompressorInputStream(in);
+                format = CompressorStreamFactory.detect(in);
             } catch (CompressorException e) {
                 throw new IOException(
                         "Failed to detect a file format. Please try to set a format explicitly.",
                         e);
             }
-        } else {
-            return factory.createCompressorInputStream(format, in);
+        }
+
+        if (inflateBackend != null) {
+            if (CompressorStreamFactory.GZIP.equalsIgnoreCase(format)) {
+                return inflateBackend.createGzipInputStream(in, decompressConcatenated);
+            } else if (CompressorStreamFactory.DEFLATE.equalsIgnoreCase(format)) {
+                return inflateBackend.createDeflateInputStream(in);
+            }
+        }
+        if (CompressorStreamFactory.XZ.equalsIgnoreCase(format)) {
+            return new XZArrayCacheInputStream(in, decompressConcatenated, pool.getArrayCache());
+        }
+        return compressorStreamFactory.createCompressorInputStream(format, in);
+    }
+
+    /**
+     * Create a stream to decode independent blocks on worker threads.
+     * The worker threads are shared by files and stopped by close().
+     */
+    CompressorInputStream createParallelInputStream(String format, InputStream in)
+            throws IOException, CompressorException {
+        if (CommonsCompressUtil.BZIP2_PARALLEL.equalsIgnoreCase(format)) {
+            return new ParallelBZip2InputStream(in, decompressConcatenated,
+                    getDecodeExecutor(), decodeThreads * 2);
+        } else if (CommonsCompressUtil.GZIP_PARALLEL.equalsIgnoreCase(format)) {
+            // Only the first member is read. So, there is nothing to do in parallel.
+            if (!decompressConcatenated) {
+                return new GzipCompressorInputStream(in, false);
+            }
+            return new ParallelGzipInputStream(in, getDecodeExecutor(), decodeThreads * 2, pool);
+        } else if (CommonsCompressUtil.ZSTD_PARALLEL.equalsIgnoreCase(format)) {
+            if (!ZstdUtils.isZstdCompressionAvailable()) {
+                throw new CompressorException("Zstandard compression is not available. zstd-jni is required.");
+            }
+            return new ParallelFrameInputStream(in, ParallelFrameInputStream.Format.ZSTD,
+                    getDecodeExecutor(), decodeThreads * 2);
+        } else if (CommonsCompressUtil.LZ4_FRAMED_PARALLEL.equalsIgnoreCase(format)) {
+            if (!decompressConcatenated) {
+                return new FramedLZ4CompressorInputStream(in, false);
+            }
+            return new ParallelFrameInputStream(in, ParallelFrameInputStream.Format.LZ4_FRAMED,
+                    getDecodeExecutor(), decodeThreads * 2);
+        } else if (CommonsCompressUtil.XZ_PARALLEL.equalsIgnoreCase(format)) {
+            return createParallelXZInputStream(in);
+        }
+        throw new CompressorException("Compressor: " + format + " not found.");
+    }
+
+    /**
+     * xz blocks are found by the index at the end of a stream. So, the input
+     * is spilled like 7z. A file larger than spill_max_size is decoded on
+     * the reading thread.
+     *
+     * The stream deletes the spill at the end of data or by close(). But
+     * decompressed streams are not closed by this provider because closing
+     * them closes the file input too. So, the spill is also deleted by
+     * close() of this provider when a task fails in the middle of the file.
+     */
+    private CompressorInputStream createParallelXZInputStream(InputStream in) throws IOException {
+        if (!decompressConcatenated) {
+            return new XZArrayCacheInputStream(in, false, pool.getArrayCache());
+        }
+        SpillFile spill = spill(in, ".xz");
+        if (!spill.isComplete()) {
+            logger.warn("An xz file is larger than spill_max_size. It is decoded on one thread.");
+            return new XZArrayCacheInputStream(spill.replay(in), true, pool.getArrayCache());
+        }
+        ParallelXZInputStream xz = new ParallelXZInputStream(spill, getDecodeExecutor(), decodeThreads * 2,
+                pool.getArrayCache());
+        synchronized (xzSpills) {
+            // Spills of files read to the end are already deleted.
+            Iterator<SpillFile> it = xzSpills.iterator();
+            while (it.hasNext()) {
+                if (it.next().isClosed()) {
+                    it.remove();
+                }
+            }
+            xzSpills.add(spill);
+        }
+        return xz;
+    }
+
+    /**
+     * Decode entries of an archive on the decode threads when
+     * parallel_entries is set. Compressed entries are decompressed by
+     * workers when they are in max_nesting_depth. Entries of a stream
+     * archive like tar are read on the calling thread. So, it is not
+     * parallelized when there is nothing to decompress.
+     *
+     * @param level the level of the archive.
+     */
+    Iterator<InputStream> parallelize(Iterator<InputStream> iterator, int level) {
+        if (parallelEntries <= 0 || !(iterator instanceof ArchiveEntryIterator)) {
+            return iterator;
+        }
+        ParallelEntryIterator.EntryDecoder decoder = null;
+        if (maxNestingDepth > 0 && level + 1 <= maxNestingDepth) {
+            decoder = new ParallelEntryIterator.EntryDecoder() {
+                @Override
+                public InputStream decode(InputStream in) throws IOException {
+                    String compressor = detectCompressorFormat(in);
+                    if (compressor == null) {
+                        return in;
+                    }
+                    try {
+                        return createCompressorInputStream(compressor, in);
+                    } catch (CompressorException e) {
+                        throw new IOException(e);
+                    }
+                }
+            };
+        } else if (!(iterator instanceof ZipFileIterator)) {
+            return iterator;
+        }
+        return new ParallelEntryIterator((ArchiveEntryIterator) iterator, getDecodeExecutor(),
+                parallelEntries, maxInFlightBytes, verifier, decoder);
+    }
+
+    private ExecutorService getDecodeExecutor() {
+        if (decodeExecutor == null) {
+            decodeExecutor = DecoderExecutors.newDecodeExecutor(decodeThreads, virtualThreads);
+        }
+        return decodeExecutor;
+    }
+
+    /**
+     * A slice is applied once to each file returned to a parser. Nested
+     * archives are not counted because their entries are returned instead.
+     * Without max_nesting_depth, entries in archives are selected by archive
+     * readers. A file in another slice is skipped without reading. It is not
+     * closed because closing it closes the file input too.
+     */
+    private boolean isInSlice(int level) {
+        if (level > 0 && readerSlice == slice) {
+            return true;
+        }
+        return slice.next();
+    }
+
+    private void closeLayer(Layer layer) throws IOException {
+        if (layer.iterator instanceof Closeable) {
+            ((Closeable) layer.iterator).close();
         }
     }
 
@@ -187,4 +654,22 @@ class CommonsCompressProvider implements Provider {
         list.add(in);
         return list.iterator();
     }
+
+    /**
+     * An iterator of an archive or a compressed file. The level of a file in
+     * the input is 0. Files in the file are level 1 and so on.
+     */
+    private static class Layer {
+        private final Iterator<InputStream> iterator;
+        private final int level;
+
+        Layer(Iterator<InputStream> iterator, int level) {
+            this.iterator = iterator;
+            this.level = level;
+        }
+
+        boolean isArchive() {
+            return iterator instanceof ArchiveEntryIterator;
+        }
+    }
 }
@@ -8,6 +8,13 @@ import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 
 class CommonsCompressUtil {
+    // Formats decoded by this plugin in parallel instead of CompressorStreamFactory.
+    static final String BZIP2_PARALLEL = "bzip2_parallel";
+    static final String GZIP_PARALLEL = "gzip_parallel";
+    static final String ZSTD_PARALLEL = "zstd_parallel";
+    static final String LZ4_FRAMED_PARALLEL = "lz4_framed_parallel";
+    static final String XZ_PARALLEL = "xz_parallel";
+
     // TODO: It may be better to check performance between Set and array.
     // NOTE: Some file types may not work in an environment because some required
     // libraries are not found.
@@ -28,14 +35,24 @@ class CommonsCompressUtil {
         CompressorStreamFactory.BZIP2,
         CompressorStreamFactory.DEFLATE,
         CompressorStreamFactory.GZIP,
+        CompressorStreamFactory.LZ4_BLOCK,
+        CompressorStreamFactory.LZ4_FRAMED,
         CompressorStreamFactory.LZMA,
         CompressorStreamFactory.PACK200,
         CompressorStreamFactory.SNAPPY_FRAMED,
         CompressorStreamFactory.SNAPPY_RAW,
         CompressorStreamFactory.XZ,
         CompressorStreamFactory.Z,
+        CompressorStreamFactory.ZSTANDARD,
+        BZIP2_PARALLEL,
+        GZIP_PARALLEL,
+        ZSTD_PARALLEL,
+        LZ4_FRAMED_PARALLEL,
+        XZ_PARALLEL,
         "bz2", // These values should be handled by normalizeFormats
         "gzip",
+        "zst",
+        "lz4",
     };
 
     // This table is even indexes have short extensions and odd indexes has
@@ -54,7 +71,10 @@ class CommonsCompressUtil {
         "tar.lz",   ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.LZMA,
         "tar.lzma", ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.LZMA,
         "txz",      ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.XZ,
-        "tar.xz",   ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.XZ
+        "tar.xz",   ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.XZ,
+        "tzst",     ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.ZSTANDARD,
+        "tar.zst",  ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.ZSTANDARD,
+        "tar.lz4",  ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.LZ4_FRAMED
     };
 
     static boolean isArchiveFormat(String format) {
@@ -75,6 +95,14 @@ class CommonsCompressUtil {
         return false;
     }
 
+    static boolean isParallelFormat(String format) {
+        return BZIP2_PARALLEL.equalsIgnoreCase(format)
+                || GZIP_PARALLEL.equalsIgnoreCase(format)
+                || ZSTD_PARALLEL.equalsIgnoreCase(format)
+                || LZ4_FRAMED_PARALLEL.equalsIgnoreCase(format)
+                || XZ_PARALLEL.equalsIgnoreCase(format);
+    }
+
     static boolean isAutoDetect(String format) {
         return format == null || format.length() == 0;
     }
@@ -147,6 +175,20 @@ class CommonsCompressUtil {
                 formats[i] = CompressorStreamFactory.GZIP;
             } else if (formats[i].equalsIgnoreCase("bz2")) {
                 formats[i] = CompressorStreamFactory.BZIP2;
+            } else if (formats[i].equalsIgnoreCase("zst")) {
+                formats[i] = CompressorStreamFactory.ZSTANDARD;
+            } else if (formats[i].equalsIgnoreCase("lz4")) {
+                formats[i] = CompressorStreamFactory.LZ4_FRAMED;
+            } else if (formats[i].equalsIgnoreCase(BZIP2_PARALLEL)) {
+                formats[i] = BZIP2_PARALLEL;
+            } else if (formats[i].equalsIgnoreCase(GZIP_PARALLEL)) {
+                formats[i] = GZIP_PARALLEL;
+            } else if (formats[i].equalsIgnoreCase(ZSTD_PARALLEL)) {
+                formats[i] = ZSTD_PARALLEL;
+            } else if (formats[i].equalsIgnoreCase(LZ4_FRAMED_PARALLEL)) {
+                formats[i] = LZ4_FRAMED_PARALLEL;
+            } else if (formats[i].equalsIgnoreCase(XZ_PARALLEL)) {
+                formats[i] = XZ_PARALLEL;
             }
         }
 
@@ -0,0 +1,329 @@
+package org.embulk.decoder;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates threads used by the decoder's background work like read-ahead
+ * and parallel decoding.
+ *
+ * All threads are daemon threads so that a decoder which is not closed
+ * correctly doesn't block JVM shutdown.
+ *
+ * Virtual threads are used when they are requested and the runtime supports
+ * them (Java 21 or later). A virtual thread which blocks on the upstream
+ * input parks without holding a carrier thread, so many tasks don't create
+ * many platform threads. They are created by reflection because this plugin
+ * is built for Java 8. Otherwise, platform threads are used.
+ *
+ * Platform threads to decode data are shared by all tasks in the JVM.
+ * Without them, each task creates decode_threads threads, and many tasks
+ * create many more threads than processors. The shared pool is created by
+ * the first user and stopped when the last user shuts its executor down.
+ * It has as many threads as the largest request of its current users.
+ */
+final class DecoderExecutors {
+    private static final String THREAD_NAME_PREFIX = "embulk-decoder-commons-compress-";
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    // null if the runtime doesn't support virtual threads.
+    private static final ThreadFactory virtualThreadFactory = newVirtualThreadFactory();
+
+    // Guarded by DecoderExecutors.class.
+    private static ThreadPoolExecutor sharedPool = null;
+    // The number of threads requested by each user of the shared pool.
+    private static final List<Integer> sharedPoolRequests = new ArrayList<>();
+
+    private DecoderExecutors() {
+    }
+
+    static Thread newThread(String name, Runnable runnable) {
+        return newThread(name, runnable, false);
+    }
+
+    /**
+     * @param virtual true to create a virtual thread if it is supported.
+     */
+    static Thread newThread(String name, Runnable runnable, boolean virtual) {
+        String threadName = THREAD_NAME_PREFIX + name + "-" + threadCount.incrementAndGet();
+        if (virtual && virtualThreadFactory != null) {
+            // Virtual threads are always daemon threads.
+            Thread thread = virtualThreadFactory.newThread(runnable);
+            thread.setName(threadName);
+            return thread;
+        }
+        Thread thread = new Thread(runnable, threadName);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    static ExecutorService newWorkerPool(String name, int threads) {
+        return newWorkerPool(name, threads, false);
+    }
+
+    /**
+     * Create a fixed size pool to decode data in parallel. The number of
+     * threads bounds decoding in parallel even with virtual threads.
+     *
+     * @param threads the number of threads. 0 or less means the number of
+     * available processors.
+     * @param virtual true to use virtual threads if they are supported.
+     */
+    static ExecutorService newWorkerPool(final String name, int threads, final boolean virtual) {
+        return Executors.newFixedThreadPool(getThreads(threads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return DecoderExecutors.newThread(name, runnable, virtual);
+            }
+        });
+    }
+
+    /**
+     * Create an executor to decode data of a task in parallel.
+     *
+     * With virtual threads, a fixed size pool of virtual threads is created.
+     * Otherwise, tasks run on the shared pool of platform threads. The
+     * returned executor runs at most threads tasks at a time and queues the
+     * rest. shutdown() and shutdownNow() stop only its tasks and release the
+     * shared pool.
+     *
+     * @param threads the number of threads. 0 or less means the number of
+     * available processors.
+     * @param virtual true to use virtual threads if they are supported.
+     */
+    static ExecutorService newDecodeExecutor(int threads, boolean virtual) {
+        if (virtual && virtualThreadFactory != null) {
+            return newWorkerPool("decode", threads, true);
+        }
+        return new LimitedExecutor(acquireSharedPool(getThreads(threads)), getThreads(threads));
+    }
+
+    /**
+     * @return the number of executors which use the shared pool.
+     */
+    static synchronized int getSharedPoolUsers() {
+        return sharedPoolRequests.size();
+    }
+
+    /**
+     * @return the maximum number of threads of the shared pool. 0 if it
+     * is not created.
+     */
+    static synchronized int getSharedPoolThreads() {
+        return sharedPool == null ? 0 : sharedPool.getMaximumPoolSize();
+    }
+
+    /**
+     * The pool has as many threads as the largest number requested. So,
+     * the number of threads is bounded by decode_threads of one task
+     * instead of the sum of all tasks.
+     */
+    private static synchronized ExecutorService acquireSharedPool(int threads) {
+        if (sharedPool == null) {
+            sharedPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return DecoderExecutors.newThread("decode", runnable);
+                        }
+                    });
+        } else if (threads > sharedPool.getMaximumPoolSize()) {
+            sharedPool.setMaximumPoolSize(threads);
+            sharedPool.setCorePoolSize(threads);
+        }
+        sharedPoolRequests.add(threads);
+        return sharedPool;
+    }
+
+    /**
+     * When the user which requested the most threads leaves, the pool
+     * shrinks to the largest request of the rest. Extra threads exit after
+     * their current tasks.
+     */
+    private static synchronized void releaseSharedPool(int threads) {
+        sharedPoolRequests.remove(Integer.valueOf(threads));
+        if (sharedPoolRequests.isEmpty()) {
+            sharedPool.shutdown();
+            sharedPool = null;
+            return;
+        }
+        int largest = 0;
+        for (int requested : sharedPoolRequests) {
+            largest = Math.max(largest, requested);
+        }
+        if (largest < sharedPool.getMaximumPoolSize()) {
+            // The core size must not be larger than the maximum size.
+            sharedPool.setCorePoolSize(largest);
+            sharedPool.setMaximumPoolSize(largest);
+        }
+    }
+
+    static boolean isVirtualThreadSupported() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Create a single thread scheduler for periodic work like logging.
+     */
+    static ScheduledExecutorService newScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return DecoderExecutors.newThread(name, runnable);
+            }
+        });
+    }
+
+    static int getThreads(int threads) {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * An executor of a task on the shared pool. Tasks wait in the queue of
+     * this executor until one of its permits is free. So, a task can't fill
+     * the shared pool with its tasks.
+     */
+    private static class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService pool;
+        private final int threads;
+        private final Semaphore permits;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        // Threads running tasks of this executor. Guarded by itself.
+        private final Set<Thread> running = new HashSet<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile boolean shutdown = false;
+
+        LimitedExecutor(ExecutorService pool, int threads) {
+            this.pool = pool;
+            this.threads = threads;
+            this.permits = new Semaphore(threads);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The executor is shut down.");
+            }
+            queue.add(command);
+            dispatch();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+            terminateIfDone();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            List<Runnable> tasks = new ArrayList<>();
+            Runnable task = queue.poll();
+            while (task != null) {
+                tasks.add(task);
+                task = queue.poll();
+            }
+            synchronized (running) {
+                for (Thread thread : running) {
+                    thread.interrupt();
+                }
+            }
+            terminateIfDone();
+            return tasks;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return terminated.getCount() == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return terminated.await(timeout, unit);
+        }
+
+        /**
+         * Run queued tasks while permits are free. This is called when a task
+         * is queued and when a task ends. So, a task is never left in the
+         * queue with a free permit.
+         */
+        private void dispatch() {
+            while (!queue.isEmpty() && permits.tryAcquire()) {
+                // The task is active before it is taken from the queue. So,
+                // shutdownNow() doesn't release the pool before it runs.
+                active.incrementAndGet();
+                final Runnable task = queue.poll();
+                if (task == null) {
+                    active.decrementAndGet();
+                    permits.release();
+                    terminateIfDone();
+                    continue;
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Thread thread = Thread.currentThread();
+                        synchronized (running) {
+                            running.add(thread);
+                        }
+                        try {
+                            task.run();
+                        } finally {
+                            synchronized (running) {
+                                running.remove(thread);
+                            }
+                            active.decrementAndGet();
+                            permits.release();
+                            dispatch();
+                            terminateIfDone();
+                        }
+                    }
+                });
+            }
+        }
+
+        private void terminateIfDone() {
+            if (shutdown && queue.isEmpty() && active.get() == 0 && released.compareAndSet(false, true)) {
+                releaseSharedPool(threads);
+                terminated.countDown();
+            }
+        }
+    }
+
+    /**
+     * @return Thread.ofVirtual().factory() or null before Java 21.
+     */
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.embulk.decoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of a decoder task.
+ *
+ * Counters are updated by a thread which decodes data. This is the task
+ * thread or the read-ahead thread. Fields are volatile because JMX and
+ * the periodic logging read them from other threads.
+ *
+ * Decode time is the time in nextFile() and poll() of
+ * CommonsCompressFileInput except the time blocked on the upstream
+ * FileInput. So, it includes reading headers, decompression and copying
+ * data to buffers.
+ */
+class DecoderMetrics implements DecoderMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(DecoderMetrics.class);
+    private static final String OBJECT_NAME_PREFIX = "org.embulk.decoder:type=CommonsCompressDecoder,name=task-";
+    private static final AtomicInteger taskCount = new AtomicInteger();
+
+    private volatile EntryStats entryStats;
+    private volatile long inputFiles = 0;
+    private volatile long compressedBytes = 0;
+    private volatile long upstreamReadNanos = 0;
+    private volatile long decompressedBytes = 0;
+    private volatile long buffers = 0;
+    private volatile long decoderNanos = 0;
+
+    private boolean reporting = false;
+    private ScheduledExecutorService logScheduler;
+    private ObjectName objectName;
+
+    DecoderMetrics() {
+        this(new EntryStats());
+    }
+
+    DecoderMetrics(EntryStats entryStats) {
+        this.entryStats = entryStats;
+    }
+
+    /**
+     * Report counters of archive entries updated by a provider.
+     */
+    void setEntryStats(EntryStats entryStats) {
+        this.entryStats = entryStats;
+    }
+
+    void fileOpened() {
+        inputFiles++;
+    }
+
+    void addUpstreamRead(long bytes, long nanos) {
+        compressedBytes += bytes;
+        upstreamReadNanos += nanos;
+    }
+
+    void addDecoded(long bytes, long nanos) {
+        if (bytes > 0) {
+            decompressedBytes += bytes;
+            buffers++;
+        }
+        decoderNanos += nanos;
+    }
+
+    /**
+     * Start to report metrics. Metrics are always logged by close().
+     *
+     * @param logIntervalSeconds log metrics in this interval too. 0 or less
+     * disables the periodic logging.
+     * @param jmx register this to the platform MBeanServer.
+     */
+    DecoderMetrics startReporting(int logIntervalSeconds, boolean jmx) {
+        reporting = true;
+        if (jmx) {
+            registerMBean();
+        }
+        if (logIntervalSeconds > 0) {
+            logScheduler = DecoderExecutors.newScheduler("metrics");
+            logScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    logger.info("Decoding: {}", DecoderMetrics.this);
+                }
+            }, logIntervalSeconds, logIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Log metrics and stop reporting. This does nothing if reporting is not
+     * started.
+     */
+    void close() {
+        if (!reporting) {
+            return;
+        }
+        reporting = false;
+        if (logScheduler != null) {
+            logScheduler.shutdownNow();
+            logScheduler = null;
+        }
+        if (objectName != null) {
+            unregisterMBean();
+        }
+        logger.info("Decoded: {}", this);
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    private void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + taskCount.incrementAndGet());
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            // Metrics are not required to decode data.
+            logger.warn("Failed to register decoder metrics to JMX.", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister decoder metrics from JMX.", e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getInputFiles() {
+        return inputFiles;
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public long getDecompressedBytes() {
+        return decompressedBytes;
+    }
+
+    @Override
+    public long getBuffers() {
+        return buffers;
+    }
+
+    @Override
+    public long getEntriesSeen() {
+        return entryStats.getMatchedEntries() + entryStats.getSkippedEntries();
+    }
+
+    @Override
+    public long getEntriesMatched() {
+        return entryStats.getMatchedEntries();
+    }
+
+    @Override
+    public long getEntriesSkipped() {
+        return entryStats.getSkippedEntries();
+    }
+
+    @Override
+    public long getUpstreamReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(upstreamReadNanos);
+    }
+
+    @Override
+    public long getDecodeMillis() {
+        // Upstream reads are called in decoder calls.
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, decoderNanos - upstreamReadNanos));
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long compressed = compressedBytes;
+        return compressed > 0 ? (double) decompressedBytes / compressed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("input files: %d, compressed bytes: %d, decompressed bytes: %d, "
+                + "compression ratio: %.2f, buffers: %d, entries seen: %d, entries matched: %d, "
+                + "entries skipped: %d, skipped bytes: %d, upstream read: %d ms, decode: %d ms",
+                inputFiles, compressedBytes, decompressedBytes, getCompressionRatio(), buffers,
+                getEntriesSeen(), getEntriesMatched(), getEntriesSkipped(),
+                entryStats.getSkippedBytes(), getUpstreamReadMillis(), getDecodeMillis());
+    }
+}
@@ -0,0 +1,51 @@
+package org.embulk.decoder;
+
+/**
+ * Metrics of a decoder task exposed through JMX.
+ *
+ * Beans are registered as
+ * org.embulk.decoder:type=CommonsCompressDecoder,name=task-N
+ * when metrics_jmx is true.
+ */
+public interface DecoderMetricsMXBean {
+    /**
+     * @return the number of files read from the file input plugin.
+     */
+    long getInputFiles();
+
+    /**
+     * @return bytes read from the file input plugin.
+     */
+    long getCompressedBytes();
+
+    /**
+     * @return bytes passed to a parser.
+     */
+    long getDecompressedBytes();
+
+    /**
+     * @return the number of buffers passed to a parser.
+     */
+    long getBuffers();
+
+    long getEntriesSeen();
+
+    long getEntriesMatched();
+
+    long getEntriesSkipped();
+
+    /**
+     * @return milliseconds blocked on reading the file input plugin.
+     */
+    long getUpstreamReadMillis();
+
+    /**
+     * @return milliseconds spent to decode data except upstream reads.
+     */
+    long getDecodeMillis();
+
+    /**
+     * @return decompressed bytes / compressed bytes. 0 if nothing is read.
+     */
+    double getCompressionRatio();
+}
@@ -0,0 +1,125 @@
+package org.embulk.decoder;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.zip.Inflater;
+
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
+
+/**
+ * Decoder state reused across files in a task.
+ *
+ * Creating Inflater, input buffers and xz dictionaries for each small file
+ * makes many short-lived objects. Streams borrow them from this pool and
+ * return them at the end of a stream or by close(). A provider owns a pool
+ * and releases everything by close().
+ *
+ * Methods are synchronized because parallel formats use a pool on worker
+ * threads.
+ */
+class DecoderPool implements Closeable {
+    static final int DEFAULT_MAX_IDLE = 8;
+
+    private final int maxIdle;
+    private final Deque<Inflater> rawInflaters = new ArrayDeque<>();
+    private final Deque<Inflater> zlibInflaters = new ArrayDeque<>();
+    private final Deque<byte[]> buffers = new ArrayDeque<>();
+    private final ArrayCache arrayCache;
+    private boolean closed = false;
+    private long reused = 0;
+
+    DecoderPool() {
+        this(DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param maxIdle the maximum number of objects kept for each kind.
+     * 0 disables pooling.
+     */
+    DecoderPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+        this.arrayCache = maxIdle > 0 ? new BasicArrayCache() : ArrayCache.getDummyCache();
+    }
+
+    /**
+     * @return a pool which doesn't keep anything. Used by streams created
+     * without a provider.
+     */
+    static DecoderPool unpooled() {
+        return new DecoderPool(0);
+    }
+
+    /**
+     * @param nowrap the same as Inflater(boolean).
+     */
+    synchronized Inflater borrowInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? rawInflaters : zlibInflaters).poll();
+        if (inflater == null) {
+            return new Inflater(nowrap);
+        }
+        reused++;
+        return inflater;
+    }
+
+    synchronized void releaseInflater(Inflater inflater, boolean nowrap) {
+        Deque<Inflater> idle = nowrap ? rawInflaters : zlibInflaters;
+        if (closed || idle.size() >= maxIdle) {
+            inflater.end();
+        } else {
+            inflater.reset();
+            idle.push(inflater);
+        }
+    }
+
+    /**
+     * @return an array whose length is size. The contents are not cleared.
+     */
+    synchronized byte[] borrowBuffer(int size) {
+        for (Iterator<byte[]> it = buffers.iterator(); it.hasNext();) {
+            byte[] buffer = it.next();
+            if (buffer.length == size) {
+                it.remove();
+                reused++;
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    synchronized void releaseBuffer(byte[] buffer) {
+        if (!closed && buffers.size() < maxIdle) {
+            buffers.push(buffer);
+        }
+    }
+
+    /**
+     * @return a cache of xz dictionaries and buffers.
+     */
+    ArrayCache getArrayCache() {
+        return arrayCache;
+    }
+
+    /**
+     * @return the number of objects returned from idle objects.
+     */
+    synchronized long getReused() {
+        return reused;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Inflater inflater : rawInflaters) {
+            inflater.end();
+        }
+        for (Inflater inflater : zlibInflaters) {
+            inflater.end();
+        }
+        rawInflaters.clear();
+        zlibInflaters.clear();
+        buffers.clear();
+    }
+}
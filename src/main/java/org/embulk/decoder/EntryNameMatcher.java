@@ -0,0 +1,261 @@
+package org.embulk.decoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+/**
+ * Select entries in an archive by their names.
+ *
+ * Patterns are compiled once when a task starts. A regular expression like
+ * "data/.*" or ".*\.csv" and a glob like "*.csv" are checked by
+ * String.startsWith/endsWith/contains/equals without java.util.regex.
+ *
+ * A name is matched when it matches match_name, one of include patterns
+ * and none of exclude patterns. Empty conditions match all names.
+ */
+final class EntryNameMatcher {
+    static final String GLOB_PREFIX = "glob:";
+    static final String REGEX_PREFIX = "regex:";
+
+    private static final EntryNameMatcher ALL = new EntryNameMatcher(
+            null, Collections.<Matcher>emptyList(), Collections.<Matcher>emptyList());
+
+    private final Matcher matchName;
+    private final List<Matcher> includes;
+    private final List<Matcher> excludes;
+
+    private EntryNameMatcher(Matcher matchName, List<Matcher> includes, List<Matcher> excludes) {
+        this.matchName = matchName;
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @param matchRegex a regular expression of match_name.
+     */
+    static EntryNameMatcher of(String matchRegex) {
+        return of(matchRegex, null, null);
+    }
+
+    /**
+     * @param matchRegex a regular expression of match_name.
+     * @param includes patterns of include_names. A pattern starts with "glob:"
+     * is a glob. Otherwise, it is a regular expression.
+     * @param excludes patterns of exclude_names. The syntax is the same as
+     * includes.
+     */
+    static EntryNameMatcher of(String matchRegex, List<String> includes, List<String> excludes) {
+        Matcher matchName = isEmpty(matchRegex) ? null : compileRegex(matchRegex);
+        List<Matcher> includeMatchers = compileAll(includes);
+        List<Matcher> excludeMatchers = compileAll(excludes);
+        if (matchName == null && includeMatchers.isEmpty() && excludeMatchers.isEmpty()) {
+            return ALL;
+        }
+        return new EntryNameMatcher(matchName, includeMatchers, excludeMatchers);
+    }
+
+    boolean matches(ArchiveEntry entry) {
+        return matches(entry.getName());
+    }
+
+    boolean matches(String name) {
+        if (this == ALL) {
+            return true;
+        } else if (name == null) {
+            return false;
+        } else if (matchName != null && !matchName.matches(name)) {
+            return false;
+        } else if (!includes.isEmpty() && !matchesAny(includes, name)) {
+            return false;
+        }
+        return !matchesAny(excludes, name);
+    }
+
+    private static boolean matchesAny(List<Matcher> matchers, String name) {
+        for (Matcher matcher : matchers) {
+            if (matcher.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Matcher> compileAll(List<String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Matcher> matchers = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            if (pattern.startsWith(GLOB_PREFIX)) {
+                matchers.add(compileGlob(pattern.substring(GLOB_PREFIX.length())));
+            } else if (pattern.startsWith(REGEX_PREFIX)) {
+                matchers.add(compileRegex(pattern.substring(REGEX_PREFIX.length())));
+            } else {
+                matchers.add(compileRegex(pattern));
+            }
+        }
+        return matchers;
+    }
+
+    /**
+     * Compile a regular expression. Literals with ".*" at the beginning
+     * and/or the end use a fast path.
+     */
+    static Matcher compileRegex(String regex) {
+        int start = 0;
+        int end = regex.length();
+        boolean anyPrefix = false;
+        boolean anySuffix = false;
+        if (regex.startsWith("^")) {
+            start++;
+        }
+        if (regex.endsWith("$") && !isEscaped(regex, end - 1)) {
+            end--;
+        }
+        if (regex.startsWith(".*", start)) {
+            anyPrefix = true;
+            start += 2;
+        }
+        if (end - start >= 2 && regex.startsWith(".*", end - 2) && !isEscaped(regex, end - 2)) {
+            anySuffix = true;
+            end -= 2;
+        }
+
+        String literal = unescapeRegexLiteral(regex, start, end);
+        if (literal == null) {
+            return new RegexMatcher(Pattern.compile(regex));
+        }
+        return newLiteralMatcher(literal, anyPrefix, anySuffix);
+    }
+
+    /**
+     * Compile a glob. "*" matches any characters including "/" and "?"
+     * matches a character.
+     */
+    static Matcher compileGlob(String glob) {
+        int start = 0;
+        int end = glob.length();
+        boolean anyPrefix = false;
+        boolean anySuffix = false;
+        if (glob.startsWith("*")) {
+            anyPrefix = true;
+            start++;
+        }
+        if (end > start && glob.charAt(end - 1) == '*') {
+            anySuffix = true;
+            end--;
+        }
+
+        String middle = glob.substring(start, end);
+        if (middle.indexOf('*') < 0 && middle.indexOf('?') < 0) {
+            return newLiteralMatcher(middle, anyPrefix, anySuffix);
+        }
+        return new RegexMatcher(Pattern.compile(globToRegex(glob)));
+    }
+
+    private static Matcher newLiteralMatcher(final String literal, boolean anyPrefix, boolean anySuffix) {
+        if (anyPrefix && anySuffix) {
+            return new Matcher() {
+                @Override
+                public boolean matches(String name) {
+                    return name.contains(literal);
+                }
+            };
+        } else if (anyPrefix) {
+            return new Matcher() {
+                @Override
+                public boolean matches(String name) {
+                    return name.endsWith(literal);
+                }
+            };
+        } else if (anySuffix) {
+            return new Matcher() {
+                @Override
+                public boolean matches(String name) {
+                    return name.startsWith(literal);
+                }
+            };
+        }
+        return new Matcher() {
+            @Override
+            public boolean matches(String name) {
+                return name.equals(literal);
+            }
+        };
+    }
+
+    /**
+     * @return a literal string. Otherwise, null if regex[start, end) has
+     * meta characters.
+     */
+    private static String unescapeRegexLiteral(String regex, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                // Only escaped symbols like "\." are literals. "\d" and "\Q" are not.
+                if (i + 1 >= end || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                sb.append(regex.charAt(++i));
+            } else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isEscaped(String s, int pos) {
+        int backslashes = 0;
+        for (int i = pos - 1; i >= 0 && s.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literalStart < i) {
+                    sb.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                sb.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            sb.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.isEmpty();
+    }
+
+    interface Matcher {
+        boolean matches(String name);
+    }
+
+    private static class RegexMatcher implements Matcher {
+        private final Pattern pattern;
+
+        RegexMatcher(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public boolean matches(String name) {
+            return pattern.matcher(name).matches();
+        }
+    }
+}
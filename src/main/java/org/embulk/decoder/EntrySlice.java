@@ -0,0 +1,61 @@
+package org.embulk.decoder;
+
+/**
+ * Select a part of files and entries so that slice_count jobs decode the
+ * same input together. Each job sets a different slice_index.
+ *
+ * Files and entries are numbered in the order they appear, and the n-th one
+ * belongs to the slice n % slice_count. Every job reads the same input in
+ * the same order, so each file or entry is decoded by exactly one job.
+ * Entries in other slices are skipped without decoding like entries which
+ * don't match to match_name.
+ *
+ * This is not thread safe. A task has its own instance.
+ */
+final class EntrySlice {
+    static final EntrySlice ALL = new EntrySlice(1, 0);
+
+    private final int count;
+    private final int index;
+    private long ordinal = 0;
+
+    private EntrySlice(int count, int index) {
+        this.count = count;
+        this.index = index;
+    }
+
+    /**
+     * @param count slice_count. 1 or less means all files and entries.
+     * @param index slice_index from 0 to count - 1.
+     */
+    static EntrySlice of(int count, int index) {
+        if (count <= 1) {
+            return ALL;
+        } else if (index < 0 || index >= count) {
+            throw new RuntimeException("slice_index must be from 0 to " + (count - 1) + ". slice_index:" + index);
+        }
+        return new EntrySlice(count, index);
+    }
+
+    /**
+     * Call this once for each file or entry in order.
+     *
+     * @return true if the next file or entry belongs to this slice.
+     */
+    boolean next() {
+        if (count == 1) {
+            return true;
+        }
+        boolean selected = ordinal % count == index;
+        ordinal++;
+        return selected;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getIndex() {
+        return index;
+    }
+}
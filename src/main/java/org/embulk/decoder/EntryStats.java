@@ -0,0 +1,87 @@
+package org.embulk.decoder;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counters of archive entries processed by a task.
+ *
+ * Skipped bytes are the uncompressed sizes of entries which are not matched.
+ * Archive streams skip them by skip() of the underlying stream when
+ * possible. Decoded bytes are the bytes read from matched entries.
+ *
+ * Only a decoding thread updates counters. They are volatile because
+ * DecoderMetrics reads them from other threads.
+ */
+class EntryStats {
+    private volatile long matchedEntries = 0;
+    private volatile long skippedEntries = 0;
+    private volatile long skippedBytes = 0;
+    private volatile long decodedBytes = 0;
+
+    void entryMatched() {
+        matchedEntries++;
+    }
+
+    /**
+     * @param size the size of an entry. A negative value means unknown.
+     */
+    void entrySkipped(long size) {
+        skippedEntries++;
+        if (size > 0) {
+            skippedBytes += size;
+        }
+    }
+
+    void addDecodedBytes(long bytes) {
+        decodedBytes += bytes;
+    }
+
+    long getMatchedEntries() {
+        return matchedEntries;
+    }
+
+    long getSkippedEntries() {
+        return skippedEntries;
+    }
+
+    long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    /**
+     * Wrap a stream of a matched entry to count decoded bytes.
+     */
+    InputStream countDecodedBytes(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    decodedBytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    decodedBytes += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "matched entries: " + matchedEntries + ", skipped entries: " + skippedEntries
+                + ", decoded bytes: " + decodedBytes + ", skipped bytes: " + skippedBytes;
+    }
+}
@@ -0,0 +1,211 @@
+package org.embulk.decoder;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verify checksums of entries in archives and compute their digests while
+ * a parser reads them. Entries are neither buffered nor read twice.
+ *
+ * gzip, bzip2, xz and 7z data is verified by their decoders. zip entries
+ * are verified here because ZipArchiveInputStream and ZipFile don't check
+ * CRC32 of data. java.util.zip.CRC32 is a HotSpot intrinsic which uses CPU
+ * instructions like CLMUL.
+ *
+ * A checksum and a digest are checked at the end of an entry. An entry
+ * which a parser doesn't read to the end is not verified. ZipArchiveInputStream
+ * reads CRC32 in a data descriptor after the end of data. So, such an entry
+ * is verified by verifyPending() after the archive moves to the next entry.
+ */
+class EntryVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(EntryVerifier.class);
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    private final boolean verifyChecksums;
+    private final String digestAlgorithm;
+    private final List<VerifyingInputStream> pending = new ArrayList<>();
+
+    /**
+     * @param digestAlgorithm an algorithm of MessageDigest like "SHA-256".
+     * null or an empty string disables digests.
+     */
+    EntryVerifier(boolean verifyChecksums, String digestAlgorithm) {
+        this.verifyChecksums = verifyChecksums;
+        this.digestAlgorithm = (digestAlgorithm == null || digestAlgorithm.isEmpty()) ? null : digestAlgorithm;
+        if (this.digestAlgorithm != null) {
+            // Check the algorithm before reading files.
+            newDigest();
+        }
+    }
+
+    boolean isEnabled() {
+        return verifyChecksums || digestAlgorithm != null;
+    }
+
+    /**
+     * @param entry an entry of in.
+     * @return in itself if nothing is verified.
+     */
+    InputStream wrap(ArchiveEntry entry, InputStream in) {
+        if (!isEnabled() || entry == null) {
+            return in;
+        }
+        boolean crc = verifyChecksums && entry instanceof ZipArchiveEntry;
+        if (!crc && digestAlgorithm == null) {
+            return in;
+        }
+        return new VerifyingInputStream(in, entry, crc ? new CRC32() : null,
+                digestAlgorithm == null ? null : newDigest());
+    }
+
+    /**
+     * Verify entries whose CRC32 was unknown at the end of their data. Call
+     * this after an iterator moves to the next entry.
+     */
+    void verifyPending() throws IOException {
+        Iterator<VerifyingInputStream> it = pending.iterator();
+        while (it.hasNext()) {
+            VerifyingInputStream in = it.next();
+            if (in.getExpectedCrc() >= 0) {
+                it.remove();
+                in.verifyCrc();
+            }
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unsupported entry_digest: " + digestAlgorithm, e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private class VerifyingInputStream extends FilterInputStream {
+        private final ArchiveEntry entry;
+        private final CRC32 crc;
+        private final MessageDigest digest;
+        private long bytes = 0;
+        private boolean finished = false;
+
+        VerifyingInputStream(InputStream in, ArchiveEntry entry, CRC32 crc, MessageDigest digest) {
+            super(in);
+            this.entry = entry;
+            this.crc = crc;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                finish();
+                return b;
+            }
+            if (crc != null) {
+                crc.update(b);
+            }
+            if (digest != null) {
+                digest.update((byte) b);
+            }
+            bytes++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                finish();
+                return n;
+            }
+            if (crc != null) {
+                crc.update(b, off, n);
+            }
+            if (digest != null) {
+                digest.update(b, off, n);
+            }
+            bytes += n;
+            return n;
+        }
+
+        /**
+         * Skipped data is read to compute checksums.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            byte[] buffer = new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (digest != null) {
+                logger.info("Entry digest: name={}, size={}, {}={}",
+                        entry.getName(), bytes, digestAlgorithm, toHex(digest.digest()));
+            }
+            if (crc != null) {
+                if (getExpectedCrc() < 0) {
+                    pending.add(this);
+                } else {
+                    verifyCrc();
+                }
+            }
+        }
+
+        /**
+         * @return -1 if CRC32 is unknown yet.
+         */
+        long getExpectedCrc() {
+            return ((ZipArchiveEntry) entry).getCrc();
+        }
+
+        void verifyCrc() throws IOException {
+            long expected = getExpectedCrc();
+            if (expected != crc.getValue()) {
+                throw new IOException(String.format(
+                        "CRC32 mismatch in entry %s at offset %d. expected: %08x, actual: %08x",
+                        entry.getName(), bytes, expected, crc.getValue()));
+            }
+        }
+    }
+}
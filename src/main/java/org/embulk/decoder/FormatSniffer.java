@@ -0,0 +1,166 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/**
+ * Detect a format by magic bytes in a prefix of a stream.
+ *
+ * A prefix is read only once with mark/reset and compared with all known
+ * magic bytes. ArchiveStreamFactory and CompressorStreamFactory detect
+ * formats by separate probes. So, this is used before them, and they are
+ * used only for formats which are not listed here.
+ *
+ * Files in a task usually have the same format. So, the format found last
+ * time is compared first.
+ */
+class FormatSniffer {
+    // A tar header is the largest prefix to check.
+    static final int PREFIX_SIZE = 512;
+
+    private static final Signature[] ARCHIVE_SIGNATURES = {
+        new Signature(ArchiveStreamFactory.ZIP, 0, 'P', 'K', 0x03, 0x04),
+        new Signature(ArchiveStreamFactory.SEVEN_Z, 0, '7', 'z', 0xbc, 0xaf, 0x27, 0x1c),
+        new Signature(ArchiveStreamFactory.AR, 0, '!', '<', 'a', 'r', 'c', 'h', '>', '\n'),
+        new Signature(ArchiveStreamFactory.ARJ, 0, 0x60, 0xea),
+        new Signature(ArchiveStreamFactory.CPIO, 0, '0', '7', '0', '7', '0', '1'),
+        new Signature(ArchiveStreamFactory.CPIO, 0, '0', '7', '0', '7', '0', '2'),
+        new Signature(ArchiveStreamFactory.CPIO, 0, '0', '7', '0', '7', '0', '7'),
+        // POSIX and GNU tar headers have "ustar" at 257.
+        new Signature(ArchiveStreamFactory.TAR, 257, 'u', 's', 't', 'a', 'r'),
+    };
+
+    private static final Signature[] COMPRESSOR_SIGNATURES = {
+        new Signature(CompressorStreamFactory.GZIP, 0, 0x1f, 0x8b),
+        new Signature(CompressorStreamFactory.BZIP2, 0, 'B', 'Z', 'h'),
+        new Signature(CompressorStreamFactory.XZ, 0, 0xfd, '7', 'z', 'X', 'Z', 0x00),
+        new Signature(CompressorStreamFactory.Z, 0, 0x1f, 0x9d),
+        new Signature(CompressorStreamFactory.SNAPPY_FRAMED, 0, 0xff, 0x06, 0x00, 0x00, 's', 'N', 'a', 'P', 'p', 'Y'),
+        new Signature(CompressorStreamFactory.ZSTANDARD, 0, 0x28, 0xb5, 0x2f, 0xfd),
+        new Signature(CompressorStreamFactory.LZ4_FRAMED, 0, 0x04, 0x22, 0x4d, 0x18),
+    };
+
+    private final byte[] prefix = new byte[PREFIX_SIZE];
+    private int length;
+    private Signature last;
+    private long hits = 0;
+
+    /**
+     * @param in a stream which supports mark. The position is not changed.
+     * @return an archive or a compressor format. null if the format is not
+     * known.
+     */
+    String sniff(InputStream in) throws IOException {
+        readPrefix(in);
+        if (last != null && last.matches(prefix, length)) {
+            hits++;
+            return last.format;
+        }
+        String format = find(ARCHIVE_SIGNATURES);
+        if (format == null) {
+            format = find(COMPRESSOR_SIGNATURES);
+        }
+        return format;
+    }
+
+    /**
+     * Detect an archive format in a decompressed stream like tar in tar.gz.
+     *
+     * @param in a stream which supports mark. The position is not changed.
+     * @return an archive format. null if it is not an archive.
+     */
+    String sniffArchive(InputStream in) throws IOException {
+        readPrefix(in);
+        for (Signature signature : ARCHIVE_SIGNATURES) {
+            if (signature.matches(prefix, length)) {
+                return signature.format;
+            }
+        }
+        return isOldTar() ? ArchiveStreamFactory.TAR : null;
+    }
+
+    String getLastFormat() {
+        return last != null ? last.format : null;
+    }
+
+    /**
+     * @return the number of files which matched the format found last time.
+     */
+    long getHits() {
+        return hits;
+    }
+
+    private String find(Signature[] signatures) {
+        for (Signature signature : signatures) {
+            if (signature.matches(prefix, length)) {
+                last = signature;
+                return signature.format;
+            }
+        }
+        // Old tar files don't have magic bytes. They are not remembered
+        // because checking a checksum is not cheaper than this.
+        if (signatures == ARCHIVE_SIGNATURES && isOldTar()) {
+            return ArchiveStreamFactory.TAR;
+        }
+        return null;
+    }
+
+    private boolean isOldTar() {
+        if (length < PREFIX_SIZE) {
+            return false;
+        }
+        try {
+            return TarUtils.verifyCheckSum(prefix);
+        } catch (IllegalArgumentException e) {
+            // The checksum field is not an octal number.
+            return false;
+        }
+    }
+
+    private void readPrefix(InputStream in) throws IOException {
+        in.mark(PREFIX_SIZE);
+        try {
+            length = 0;
+            while (length < PREFIX_SIZE) {
+                int n = in.read(prefix, length, PREFIX_SIZE - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static class Signature {
+        private final String format;
+        private final int offset;
+        private final byte[] magic;
+
+        Signature(String format, int offset, int... magic) {
+            this.format = format;
+            this.offset = offset;
+            this.magic = new byte[magic.length];
+            for (int i = 0; i < magic.length; i++) {
+                this.magic[i] = (byte) magic[i];
+            }
+        }
+
+        boolean matches(byte[] prefix, int length) {
+            if (length < offset + magic.length) {
+                return false;
+            }
+            for (int i = 0; i < magic.length; i++) {
+                if (prefix[offset + i] != magic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
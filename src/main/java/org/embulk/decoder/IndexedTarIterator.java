@@ -0,0 +1,507 @@
+package org.embulk.decoder;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterate entries of a tar or tar.gz file with an ArchiveIndex in index_dir.
+ *
+ * When there is no index for a file, entries are read in order and the
+ * index is written at the end of the archive. When there is an index, only
+ * matched entries are read. The iterator skips to the header of each matched
+ * entry. Inflater is restarted at a gzip member when the member is ahead of
+ * compressed data already read. Otherwise, data is decompressed and
+ * discarded. The rest of the file after the last matched entry is skipped
+ * without decompression, and the length of the file is checked with the
+ * index. So, a file with the same prefix and more entries than the indexed
+ * one isn't read as if it had no entries after the last matched one.
+ *
+ * The header at each offset is checked with the name and the size in the
+ * index. When they are different, the data before it is already skipped.
+ * So, the index is deleted and an IOException is thrown. It is also thrown
+ * when the length of the file is different at the end.
+ */
+class IndexedTarIterator implements ArchiveEntryIterator, Closeable {
+    static final long DEFAULT_RESTART_INTERVAL = 1024 * 1024;
+    private static final int RECORD_SIZE = 512;
+    private static final Logger logger = LoggerFactory.getLogger(IndexedTarIterator.class);
+
+    private final CompressedInputStream compressed;
+    private final boolean gzip;
+    private final DecoderPool pool;
+    private final EntryNameMatcher matcher;
+    private final EntrySlice slice;
+    private final EntryStats stats;
+    private final Path indexFile;
+    private final ArchiveIndex index;
+    private final boolean building;
+    private final long restartInterval;
+
+    private InputStream decompressed;
+    private long position = 0;
+    private final InputStream uncompressed = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            int b = decompressed.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = decompressed.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = decompressed.skip(n);
+            if (skipped > 0) {
+                position += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            // Entries are not closed. The iterator closes the stream.
+        }
+    };
+
+    private TarArchiveInputStream tar;
+    private long nextHeaderOffset = 0;
+    private boolean indexable = true;
+    private int nextEntry = 0;
+
+    private InputStream entry;
+    private TarArchiveEntry tarEntry;
+    private TarArchiveEntry currentEntry;
+    private boolean endOfArchive = false;
+
+    private IndexedTarIterator(CompressedInputStream compressed, boolean gzip, DecoderPool pool,
+            EntryNameMatcher matcher, EntrySlice slice, EntryStats stats, Path indexFile, ArchiveIndex index,
+            boolean building, long restartInterval) {
+        this.compressed = compressed;
+        this.gzip = gzip;
+        this.pool = pool;
+        this.matcher = matcher;
+        this.slice = slice;
+        this.stats = stats;
+        this.indexFile = indexFile;
+        this.index = index;
+        this.building = building;
+        this.restartInterval = restartInterval;
+    }
+
+    /**
+     * Read the first bytes of a file to find its index.
+     *
+     * @param formats formats which ArchiveIndex.isSupported() accepts.
+     * @param indexDir a directory of index files.
+     */
+    static IndexedTarIterator open(InputStream in, String[] formats, Path indexDir, DecoderPool pool,
+            EntryNameMatcher matcher, EntryStats stats) throws IOException {
+        return open(in, formats, indexDir, pool, matcher, EntrySlice.ALL, stats, DEFAULT_RESTART_INTERVAL);
+    }
+
+    /**
+     * @param slice selects matched entries. Indexed entries in other slices
+     * are skipped without seeking to them.
+     */
+    static IndexedTarIterator open(InputStream in, String[] formats, Path indexDir, DecoderPool pool,
+            EntryNameMatcher matcher, EntrySlice slice, EntryStats stats) throws IOException {
+        return open(in, formats, indexDir, pool, matcher, slice, stats, DEFAULT_RESTART_INTERVAL);
+    }
+
+    /**
+     * @param restartInterval the minimum distance of restart points in
+     * uncompressed bytes when an index is built.
+     */
+    static IndexedTarIterator open(InputStream in, String[] formats, Path indexDir, DecoderPool pool,
+            EntryNameMatcher matcher, EntrySlice slice, EntryStats stats, long restartInterval)
+            throws IOException {
+        byte[] prefix = new byte[ArchiveIndex.KEY_PREFIX_SIZE];
+        int length = IOUtils.readFully(in, prefix);
+        String key = ArchiveIndex.createKey(formats, prefix, length);
+        Path indexFile = ArchiveIndex.getPath(indexDir, key);
+
+        ArchiveIndex index;
+        try {
+            index = ArchiveIndex.read(indexFile, key);
+        } catch (IOException e) {
+            logger.warn("Ignored a broken index file: " + indexFile, e);
+            index = null;
+        }
+        boolean building = index == null;
+        if (building) {
+            index = new ArchiveIndex(key);
+        }
+        return new IndexedTarIterator(new CompressedInputStream(prefix, length, in),
+                ArchiveIndex.isCompressed(formats), pool, matcher, slice, stats, indexFile, index, building,
+                restartInterval);
+    }
+
+    boolean isBuilding() {
+        return building;
+    }
+
+    @Override
+    public EntryStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public ArchiveEntry getCurrentEntry() {
+        return currentEntry;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return checkNext();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public InputStream next() {
+        try {
+            if (!checkNext()) {
+                return null;
+            }
+            InputStream next = entry;
+            currentEntry = tarEntry;
+            entry = null;
+            return next;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        endOfArchive = true;
+        closeDecompressed();
+    }
+
+    private boolean checkNext() throws IOException {
+        if (endOfArchive) {
+            return false;
+        } else if (entry != null) {
+            return true;
+        }
+
+        entry = building ? nextEntryToIndex() : nextIndexedEntry();
+        if (entry == null) {
+            endOfArchive = true;
+            return false;
+        }
+        return true;
+    }
+
+    private InputStream nextEntryToIndex() throws IOException {
+        if (tar == null) {
+            openDecompressed();
+            tar = new TarArchiveInputStream(uncompressed);
+        }
+        while (true) {
+            long headerOffset = nextHeaderOffset;
+            TarArchiveEntry e = tar.getNextEntry();
+            if (e == null) {
+                index.setLength(readToEnd());
+                writeIndex();
+                return null;
+            }
+            // The header is read. So, the position is the start of data.
+            nextHeaderOffset = align(position + e.getSize());
+            if (e.isSparse()) {
+                indexable = false;
+            }
+
+            if (e.isDirectory()) {
+                continue;
+            }
+            index.addEntry(e.getName(), headerOffset, e.getSize());
+            if (!matcher.matches(e) || !slice.next()) {
+                stats.entrySkipped(e.getSize());
+                continue;
+            }
+            stats.entryMatched();
+            tarEntry = e;
+            return stats.countDecodedBytes(tar);
+        }
+    }
+
+    private InputStream nextIndexedEntry() throws IOException {
+        List<ArchiveIndex.Entry> entries = index.getEntries();
+        while (nextEntry < entries.size()) {
+            ArchiveIndex.Entry indexed = entries.get(nextEntry++);
+            if (!matcher.matches(indexed.name) || !slice.next()) {
+                stats.entrySkipped(indexed.size);
+                continue;
+            }
+
+            TarArchiveEntry e;
+            TarArchiveInputStream entryTar;
+            try {
+                seek(indexed.headerOffset);
+                entryTar = new TarArchiveInputStream(uncompressed);
+                e = entryTar.getNextEntry();
+            } catch (EOFException ex) {
+                throw mismatch(ex);
+            }
+            if (e == null || !indexed.name.equals(e.getName()) || indexed.size != e.getSize()) {
+                throw mismatch(null);
+            }
+            stats.entryMatched();
+            tarEntry = e;
+            return stats.countDecodedBytes(entryTar);
+        }
+        checkLength();
+        return null;
+    }
+
+    /**
+     * Read the rest of the file after the end of the archive.
+     *
+     * @return the length of the file.
+     */
+    private long readToEnd() throws IOException {
+        // The position of the file includes data buffered by Inflater.
+        closeDecompressed();
+        // Padding of the last block and the gzip trailer are discarded.
+        byte[] buffer = new byte[RECORD_SIZE];
+        int n = 0;
+        while (n >= 0) {
+            n = compressed.read(buffer);
+        }
+        return compressed.getPosition();
+    }
+
+    /**
+     * Skip the rest of the file and check that its length is the same as
+     * the indexed one. Entries after the last matched entry are not trusted
+     * without this because only the prefix of the file is in the key.
+     */
+    private void checkLength() throws IOException {
+        closeDecompressed();
+        long length = index.getLength();
+        try {
+            if (compressed.getPosition() < length) {
+                // skip() may go beyond the end of a file. So, the last byte
+                // is read.
+                compressed.skipTo(length - 1);
+                if (compressed.read() < 0) {
+                    throw new EOFException("The file is shorter than the indexed one.");
+                }
+            }
+        } catch (EOFException ex) {
+            throw mismatch(ex);
+        }
+        if (compressed.getPosition() != length || compressed.read() >= 0) {
+            throw mismatch(null);
+        }
+    }
+
+    private void seek(long offset) throws IOException {
+        if (offset < position) {
+            throw new EOFException("An entry is before the current position.");
+        }
+        if (gzip) {
+            ArchiveIndex.RestartPoint point = index.findRestartPoint(offset);
+            if (point != null && point.uncompressedOffset > position
+                    && point.compressedOffset >= compressed.getPosition()) {
+                closeDecompressed();
+                compressed.skipTo(point.compressedOffset);
+                position = point.uncompressedOffset;
+            }
+        }
+        if (decompressed == null) {
+            openDecompressed();
+        }
+
+        long remaining = offset - position;
+        while (remaining > 0) {
+            long skipped = uncompressed.skip(remaining);
+            if (skipped <= 0) {
+                if (uncompressed.read() < 0) {
+                    throw new EOFException("Unexpected end of the archive.");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private IOException mismatch(IOException cause) throws IOException {
+        Files.deleteIfExists(indexFile);
+        return new IOException("Index file " + indexFile
+                + " doesn't match the archive. It is deleted. Please run again.", cause);
+    }
+
+    private void openDecompressed() {
+        if (!gzip) {
+            decompressed = compressed;
+            return;
+        }
+        InflaterCompressorInputStream gz = InflaterCompressorInputStream.gzip(
+                compressed, true, InflaterCompressorInputStream.DEFAULT_BUFFER_SIZE, pool);
+        if (building) {
+            gz.setMemberListener(new InflaterCompressorInputStream.MemberListener() {
+                private long lastOffset = -1;
+
+                @Override
+                public void memberStarted(long compressedOffset, long uncompressedOffset) {
+                    if (lastOffset < 0 || uncompressedOffset - lastOffset >= restartInterval) {
+                        index.addRestartPoint(compressedOffset, uncompressedOffset);
+                        lastOffset = uncompressedOffset;
+                    }
+                }
+            });
+        }
+        decompressed = gz;
+    }
+
+    private void closeDecompressed() throws IOException {
+        if (decompressed != null && decompressed != compressed) {
+            // This returns Inflater to the pool. The file is not closed.
+            decompressed.close();
+        }
+        decompressed = null;
+    }
+
+    private void writeIndex() {
+        if (!indexable) {
+            logger.info("Sparse entries are not indexed: {}", indexFile);
+            return;
+        }
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            logger.warn("Failed to write an index file: " + indexFile, e);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    /**
+     * A stream of a file which reads the prefix read for the index key
+     * first. It counts the position and never closes the file. The file is
+     * not read again after its end.
+     */
+    private static class CompressedInputStream extends InputStream {
+        private final byte[] prefix;
+        private final int prefixLength;
+        private int prefixPosition = 0;
+        private final InputStream in;
+        private long position = 0;
+        private boolean endOfFile;
+
+        CompressedInputStream(byte[] prefix, int prefixLength, InputStream in) {
+            this.prefix = prefix;
+            this.prefixLength = prefixLength;
+            // The prefix is shorter than the buffer at the end of the file.
+            this.endOfFile = prefixLength < prefix.length;
+            this.in = in;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        void skipTo(long offset) throws IOException {
+            while (position < offset) {
+                if (skip(offset - position) <= 0) {
+                    if (read() < 0) {
+                        throw new EOFException("Unexpected end of the file.");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            if (prefixPosition < prefixLength) {
+                b = prefix[prefixPosition++] & 0xff;
+            } else if (endOfFile) {
+                return -1;
+            } else {
+                b = in.read();
+            }
+            if (b >= 0) {
+                position++;
+            } else {
+                endOfFile = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            if (prefixPosition < prefixLength) {
+                n = Math.min(len, prefixLength - prefixPosition);
+                System.arraycopy(prefix, prefixPosition, b, off, n);
+                prefixPosition += n;
+            } else if (endOfFile) {
+                return -1;
+            } else {
+                n = in.read(b, off, len);
+            }
+            if (n > 0) {
+                position += n;
+            } else if (n < 0) {
+                endOfFile = true;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped;
+            if (prefixPosition < prefixLength) {
+                skipped = Math.min(n, prefixLength - prefixPosition);
+                prefixPosition += (int) skipped;
+            } else if (endOfFile) {
+                return 0;
+            } else {
+                skipped = in.skip(n);
+            }
+            if (skipped > 0) {
+                position += skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            // The provider manages the file.
+        }
+    }
+}
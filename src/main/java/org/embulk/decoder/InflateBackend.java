@@ -0,0 +1,36 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * Decoder of gzip and deflate formats selected by inflate_backend.
+ *
+ * Other implementations like a native zlib binding can be added by
+ * java.util.ServiceLoader. Register a class in
+ * META-INF/services/org.embulk.decoder.InflateBackend and set its name to
+ * inflate_backend.
+ */
+public interface InflateBackend {
+    /**
+     * @return a name used by inflate_backend.
+     */
+    String getName();
+
+    /**
+     * @return false if this backend cannot be used in the current JVM.
+     * "auto" skips this backend.
+     */
+    boolean isAvailable();
+
+    CompressorInputStream createGzipInputStream(InputStream in, boolean decompressConcatenated)
+            throws IOException;
+
+    /**
+     * Create a stream for the deflate format of CompressorStreamFactory.
+     * It is zlib format which has a header and an Adler-32 checksum.
+     */
+    CompressorInputStream createDeflateInputStream(InputStream in) throws IOException;
+}
@@ -0,0 +1,119 @@
+package org.embulk.decoder;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * Built-in InflateBackend implementations and lookup by name.
+ */
+final class InflateBackends {
+    static final String COMMONS_COMPRESS = "commons_compress";
+    static final String JDK = "jdk";
+    static final String AUTO = "auto";
+
+    private InflateBackends() {
+    }
+
+    /**
+     * @return the jdk backend which borrows Inflaters and buffers from pool.
+     */
+    static InflateBackend jdk(DecoderPool pool) {
+        return jdk(pool, InflaterCompressorInputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the size to read compressed data at a time.
+     */
+    static InflateBackend jdk(final DecoderPool pool, final int bufferSize) {
+        return new InflateBackend() {
+            @Override
+            public String getName() {
+                return JDK;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public CompressorInputStream createGzipInputStream(InputStream in, boolean decompressConcatenated) {
+                return InflaterCompressorInputStream.gzip(in, decompressConcatenated, bufferSize, pool);
+            }
+
+            @Override
+            public CompressorInputStream createDeflateInputStream(InputStream in) {
+                return InflaterCompressorInputStream.zlib(in, bufferSize, pool);
+            }
+        };
+    }
+
+    static InflateBackend get(String name) {
+        return get(name, DecoderPool.unpooled());
+    }
+
+    /**
+     * Find a backend by inflate_backend.
+     *
+     * "auto" selects the first available backend registered by
+     * ServiceLoader. If there is no such backend, "jdk" is used.
+     *
+     * @param pool used by the jdk backend.
+     * @return null for commons_compress, which is the default. In this case,
+     * CompressorStreamFactory creates streams as before.
+     */
+    static InflateBackend get(String name, DecoderPool pool) {
+        return get(name, pool, 0);
+    }
+
+    /**
+     * @param bufferSize inflate_buffer_size for the jdk backend. 0 or less
+     * means the default size.
+     * @throws RuntimeException if bufferSize is less than
+     * InflaterCompressorInputStream.MIN_BUFFER_SIZE.
+     */
+    static InflateBackend get(String name, DecoderPool pool, int bufferSize) {
+        if (bufferSize <= 0) {
+            bufferSize = InflaterCompressorInputStream.DEFAULT_BUFFER_SIZE;
+        } else if (bufferSize < InflaterCompressorInputStream.MIN_BUFFER_SIZE) {
+            throw new RuntimeException("inflate_buffer_size must be 0 or "
+                    + InflaterCompressorInputStream.MIN_BUFFER_SIZE + " or more: " + bufferSize);
+        }
+        if (name == null || name.isEmpty() || COMMONS_COMPRESS.equals(name)) {
+            return null;
+        } else if (JDK.equals(name)) {
+            return jdk(pool, bufferSize);
+        }
+
+        Iterator<InflateBackend> backends = ServiceLoader.load(InflateBackend.class,
+                InflateBackends.class.getClassLoader()).iterator();
+        while (hasNextBackend(backends)) {
+            InflateBackend backend;
+            try {
+                backend = backends.next();
+            } catch (ServiceConfigurationError e) {
+                // A backend which fails to load like a missing native library is ignored.
+                continue;
+            }
+            if (AUTO.equals(name) ? backend.isAvailable() : name.equals(backend.getName())) {
+                return backend;
+            }
+        }
+        if (AUTO.equals(name)) {
+            return jdk(pool, bufferSize);
+        }
+        throw new RuntimeException("Unsupported inflate_backend: " + name);
+    }
+
+    private static boolean hasNextBackend(Iterator<InflateBackend> backends) {
+        try {
+            return backends.hasNext();
+        } catch (ServiceConfigurationError e) {
+            return false;
+        }
+    }
+}
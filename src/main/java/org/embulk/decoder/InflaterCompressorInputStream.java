@@ -0,0 +1,300 @@
+package org.embulk.decoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * Decode gzip or zlib (deflate format of CompressorStreamFactory) by
+ * java.util.zip.Inflater.
+ *
+ * Compressed data is read in large chunks and inflated into the caller's
+ * array directly. GzipCompressorInputStream reads 8KB at a time. So, this
+ * class calls the upstream stream and Inflater less often.
+ */
+class InflaterCompressorInputStream extends CompressorInputStream {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // A gzip header needs 10 bytes in the buffer. A smaller buffer never
+    // fills it.
+    static final int MIN_BUFFER_SIZE = 512;
+
+    private static final int ID1 = 0x1f;
+    private static final int ID2 = 0x8b;
+    private static final int CM_DEFLATE = 8;
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+    private static final int FRESERVED = 0xe0;
+
+    private final InputStream in;
+    private final boolean gzip;
+    private final boolean decompressConcatenated;
+    private final DecoderPool pool;
+    private Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] buf;
+    private int bufPos = 0;
+    private int bufLen = 0;
+    private long memberSize = 0;
+    private boolean firstMember = true;
+    private boolean inMember = false;
+    private boolean endOfStream = false;
+    private long compressedBytes = 0;
+    private MemberListener memberListener;
+
+    /**
+     * Receive the offsets of gzip members. A member can be decoded without
+     * the previous members, so the offsets are restart points of the stream.
+     */
+    interface MemberListener {
+        /**
+         * @param compressedOffset the offset of the member header in the
+         * compressed stream.
+         * @param uncompressedOffset the offset of the first byte of the
+         * member in the decompressed stream.
+         */
+        void memberStarted(long compressedOffset, long uncompressedOffset);
+    }
+
+    private InflaterCompressorInputStream(InputStream in, boolean gzip, boolean decompressConcatenated,
+            int bufferSize, DecoderPool pool) {
+        this.in = in;
+        this.gzip = gzip;
+        this.decompressConcatenated = decompressConcatenated;
+        this.pool = pool;
+        // gzip doesn't have a zlib header. So, the raw deflate mode is used.
+        this.inflater = pool.borrowInflater(gzip);
+        this.buf = pool.borrowBuffer(bufferSize);
+    }
+
+    static InflaterCompressorInputStream gzip(InputStream in, boolean decompressConcatenated, int bufferSize) {
+        return gzip(in, decompressConcatenated, bufferSize, DecoderPool.unpooled());
+    }
+
+    /**
+     * @param pool Inflater and the input buffer are borrowed from this pool
+     * and returned at the end of the stream or by close().
+     */
+    static InflaterCompressorInputStream gzip(InputStream in, boolean decompressConcatenated, int bufferSize,
+            DecoderPool pool) {
+        return new InflaterCompressorInputStream(in, true, decompressConcatenated, bufferSize, pool);
+    }
+
+    static InflaterCompressorInputStream zlib(InputStream in, int bufferSize) {
+        return zlib(in, bufferSize, DecoderPool.unpooled());
+    }
+
+    static InflaterCompressorInputStream zlib(InputStream in, int bufferSize, DecoderPool pool) {
+        return new InflaterCompressorInputStream(in, false, false, bufferSize, pool);
+    }
+
+    void setMemberListener(MemberListener memberListener) {
+        this.memberListener = memberListener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!endOfStream) {
+            if (!inMember && !startMember()) {
+                endOfStream = true;
+                break;
+            }
+
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException("Broken " + getFormatName() + " data", e);
+            }
+            if (n > 0) {
+                if (gzip) {
+                    crc.update(b, off, n);
+                }
+                memberSize += n;
+                count(n);
+                return n;
+            } else if (inflater.finished()) {
+                finishMember();
+            } else if (inflater.needsDictionary()) {
+                throw new IOException("Preset dictionaries are not supported.");
+            } else if (inflater.needsInput()) {
+                bufPos = 0;
+                bufLen = Math.max(0, in.read(buf, 0, buf.length));
+                compressedBytes += bufLen;
+                if (bufLen == 0) {
+                    throw new EOFException("Unexpected end of " + getFormatName() + " data");
+                }
+                inflater.setInput(buf, 0, bufLen);
+            }
+        }
+        release();
+        return -1;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return endOfStream ? 0 : 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        endOfStream = true;
+        release();
+        in.close();
+    }
+
+    /**
+     * Return Inflater and the buffer to the pool. They are not used after
+     * the end of the stream.
+     */
+    private void release() {
+        if (inflater != null) {
+            pool.releaseInflater(inflater, gzip);
+            pool.releaseBuffer(buf);
+            inflater = null;
+            buf = null;
+        }
+    }
+
+    /**
+     * @return false if there is no more member.
+     */
+    private boolean startMember() throws IOException {
+        if (!gzip) {
+            if (!firstMember) {
+                return false;
+            }
+        } else if (!readGzipHeader()) {
+            return false;
+        }
+        firstMember = false;
+        inflater.reset();
+        inflater.setInput(buf, bufPos, bufLen - bufPos);
+        crc.reset();
+        memberSize = 0;
+        inMember = true;
+        return true;
+    }
+
+    private void finishMember() throws IOException {
+        inMember = false;
+        bufPos = bufLen - inflater.getRemaining();
+        if (!gzip) {
+            endOfStream = true;
+            return;
+        }
+
+        if (!ensureAvailable(8)) {
+            throw new EOFException("Unexpected end of the .gz trailer");
+        } else if (readUInt32(bufPos) != crc.getValue()
+                || readUInt32(bufPos + 4) != (memberSize & 0xffffffffL)) {
+            throw new IOException("Gzip-compressed data is corrupt");
+        }
+        bufPos += 8;
+        if (!decompressConcatenated) {
+            endOfStream = true;
+        }
+    }
+
+    private boolean readGzipHeader() throws IOException {
+        if (!ensureAvailable(1)) {
+            if (firstMember) {
+                throw new EOFException("Input is not in the .gz format");
+            }
+            return false;
+        }
+        if (memberListener != null) {
+            memberListener.memberStarted(compressedBytes - (bufLen - bufPos), getBytesRead());
+        }
+        if (!ensureAvailable(10)
+                || (buf[bufPos] & 0xff) != ID1 || (buf[bufPos + 1] & 0xff) != ID2) {
+            throw new IOException(firstMember ? "Input is not in the .gz format"
+                    : "Garbage after a valid .gz stream");
+        }
+        int method = buf[bufPos + 2] & 0xff;
+        int flags = buf[bufPos + 3] & 0xff;
+        if (method != CM_DEFLATE) {
+            throw new IOException("Unsupported compression method " + method + " in the .gz header");
+        } else if ((flags & FRESERVED) != 0) {
+            throw new IOException("Reserved flags are set in the .gz header");
+        }
+        bufPos += 10;
+
+        if ((flags & FEXTRA) != 0) {
+            int xlen = readUnsignedByte() | (readUnsignedByte() << 8);
+            for (int i = 0; i < xlen; i++) {
+                readUnsignedByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            readUnsignedByte();
+            readUnsignedByte();
+        }
+        return true;
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        while (readUnsignedByte() != 0) {
+            // Skip a file name or a comment.
+        }
+    }
+
+    private int readUnsignedByte() throws IOException {
+        if (!ensureAvailable(1)) {
+            throw new EOFException("Unexpected end of the .gz header");
+        }
+        return buf[bufPos++] & 0xff;
+    }
+
+    /**
+     * Read data until the buffer has size bytes after bufPos. This must not
+     * be called while a member is inflated because Inflater refers to buf.
+     */
+    private boolean ensureAvailable(int size) throws IOException {
+        while (bufLen - bufPos < size) {
+            if (bufPos > 0) {
+                System.arraycopy(buf, bufPos, buf, 0, bufLen - bufPos);
+                bufLen -= bufPos;
+                bufPos = 0;
+            }
+            int n = in.read(buf, bufLen, buf.length - bufLen);
+            if (n < 0) {
+                return false;
+            }
+            compressedBytes += n;
+            bufLen += n;
+        }
+        return true;
+    }
+
+    private long readUInt32(int pos) {
+        return (buf[pos] & 0xffL) | ((buf[pos + 1] & 0xffL) << 8)
+                | ((buf[pos + 2] & 0xffL) << 16) | ((buf[pos + 3] & 0xffL) << 24);
+    }
+
+    private String getFormatName() {
+        return gzip ? ".gz" : "deflate";
+    }
+}
@@ -0,0 +1,44 @@
+package org.embulk.decoder;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+
+/**
+ * FileInput which records bytes and time of the upstream file input plugin
+ * to DecoderMetrics. FileInputInputStream reads this instead of the
+ * upstream FileInput. So, time blocked on the input plugin is measured
+ * for each buffer instead of each read() of decompressors.
+ */
+class MeteredFileInput implements FileInput {
+    private final FileInput input;
+    private final DecoderMetrics metrics;
+
+    MeteredFileInput(FileInput input, DecoderMetrics metrics) {
+        this.input = input;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Buffer poll() {
+        long start = System.nanoTime();
+        Buffer buffer = input.poll();
+        metrics.addUpstreamRead(buffer != null ? buffer.limit() : 0, System.nanoTime() - start);
+        return buffer;
+    }
+
+    @Override
+    public boolean nextFile() {
+        long start = System.nanoTime();
+        boolean opened = input.nextFile();
+        metrics.addUpstreamRead(0, System.nanoTime() - start);
+        if (opened) {
+            metrics.fileOpened();
+        }
+        return opened;
+    }
+
+    @Override
+    public void close() {
+        input.close();
+    }
+}
@@ -0,0 +1,330 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * Base class to decode independent chunks of a compressed stream on
+ * a worker pool and return decoded data in the original order.
+ *
+ * A subclass splits the compressed stream into chunks on the reading
+ * thread by readChunk(). Each chunk is decoded by decodeChunk() on the pool.
+ * At most window chunks are read ahead.
+ *
+ * A boundary of chunks may be found by a heuristic like a magic number.
+ * When decoding a chunk fails, this class asks mergeChunks() to join it
+ * with the following chunk and decodes the joined chunk again. So, a false
+ * boundary only costs a sequential retry.
+ *
+ * A worker doesn't buffer more than getMaxDecodedChunkBytes() of a chunk.
+ * When decoded data of a chunk is larger than that, decodeChunk() throws
+ * ChunkTooLargeException and the chunk is decoded as a stream by
+ * openChunk() on the reading thread.
+ */
+abstract class OrderedParallelInputStream<C> extends CompressorInputStream {
+    static final int MAX_DECODED_CHUNK_BYTES = 32 * 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final int window;
+    private final Deque<DecodeTask<C>> tasks = new ArrayDeque<>();
+    private boolean endOfChunks = false;
+    private boolean endOfData = false;
+    private int maxDecodedChunkBytes = MAX_DECODED_CHUNK_BYTES;
+    private byte[] decoded = EMPTY;
+    private int pos = 0;
+    private int limit = 0;
+    private InputStream chunkStream = null;
+    private C streamedChunk = null;
+
+    OrderedParallelInputStream(ExecutorService executor, int window) {
+        this.executor = executor;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Read the next chunk from a compressed stream.
+     *
+     * @return a chunk. Otherwise, null when there is no more chunk.
+     */
+    protected abstract C readChunk() throws IOException;
+
+    /**
+     * Decode a chunk. This method is called by worker threads.
+     */
+    protected abstract byte[] decodeChunk(C chunk) throws IOException;
+
+    /**
+     * Join a chunk which failed to decode with the following chunk.
+     *
+     * @return a joined chunk. Otherwise, null if they cannot be joined. In this
+     * case, the original failure is thrown.
+     */
+    protected C mergeChunks(C first, C second) {
+        return null;
+    }
+
+    /**
+     * Decode a chunk on the reading thread when it is too large for a
+     * worker.
+     */
+    protected InputStream openChunk(C chunk) throws IOException {
+        throw new IOException("A chunk is too large to decode.");
+    }
+
+    /**
+     * Called in the original order when a chunk is decoded.
+     *
+     * @return false if no more data should be returned after this chunk.
+     */
+    protected boolean chunkDecoded(C chunk) throws IOException {
+        return true;
+    }
+
+    void setMaxDecodedChunkBytes(int maxDecodedChunkBytes) {
+        this.maxDecodedChunkBytes = maxDecodedChunkBytes;
+    }
+
+    /**
+     * @return the maximum size of decoded data which decodeChunk() returns.
+     */
+    protected int getMaxDecodedChunkBytes() {
+        return maxDecodedChunkBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureDecoded()) {
+            return -1;
+        }
+        count(1);
+        return decoded[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (!ensureDecoded()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(decoded, pos, b, off, n);
+        pos += n;
+        count(n);
+        return n;
+    }
+
+    /**
+     * Discard decoded data without copying. e.g. TarArchiveInputStream
+     * skips entries which don't match to match_name by this method.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && ensureDecoded()) {
+            int len = (int) Math.min(n - skipped, limit - pos);
+            pos += len;
+            skipped += len;
+        }
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        endOfData = true;
+        decoded = EMPTY;
+        pos = 0;
+        limit = 0;
+        cancelTasks();
+        closeChunkStream();
+    }
+
+    private boolean ensureDecoded() throws IOException {
+        while (pos >= limit) {
+            if (chunkStream != null) {
+                readChunkStream();
+                continue;
+            } else if (endOfData) {
+                return false;
+            }
+
+            submitTasks();
+            DecodeTask<C> task = tasks.poll();
+            if (task == null) {
+                endOfData = true;
+                return false;
+            }
+
+            C chunk = task.chunk;
+            byte[] result;
+            try {
+                result = await(task.future);
+            } catch (ChunkTooLargeException e) {
+                startChunkStream(chunk);
+                continue;
+            } catch (IOException e) {
+                C merged = chunk;
+                while (true) {
+                    C next = pollChunk();
+                    merged = next == null ? null : mergeChunks(merged, next);
+                    if (merged == null) {
+                        throw e;
+                    }
+                    try {
+                        result = decodeChunk(merged);
+                        break;
+                    } catch (ChunkTooLargeException tooLarge) {
+                        result = null;
+                        break;
+                    } catch (IOException retryFailure) {
+                        // Try to join the next chunk again.
+                    }
+                }
+                chunk = merged;
+                if (result == null) {
+                    startChunkStream(chunk);
+                    continue;
+                }
+            }
+
+            decoded = result;
+            pos = 0;
+            limit = result.length;
+            if (!chunkDecoded(chunk)) {
+                endOfData = true;
+                cancelTasks();
+            }
+        }
+        return true;
+    }
+
+    private void startChunkStream(C chunk) throws IOException {
+        chunkStream = openChunk(chunk);
+        streamedChunk = chunk;
+        decoded = new byte[STREAM_BUFFER_BYTES];
+        pos = 0;
+        limit = 0;
+    }
+
+    private void readChunkStream() throws IOException {
+        int n = chunkStream.read(decoded, 0, decoded.length);
+        if (n >= 0) {
+            pos = 0;
+            limit = n;
+            return;
+        }
+        C chunk = streamedChunk;
+        closeChunkStream();
+        if (!chunkDecoded(chunk)) {
+            endOfData = true;
+            cancelTasks();
+        }
+    }
+
+    private void closeChunkStream() throws IOException {
+        if (chunkStream != null) {
+            InputStream stream = chunkStream;
+            chunkStream = null;
+            streamedChunk = null;
+            stream.close();
+        }
+    }
+
+    private void submitTasks() throws IOException {
+        while (!endOfChunks && tasks.size() < window) {
+            final C chunk = readChunk();
+            if (chunk == null) {
+                endOfChunks = true;
+            } else {
+                tasks.add(new DecodeTask<>(chunk, executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return decodeChunk(chunk);
+                    }
+                })));
+            }
+        }
+    }
+
+    private C pollChunk() throws IOException {
+        DecodeTask<C> task = tasks.poll();
+        if (task != null) {
+            task.future.cancel(true);
+            return task.chunk;
+        } else if (endOfChunks) {
+            return null;
+        }
+        C chunk = readChunk();
+        if (chunk == null) {
+            endOfChunks = true;
+        }
+        return chunk;
+    }
+
+    private void cancelTasks() {
+        DecodeTask<C> task = tasks.poll();
+        while (task != null) {
+            task.future.cancel(true);
+            task = tasks.poll();
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Thrown by decodeChunk() when decoded data is larger than
+     * getMaxDecodedChunkBytes().
+     */
+    static class ChunkTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkTooLargeException(int maxBytes) {
+            super("Decoded data of a chunk is larger than " + maxBytes + " bytes");
+        }
+    }
+
+    private static class DecodeTask<C> {
+        private final C chunk;
+        private final Future<byte[]> future;
+
+        DecodeTask(C chunk, Future<byte[]> future) {
+            this.chunk = chunk;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decode bzip2 blocks in parallel.
+ *
+ * A bzip2 stream is "BZh" + a level + blocks + an end of stream marker.
+ * Each block starts with a 48 bit magic 0x314159265359 and it can be decoded
+ * by itself. Blocks are not byte aligned. So, this class scans the
+ * compressed stream bit by bit to find the block magic and the end of stream
+ * magic 0x177245385090. Each block is converted to a single block bzip2
+ * stream and decoded by BZip2CompressorInputStream on a worker pool.
+ *
+ * A block magic may appear in compressed data by chance. In this case, the
+ * block fails to decode and it is joined with the next block.
+ *
+ * The stream CRC is verified by combining the block CRCs in order.
+ */
+class ParallelBZip2InputStream extends OrderedParallelInputStream<ParallelBZip2InputStream.Block> {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+    private static final int MAGIC_BITS = 48;
+    private static final int CRC_BITS = 32;
+    private static final int HEADER_BITS = 32;
+
+    // A compressed block is smaller than this size even for the worst case.
+    // This limits joining blocks when data is broken.
+    private static final int MAX_BLOCK_BYTES = 2 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final boolean decompressConcatenated;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readPos = 0;
+    private int readLength = 0;
+
+    private boolean headerRead = false;
+    private boolean endOfInput = false;
+    private long bytesScanned = 0;
+    private long bitWindow = 0;
+    private long bitsInWindow = 0;
+
+    // The chunk which is being scanned.
+    private byte[] chunkBytes = new byte[64 * 1024];
+    private int chunkLength = 0;
+    private long chunkStartBit = -1;
+    private boolean chunkEndOfStream = false;
+    private Block scannedBlock = null;
+
+    private int combinedCrc = 0;
+
+    ParallelBZip2InputStream(InputStream in, boolean decompressConcatenated,
+            ExecutorService executor, int window) {
+        super(executor, window);
+        this.in = in;
+        this.decompressConcatenated = decompressConcatenated;
+    }
+
+    @Override
+    protected Block readChunk() throws IOException {
+        if (!headerRead) {
+            readHeader();
+            headerRead = true;
+        }
+
+        while (scannedBlock == null) {
+            int b = nextByte();
+            if (b < 0) {
+                if (chunkStartBit < 0) {
+                    return null;
+                }
+                Block last = finishChunk(bytesScanned * 8);
+                chunkStartBit = -1;
+                return last;
+            }
+            scan(b);
+            if (chunkLength > MAX_BLOCK_BYTES) {
+                handleLargeChunk();
+            }
+        }
+
+        Block block = scannedBlock;
+        scannedBlock = null;
+        return block;
+    }
+
+    @Override
+    protected byte[] decodeChunk(Block block) throws IOException {
+        if (block.endOfStream) {
+            verifyEndOfStream(block);
+            return new byte[0];
+        }
+
+        BitWriter writer = new BitWriter(block.data.length + 16);
+        writer.writeBits('B', 8);
+        writer.writeBits('Z', 8);
+        writer.writeBits('h', 8);
+        writer.writeBits('9', 8);
+        writer.writeBits(block.data, block.bitOffset, block.bitLength);
+        writer.writeBits(END_OF_STREAM_MAGIC, MAGIC_BITS);
+        writer.writeBits(block.crc(), CRC_BITS);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.data.length * 4);
+        try (BZip2CompressorInputStream bin = new BZip2CompressorInputStream(
+                new ByteArrayInputStream(writer.toByteArray()), false)) {
+            byte[] buff = new byte[64 * 1024];
+            int n = bin.read(buff);
+            while (n != -1) {
+                out.write(buff, 0, n);
+                n = bin.read(buff);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to decode a bzip2 block at bit " + block.startBit, e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    protected Block mergeChunks(Block first, Block second) {
+        if (first.startBit + first.bitLength != second.startBit) {
+            return null;
+        }
+        int firstBytes = (int) ((first.bitOffset + first.bitLength) / 8);
+        if ((long) firstBytes + second.data.length > MAX_BLOCK_BYTES) {
+            return null;
+        }
+        byte[] data = Arrays.copyOf(first.data, firstBytes + second.data.length);
+        System.arraycopy(second.data, 0, data, firstBytes, second.data.length);
+        return new Block(data, first.startBit, first.bitLength + second.bitLength, first.endOfStream);
+    }
+
+    @Override
+    protected boolean chunkDecoded(Block block) throws IOException {
+        if (!block.endOfStream) {
+            combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ block.crc();
+            return true;
+        }
+
+        if (block.crc() != combinedCrc) {
+            throw new IOException("BZip2 CRC error at bit " + block.startBit);
+        }
+        combinedCrc = 0;
+        return decompressConcatenated;
+    }
+
+    private void readHeader() throws IOException {
+        int[] header = new int[HEADER_BITS / 8];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = nextByte();
+        }
+        if (header[0] != 'B' || header[1] != 'Z' || header[2] != 'h'
+                || header[3] < '1' || header[3] > '9') {
+            throw new IOException("Stream is not in the BZip2 format");
+        }
+    }
+
+    private void handleLargeChunk() throws IOException {
+        if (chunkStartBit < 0) {
+            // No magic is found yet. Keep the last bytes which may contain
+            // a part of a magic.
+            int keep = MAGIC_BITS / 8 + 1;
+            System.arraycopy(chunkBytes, chunkLength - keep, chunkBytes, 0, keep);
+            chunkLength = keep;
+        } else if (chunkEndOfStream && !decompressConcatenated) {
+            // Data after the first stream is ignored. So, don't scan it.
+            scannedBlock = finishChunk(chunkStartBit + MAGIC_BITS + CRC_BITS);
+            chunkStartBit = -1;
+            endOfInput = true;
+            readPos = readLength;
+        } else {
+            throw new IOException("Too large bzip2 block at bit " + chunkStartBit);
+        }
+    }
+
+    private void scan(int b) {
+        appendToChunk(b);
+        bitWindow = (bitWindow << 8) | b;
+        bitsInWindow += 8;
+        if (bitsInWindow < MAGIC_BITS) {
+            return;
+        }
+
+        // Check a magic which ends at each bit of this byte from the first bit.
+        long byteStartBit = (bytesScanned - 1) * 8;
+        int maxShift = (int) Math.min(7, bitsInWindow - MAGIC_BITS);
+        for (int shift = maxShift; shift >= 0; shift--) {
+            long magic = (bitWindow >>> shift) & MAGIC_MASK;
+            if (magic == BLOCK_MAGIC || magic == END_OF_STREAM_MAGIC) {
+                long magicStartBit = byteStartBit + (7 - shift) - (MAGIC_BITS - 1);
+                startChunk(magicStartBit, magic == END_OF_STREAM_MAGIC);
+            }
+        }
+    }
+
+    private void startChunk(long startBit, boolean endOfStream) {
+        if (chunkStartBit >= 0) {
+            scannedBlock = finishChunk(startBit);
+            int from = (int) (startBit / 8 - chunkStartBit / 8);
+            System.arraycopy(chunkBytes, from, chunkBytes, 0, chunkLength - from);
+            chunkLength -= from;
+        } else {
+            // The first chunk. Drop bytes before this chunk.
+            int from = (int) (startBit / 8 - (bytesScanned - chunkLength));
+            System.arraycopy(chunkBytes, from, chunkBytes, 0, chunkLength - from);
+            chunkLength -= from;
+        }
+        chunkStartBit = startBit;
+        chunkEndOfStream = endOfStream;
+    }
+
+    private Block finishChunk(long endBit) {
+        long bitLength = endBit - chunkStartBit;
+        int length = (int) ((chunkStartBit % 8 + bitLength + 7) / 8);
+        return new Block(Arrays.copyOf(chunkBytes, length), chunkStartBit, bitLength, chunkEndOfStream);
+    }
+
+    private void appendToChunk(int b) {
+        if (chunkLength == chunkBytes.length) {
+            chunkBytes = Arrays.copyOf(chunkBytes, chunkBytes.length * 2);
+        }
+        chunkBytes[chunkLength++] = (byte) b;
+    }
+
+    private int nextByte() throws IOException {
+        if (readPos >= readLength) {
+            if (endOfInput) {
+                return -1;
+            }
+            readLength = in.read(readBuffer, 0, readBuffer.length);
+            readPos = 0;
+            if (readLength <= 0) {
+                endOfInput = true;
+                readLength = 0;
+                return -1;
+            }
+        }
+        bytesScanned++;
+        return readBuffer[readPos++] & 0xff;
+    }
+
+    private void verifyEndOfStream(Block block) throws IOException {
+        long trailerBits = MAGIC_BITS + CRC_BITS;
+        if (block.bitLength < trailerBits) {
+            throw new IOException("Truncated bzip2 stream at bit " + block.startBit);
+        } else if (!decompressConcatenated) {
+            // The following data is ignored.
+            return;
+        }
+
+        // The end of stream marker is padded to a byte boundary. And it is
+        // followed by nothing or a header of the next stream.
+        long endOfTrailer = block.startBit + trailerBits;
+        long paddedEnd = (endOfTrailer + 7) / 8 * 8;
+        long rest = block.startBit + block.bitLength - paddedEnd;
+        if (rest == 0) {
+            return;
+        } else if (rest == HEADER_BITS) {
+            long pos = paddedEnd - block.startBit + block.bitOffset;
+            int b = readBits(block.data, pos, 8);
+            int z = readBits(block.data, pos + 8, 8);
+            int h = readBits(block.data, pos + 16, 8);
+            int level = readBits(block.data, pos + 24, 8);
+            if (b == 'B' && z == 'Z' && h == 'h' && level >= '1' && level <= '9') {
+                return;
+            }
+        }
+        throw new IOException("Garbage after a valid BZip2 stream at bit " + block.startBit);
+    }
+
+    private static int readBits(byte[] data, long bitPos, int n) {
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            long pos = bitPos + i;
+            value = (value << 1) | ((data[(int) (pos / 8)] >>> (7 - (int) (pos % 8))) & 1);
+        }
+        return value;
+    }
+
+    /**
+     * A range of bits which starts with a block magic or an end of stream magic.
+     */
+    static class Block {
+        private final byte[] data;
+        private final long startBit;
+        private final int bitOffset;
+        private final long bitLength;
+        private final boolean endOfStream;
+
+        Block(byte[] data, long startBit, long bitLength, boolean endOfStream) {
+            this.data = data;
+            this.startBit = startBit;
+            this.bitOffset = (int) (startBit % 8);
+            this.bitLength = bitLength;
+            this.endOfStream = endOfStream;
+        }
+
+        /**
+         * @return the block CRC or the combined stream CRC following the magic.
+         */
+        int crc() {
+            if (bitLength < MAGIC_BITS + CRC_BITS) {
+                return 0;
+            }
+            return readBits(data, bitOffset + MAGIC_BITS, CRC_BITS);
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] bytes;
+        private int length = 0;
+        private int bitBuffer = 0;
+        private int bitCount = 0;
+
+        BitWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void writeBits(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                writeBit((int) (value >>> i) & 1);
+            }
+        }
+
+        void writeBits(byte[] data, int bitOffset, long n) {
+            long pos = bitOffset;
+            long end = bitOffset + n;
+            // The output is byte aligned here in most cases. So, copy bytes
+            // with shifting them instead of writing each bit.
+            if (bitCount == 0) {
+                int shift = bitOffset;
+                while (end - pos >= 8) {
+                    int i = (int) (pos / 8);
+                    int b = (data[i] << shift) & 0xff;
+                    if (shift > 0) {
+                        b |= (data[i + 1] & 0xff) >>> (8 - shift);
+                    }
+                    writeByte(b);
+                    pos += 8;
+                }
+            }
+            while (pos < end) {
+                writeBit((data[(int) (pos / 8)] >>> (7 - (int) (pos % 8))) & 1);
+                pos++;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (bitCount > 0) {
+                writeByte(bitBuffer << (8 - bitCount));
+                bitBuffer = 0;
+                bitCount = 0;
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void writeBit(int bit) {
+            bitBuffer = (bitBuffer << 1) | bit;
+            bitCount++;
+            if (bitCount == 8) {
+                writeByte(bitBuffer);
+                bitBuffer = 0;
+                bitCount = 0;
+            }
+        }
+
+        private void writeByte(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(16, bytes.length * 2));
+            }
+            bytes[length++] = (byte) b;
+        }
+    }
+}
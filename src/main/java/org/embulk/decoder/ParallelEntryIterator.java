@@ -0,0 +1,354 @@
+package org.embulk.decoder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+/**
+ * Decode entries of an archive on a worker pool and return them in order.
+ *
+ * Entries of a stream archive like tar are read one by one on the calling
+ * thread, and workers decompress entries which are compressed files like
+ * .gz. Entries of a zip file read by its central directory are read and
+ * inflated by workers because ZipFile reads each entry independently.
+ *
+ * At most window entries are decoded ahead. maxInFlightBytes is a budget
+ * shared by all entries. Buffered bytes are read entries and data decoded by
+ * workers which are not returned yet. The calling thread and workers reserve
+ * bytes from the budget before they buffer data, so buffered bytes never
+ * exceed it in total. Read-ahead stops when the budget runs out. An entry of
+ * a stream archive which doesn't fit in the rest is returned as a stream
+ * after the entries before it, and read-ahead waits until the next entry.
+ * A worker stops when the budget runs out, and the rest of its entry is read
+ * by the caller. An entry of unknown size is counted while it is read.
+ */
+class ParallelEntryIterator implements ArchiveEntryIterator, Closeable {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Decode an entry which is a compressed file. Called by workers.
+     */
+    interface EntryDecoder {
+        /**
+         * @param in a stream which supports mark.
+         * @return in itself if it is not compressed.
+         */
+        InputStream decode(InputStream in) throws IOException;
+    }
+
+    private final ArchiveEntryIterator source;
+    private final ZipFileIterator zipSource;
+    private final ExecutorService executor;
+    private final int window;
+    private final long maxInFlightBytes;
+    private final EntryVerifier verifier;
+    private final EntryDecoder decoder;
+    private final Deque<Item> items = new ArrayDeque<>();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong peakInFlightBytes = new AtomicLong();
+    private boolean streaming = false;
+    private ArchiveEntry currentEntry;
+    private boolean closed = false;
+
+    /**
+     * @param verifier verifies entries before they are decoded.
+     * @param decoder null if entries are not decoded.
+     */
+    ParallelEntryIterator(ArchiveEntryIterator source, ExecutorService executor, int window,
+            long maxInFlightBytes, EntryVerifier verifier, EntryDecoder decoder) {
+        this.source = source;
+        this.zipSource = source instanceof ZipFileIterator ? (ZipFileIterator) source : null;
+        if (zipSource != null) {
+            zipSource.setDetached(true);
+        }
+        this.executor = executor;
+        this.window = Math.max(1, window);
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.verifier = verifier;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public EntryStats getStats() {
+        return source.getStats();
+    }
+
+    @Override
+    public ArchiveEntry getCurrentEntry() {
+        return currentEntry;
+    }
+
+    /**
+     * @return the maximum of buffered bytes so far.
+     */
+    long getPeakInFlightBytes() {
+        return peakInFlightBytes.get();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            readAhead();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return !items.isEmpty();
+    }
+
+    @Override
+    public InputStream next() {
+        try {
+            readAhead();
+            Item item = items.poll();
+            if (item == null) {
+                return null;
+            }
+            currentEntry = item.entry;
+            if (item.stream != null) {
+                release(item.bufferedBytes);
+                streaming = false;
+                return item.stream;
+            }
+            byte[] data = await(item.future);
+            release(item.bufferedBytes);
+            if (zipSource != null) {
+                getStats().addDecodedBytes(item.entry.getSize() >= 0 ? item.entry.getSize() : data.length);
+            }
+            InputStream in = new ByteArrayInputStream(data);
+            if (item.rest == null) {
+                return in;
+            }
+            in = new SequenceInputStream(in, item.rest);
+            if (item.undecoded && decoder != null) {
+                in = decoder.decode(new BufferedInputStream(in));
+            }
+            return in;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Item item = items.poll();
+        while (item != null) {
+            if (item.future != null) {
+                item.future.cancel(true);
+            }
+            item = items.poll();
+        }
+        if (source instanceof Closeable) {
+            ((Closeable) source).close();
+        }
+    }
+
+    /**
+     * Read entries until the window is full. Reading a stream archive
+     * stops at an entry returned as a stream because the archive is at
+     * the middle of it.
+     */
+    private void readAhead() throws IOException {
+        while (!closed && !streaming && items.size() < window
+                && (items.isEmpty() || inFlightBytes.get() < maxInFlightBytes) && source.hasNext()) {
+            InputStream in = source.next();
+            ArchiveEntry entry = source.getCurrentEntry();
+            if (zipSource != null) {
+                submitZipEntry(entry, in);
+            } else {
+                readEntry(entry, verifier.wrap(entry, in));
+            }
+        }
+    }
+
+    private void submitZipEntry(final ArchiveEntry entry, final InputStream in) {
+        final Item item = new Item(entry);
+        item.future = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                byte[] data = readPrefix(item, verifier.wrap(entry, in));
+                if (item.rest != null) {
+                    // The whole entry is decoded by the caller.
+                    item.undecoded = true;
+                    return data;
+                }
+                return decode(item, data);
+            }
+        });
+        items.add(item);
+    }
+
+    private void readEntry(ArchiveEntry entry, InputStream in) throws IOException {
+        final Item item = new Item(entry);
+        final byte[] raw = readBuffered(item, in);
+        if (item.rest != null) {
+            // The rest of the entry is read by the caller.
+            InputStream stream = new SequenceInputStream(new ByteArrayInputStream(raw), in);
+            if (decoder != null) {
+                stream = decoder.decode(new BufferedInputStream(stream));
+            }
+            item.stream = stream;
+            items.add(item);
+            streaming = true;
+            return;
+        }
+        item.future = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return decode(item, raw);
+            }
+        });
+        items.add(item);
+    }
+
+    /**
+     * Called by workers. The raw data is released when it is decoded to
+     * the end.
+     */
+    private byte[] decode(Item item, byte[] raw) throws IOException {
+        if (decoder == null) {
+            return raw;
+        }
+        InputStream in = new ByteArrayInputStream(raw);
+        InputStream decoding = decoder.decode(in);
+        if (decoding == in) {
+            return raw;
+        }
+        byte[] decoded = readPrefix(item, decoding);
+        if (item.rest == null) {
+            item.bufferedBytes -= raw.length;
+            release(raw.length);
+        }
+        return decoded;
+    }
+
+    /**
+     * Read an entry while the budget is left. in is closed at the end.
+     * Otherwise, it is set to the rest of the item.
+     */
+    private byte[] readPrefix(Item item, InputStream in) throws IOException {
+        byte[] data;
+        try {
+            data = readBuffered(item, in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        if (item.rest == null) {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Read in while bytes are reserved from the budget. Read bytes are
+     * added to the buffered bytes of item. When the budget runs out, in is
+     * set to the rest of item. in is not closed.
+     */
+    private byte[] readBuffered(Item item, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        while (true) {
+            int reserved = (int) reserve(buffer.length);
+            if (reserved == 0) {
+                item.rest = in;
+                break;
+            }
+            int n = in.read(buffer, 0, reserved);
+            release(reserved - Math.max(n, 0));
+            if (n < 0) {
+                break;
+            }
+            item.bufferedBytes += n;
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return reserved bytes up to the rest of the budget. 0 if the budget
+     * runs out.
+     */
+    private long reserve(long bytes) {
+        while (true) {
+            long current = inFlightBytes.get();
+            long reserved = Math.min(bytes, maxInFlightBytes - current);
+            if (reserved <= 0) {
+                return 0;
+            } else if (inFlightBytes.compareAndSet(current, current + reserved)) {
+                updatePeak(current + reserved);
+                return reserved;
+            }
+        }
+    }
+
+    private void release(long bytes) {
+        inFlightBytes.addAndGet(-bytes);
+    }
+
+    private void updatePeak(long bytes) {
+        long peak = peakInFlightBytes.get();
+        while (bytes > peak && !peakInFlightBytes.compareAndSet(peak, bytes)) {
+            peak = peakInFlightBytes.get();
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * An entry which is decoded by a worker or read as a stream.
+     */
+    private static class Item {
+        private final ArchiveEntry entry;
+        // Set when the entry is read by the caller as a stream.
+        private InputStream stream = null;
+        private Future<byte[]> future;
+        // Set by a worker and read after the future is done.
+        private long bufferedBytes = 0;
+        private InputStream rest = null;
+        private boolean undecoded = false;
+
+        Item(ArchiveEntry entry) {
+            this.entry = entry;
+        }
+    }
+}
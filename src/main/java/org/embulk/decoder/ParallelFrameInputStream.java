@@ -0,0 +1,412 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+/**
+ * Decode frames of a zstd or LZ4 frame format file in parallel.
+ *
+ * Both formats are sequences of independent frames. pzstd, concatenated
+ * files and writers which close a frame periodically make many frames.
+ * Each frame has block sizes in its block headers. So, this class finds
+ * exact frame boundaries without decompression and decodes chunks of
+ * frames on a worker pool. Skippable frames are passed to the decoder as
+ * they are.
+ *
+ * If a frame is larger than MAX_CHUNK_BYTES like a file written as a single
+ * frame, the rest of the stream is decoded on the reading thread. A chunk
+ * which is decoded to more than MAX_DECODED_CHUNK_BYTES is also decoded on
+ * the reading thread as a stream.
+ */
+class ParallelFrameInputStream extends OrderedParallelInputStream<ParallelFrameInputStream.Frames> {
+    static final int TARGET_CHUNK_BYTES = 1024 * 1024;
+    static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+    private static final int MAGIC_BYTES = 4;
+    private static final int SKIPPABLE_MAGIC_MASK = 0xfffffff0;
+    private static final int SKIPPABLE_MAGIC = 0x184d2a50;
+    private static final int MAX_INITIAL_OUTPUT_BYTES = 16 * 1024 * 1024;
+    private static final int NOT_FRAME = -1;
+    private static final int TOO_LARGE = -2;
+
+    enum Format {
+        ZSTD(".zst", 0xfd2fb528) {
+            @Override
+            InputStream newInputStream(InputStream in, boolean decompressConcatenated) throws IOException {
+                // zstd-jni always reads all frames.
+                return new ZstdCompressorInputStream(in);
+            }
+
+            @Override
+            int findFrameEnd(ParallelFrameInputStream s, int pos) throws IOException {
+                return s.findZstdFrameEnd(pos);
+            }
+        },
+        LZ4_FRAMED(".lz4", 0x184d2204) {
+            @Override
+            InputStream newInputStream(InputStream in, boolean decompressConcatenated) throws IOException {
+                return new FramedLZ4CompressorInputStream(in, decompressConcatenated);
+            }
+
+            @Override
+            int findFrameEnd(ParallelFrameInputStream s, int pos) throws IOException {
+                return s.findLz4FrameEnd(pos);
+            }
+        };
+
+        private final String extension;
+        private final int magic;
+
+        Format(String extension, int magic) {
+            this.extension = extension;
+            this.magic = magic;
+        }
+
+        /**
+         * Create a sequential decoder.
+         */
+        abstract InputStream newInputStream(InputStream in, boolean decompressConcatenated) throws IOException;
+
+        abstract int findFrameEnd(ParallelFrameInputStream s, int pos) throws IOException;
+    }
+
+    private final InputStream in;
+    private final Format format;
+    private final int targetChunkBytes;
+    private final int maxChunkBytes;
+    private byte[] buffer;
+    private int length = 0;
+    private long bufferOffset = 0;
+    private boolean endOfInput = false;
+    private InputStream sequentialTail = null;
+
+    ParallelFrameInputStream(InputStream in, Format format, ExecutorService executor, int window) {
+        this(in, format, executor, window, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+    }
+
+    ParallelFrameInputStream(InputStream in, Format format, ExecutorService executor, int window,
+            int targetChunkBytes, int maxChunkBytes) {
+        super(executor, window);
+        this.in = in;
+        this.format = format;
+        this.targetChunkBytes = targetChunkBytes;
+        this.maxChunkBytes = Math.max(targetChunkBytes, maxChunkBytes);
+        this.buffer = new byte[targetChunkBytes];
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1 && sequentialTail != null) {
+            b = sequentialTail.read();
+            if (b != -1) {
+                count(1);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n == -1 && sequentialTail != null) {
+            n = sequentialTail.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped < n && sequentialTail != null) {
+            long tailSkipped = sequentialTail.skip(n - skipped);
+            count(tailSkipped);
+            skipped += tailSkipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (sequentialTail != null) {
+            sequentialTail.close();
+            sequentialTail = null;
+        }
+    }
+
+    @Override
+    protected Frames readChunk() throws IOException {
+        if (sequentialTail != null) {
+            return null;
+        } else if (!fill(1)) {
+            if (bufferOffset == 0) {
+                throw new IOException("Input is not in the " + format.extension + " format");
+            }
+            return null;
+        }
+
+        int end = 0;
+        boolean hasData = false;
+        while (end < targetChunkBytes && fill(end + 1)) {
+            int frameEnd = format.findFrameEnd(this, end);
+            if (frameEnd == NOT_FRAME) {
+                if (end > 0) {
+                    // Frames before it are decoded first.
+                    break;
+                } else if (bufferOffset == 0) {
+                    throw new IOException("Input is not in the " + format.extension + " format");
+                }
+                throw new IOException("Garbage after a valid " + format.extension + " frame at offset "
+                        + bufferOffset);
+            } else if (frameEnd == TOO_LARGE) {
+                if (end > 0) {
+                    break;
+                }
+                sequentialTail = format.newInputStream(new SequenceInputStream(
+                        new ByteArrayInputStream(buffer, 0, length), in), true);
+                length = 0;
+                return null;
+            }
+            hasData |= !isSkippableFrame(end);
+            end = frameEnd;
+        }
+
+        Frames frames = new Frames(Arrays.copyOf(buffer, end), bufferOffset, hasData);
+        System.arraycopy(buffer, end, buffer, 0, length - end);
+        length -= end;
+        bufferOffset += end;
+        return frames;
+    }
+
+    @Override
+    protected byte[] decodeChunk(Frames frames) throws IOException {
+        if (!frames.hasData) {
+            // Decoders fail when a stream has no frame except skippable ones.
+            return new byte[0];
+        }
+        Output out = new Output((int) Math.min(frames.data.length * 4L, MAX_INITIAL_OUTPUT_BYTES),
+                getMaxDecodedChunkBytes());
+        try (InputStream decoder = format.newInputStream(new ByteArrayInputStream(frames.data), true)) {
+            while (true) {
+                out.ensureCapacity();
+                int n = decoder.read(out.bytes, out.length, out.bytes.length - out.length);
+                if (n < 0) {
+                    break;
+                }
+                out.length += n;
+            }
+        } catch (ChunkTooLargeException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Broken " + format.extension + " frame at offset " + frames.offset, e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    protected InputStream openChunk(Frames frames) throws IOException {
+        return format.newInputStream(new ByteArrayInputStream(frames.data), true);
+    }
+
+    /**
+     * Find the end of a zstd frame or a skippable frame.
+     *
+     * @return the end of the frame in the buffer. The end of the buffer if
+     * the input is truncated. NOT_FRAME or TOO_LARGE.
+     */
+    int findZstdFrameEnd(int start) throws IOException {
+        int skippable = findSkippableFrameEnd(start);
+        if (skippable != NOT_FRAME) {
+            return skippable;
+        } else if (readInt32(start) != format.magic) {
+            return NOT_FRAME;
+        }
+
+        long pos = start + MAGIC_BYTES;
+        if (!fill((int) pos + 1)) {
+            return length;
+        }
+        int descriptor = buffer[(int) pos++] & 0xff;
+        int contentSizeFlag = descriptor >>> 6;
+        boolean singleSegment = (descriptor & 0x20) != 0;
+        boolean contentChecksum = (descriptor & 0x04) != 0;
+        int dictionaryIdFlag = descriptor & 0x03;
+        if ((descriptor & 0x08) != 0) {
+            return NOT_FRAME;
+        }
+        pos += singleSegment ? 0 : 1;
+        pos += dictionaryIdFlag == 3 ? 4 : dictionaryIdFlag;
+        pos += contentSizeFlag == 0 ? (singleSegment ? 1 : 0) : 1 << contentSizeFlag;
+
+        while (true) {
+            if (pos + 3 > maxChunkBytes) {
+                return TOO_LARGE;
+            } else if (!fill((int) pos + 3)) {
+                return length;
+            }
+            int header = readInt24((int) pos);
+            boolean last = (header & 1) != 0;
+            int type = (header >>> 1) & 0x03;
+            int size = header >>> 3;
+            if (type == 3) {
+                return NOT_FRAME;
+            }
+            // An RLE block has only one byte which is repeated size times.
+            pos += 3 + (type == 1 ? 1 : size);
+            if (last) {
+                break;
+            }
+        }
+        return checkEnd(pos + (contentChecksum ? 4 : 0));
+    }
+
+    /**
+     * Find the end of an LZ4 frame or a skippable frame.
+     *
+     * @return the same as findZstdFrameEnd().
+     */
+    int findLz4FrameEnd(int start) throws IOException {
+        int skippable = findSkippableFrameEnd(start);
+        if (skippable != NOT_FRAME) {
+            return skippable;
+        } else if (readInt32(start) != format.magic) {
+            return NOT_FRAME;
+        }
+
+        long pos = start + MAGIC_BYTES;
+        if (!fill((int) pos + 2)) {
+            return length;
+        }
+        int flags = buffer[(int) pos] & 0xff;
+        if ((flags & 0xc0) != 0x40) {
+            return NOT_FRAME;
+        }
+        boolean blockChecksum = (flags & 0x10) != 0;
+        boolean contentSize = (flags & 0x08) != 0;
+        boolean contentChecksum = (flags & 0x04) != 0;
+        boolean dictionaryId = (flags & 0x01) != 0;
+        // FLG, BD, the optional fields and the header checksum.
+        pos += 2 + (contentSize ? 8 : 0) + (dictionaryId ? 4 : 0) + 1;
+
+        while (true) {
+            if (pos + 4 > maxChunkBytes) {
+                return TOO_LARGE;
+            } else if (!fill((int) pos + 4)) {
+                return length;
+            }
+            int size = readInt32((int) pos) & 0x7fffffff;
+            pos += 4;
+            if (size == 0) {
+                break;
+            }
+            pos += size + (blockChecksum ? 4 : 0);
+        }
+        return checkEnd(pos + (contentChecksum ? 4 : 0));
+    }
+
+    private boolean isSkippableFrame(int start) {
+        return start + MAGIC_BYTES <= length && (readInt32(start) & SKIPPABLE_MAGIC_MASK) == SKIPPABLE_MAGIC;
+    }
+
+    private int findSkippableFrameEnd(int start) throws IOException {
+        if (!fill(start + MAGIC_BYTES)) {
+            // A truncated frame fails to decode.
+            return length;
+        } else if (!isSkippableFrame(start)) {
+            return NOT_FRAME;
+        } else if (!fill(start + 8)) {
+            return length;
+        }
+        return checkEnd(start + 8 + (readInt32(start + 4) & 0x7fffffffL));
+    }
+
+    private int checkEnd(long end) throws IOException {
+        if (end > maxChunkBytes) {
+            return TOO_LARGE;
+        }
+        return fill((int) end) ? (int) end : length;
+    }
+
+    private int readInt24(int pos) {
+        return (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8) | ((buffer[pos + 2] & 0xff) << 16);
+    }
+
+    private int readInt32(int pos) {
+        return (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8)
+                | ((buffer[pos + 2] & 0xff) << 16) | ((buffer[pos + 3] & 0xff) << 24);
+    }
+
+    /**
+     * Read data until the buffer has size bytes.
+     *
+     * @return false if the input reaches the end before size bytes.
+     */
+    private boolean fill(int size) throws IOException {
+        if (size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, (int) Math.min(buffer.length * 2L, maxChunkBytes)));
+        }
+        while (length < size && !endOfInput) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                endOfInput = true;
+            } else {
+                length += n;
+            }
+        }
+        return length >= size;
+    }
+
+    /**
+     * Complete frames of compressed data.
+     */
+    static class Frames {
+        private final byte[] data;
+        private final long offset;
+        private final boolean hasData;
+
+        Frames(byte[] data, long offset, boolean hasData) {
+            this.data = data;
+            this.offset = offset;
+            this.hasData = hasData;
+        }
+
+        int size() {
+            return data.length;
+        }
+    }
+
+    private static class Output {
+        private final int maxLength;
+        private byte[] bytes;
+        private int length = 0;
+
+        Output(int capacity, int maxLength) {
+            this.maxLength = maxLength;
+            this.bytes = new byte[Math.min(Math.max(1024, capacity), maxLength)];
+        }
+
+        void ensureCapacity() throws ChunkTooLargeException {
+            if (length == bytes.length) {
+                if (length >= maxLength) {
+                    throw new ChunkTooLargeException(maxLength);
+                }
+                bytes = Arrays.copyOf(bytes, (int) Math.min(bytes.length * 2L, maxLength));
+            }
+        }
+
+        byte[] toByteArray() {
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
+    }
+}
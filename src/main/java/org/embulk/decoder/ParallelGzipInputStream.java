@@ -0,0 +1,405 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+/**
+ * Decode members of a multi-member gzip file in parallel.
+ *
+ * Tools like bgzip and pigz write many gzip members. Each member can be
+ * inflated by itself. This class splits the compressed stream into chunks
+ * which contain some members and inflates the chunks on a worker pool.
+ *
+ * A BGZF member has its size in the "BC" extra field. So, BGZF files are
+ * split at exact boundaries. For other files, a chunk is split at the next
+ * gzip header after TARGET_CHUNK_BYTES. If the header is a false one found in
+ * compressed data, the chunk fails to decode and it is joined with the next
+ * chunk.
+ *
+ * If there is no member boundary in MAX_CHUNK_BYTES, or no boundary after
+ * TARGET_CHUNK_BYTES before the end like a single member gzip file, the rest
+ * of the stream is decoded by GzipCompressorInputStream on the reading
+ * thread. A chunk which is decoded to more than MAX_DECODED_CHUNK_BYTES is
+ * also decoded on the reading thread as a stream.
+ */
+class ParallelGzipInputStream extends OrderedParallelInputStream<ParallelGzipInputStream.Members> {
+    static final int TARGET_CHUNK_BYTES = 1024 * 1024;
+    static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+    private static final int ID1 = 0x1f;
+    private static final int ID2 = 0x8b;
+    private static final int CM_DEFLATE = 8;
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+    private static final int FRESERVED = 0xe0;
+    private static final int HEADER_BYTES = 10;
+    private static final int TRAILER_BYTES = 8;
+    private static final int SEARCH_BYTES = 256 * 1024;
+    private static final int MAX_INITIAL_OUTPUT_BYTES = 16 * 1024 * 1024;
+
+    private final InputStream in;
+    private final int targetChunkBytes;
+    private final int maxChunkBytes;
+    private final DecoderPool pool;
+    private byte[] buffer;
+    private int length = 0;
+    private long bufferOffset = 0;
+    private boolean endOfInput = false;
+    private InputStream sequentialTail = null;
+
+    ParallelGzipInputStream(InputStream in, ExecutorService executor, int window) {
+        this(in, executor, window, DecoderPool.unpooled());
+    }
+
+    /**
+     * @param pool Inflaters used by worker threads are borrowed from this.
+     */
+    ParallelGzipInputStream(InputStream in, ExecutorService executor, int window, DecoderPool pool) {
+        this(in, executor, window, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES, pool);
+    }
+
+    ParallelGzipInputStream(InputStream in, ExecutorService executor, int window,
+            int targetChunkBytes, int maxChunkBytes) {
+        this(in, executor, window, targetChunkBytes, maxChunkBytes, DecoderPool.unpooled());
+    }
+
+    ParallelGzipInputStream(InputStream in, ExecutorService executor, int window,
+            int targetChunkBytes, int maxChunkBytes, DecoderPool pool) {
+        super(executor, window);
+        this.in = in;
+        this.pool = pool;
+        this.targetChunkBytes = targetChunkBytes;
+        this.maxChunkBytes = Math.max(targetChunkBytes, maxChunkBytes);
+        this.buffer = new byte[targetChunkBytes + SEARCH_BYTES];
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1 && sequentialTail != null) {
+            b = sequentialTail.read();
+            if (b != -1) {
+                count(1);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n == -1 && sequentialTail != null) {
+            n = sequentialTail.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped < n && sequentialTail != null) {
+            long tailSkipped = sequentialTail.skip(n - skipped);
+            count(tailSkipped);
+            skipped += tailSkipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    protected Members readChunk() throws IOException {
+        if (sequentialTail != null) {
+            return null;
+        } else if (!fill(1)) {
+            if (bufferOffset == 0) {
+                throw new IOException("Input is not in the .gz format");
+            }
+            return null;
+        }
+
+        int end = findChunkEnd();
+        if (end < 0) {
+            sequentialTail = new GzipCompressorInputStream(new SequenceInputStream(
+                    new ByteArrayInputStream(buffer, 0, length), in), true);
+            length = 0;
+            return null;
+        }
+
+        Members members = new Members(Arrays.copyOf(buffer, end), bufferOffset);
+        System.arraycopy(buffer, end, buffer, 0, length - end);
+        length -= end;
+        bufferOffset += end;
+        return members;
+    }
+
+    @Override
+    protected byte[] decodeChunk(Members members) throws IOException {
+        Output out = new Output((int) Math.min(members.data.length * 4L, MAX_INITIAL_OUTPUT_BYTES),
+                getMaxDecodedChunkBytes());
+        Inflater inflater = pool.borrowInflater(true);
+        try {
+            int pos = 0;
+            while (pos < members.data.length) {
+                pos = decodeMember(members, pos, inflater, out);
+                inflater.reset();
+            }
+        } finally {
+            pool.releaseInflater(inflater, true);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    protected InputStream openChunk(Members members) throws IOException {
+        return new GzipCompressorInputStream(new ByteArrayInputStream(members.data), true);
+    }
+
+    @Override
+    protected Members mergeChunks(Members first, Members second) {
+        if (first.offset + first.data.length != second.offset
+                || (long) first.data.length + second.data.length > maxChunkBytes) {
+            return null;
+        }
+        byte[] data = Arrays.copyOf(first.data, first.data.length + second.data.length);
+        System.arraycopy(second.data, 0, data, first.data.length, second.data.length);
+        return new Members(data, first.offset);
+    }
+
+    /**
+     * @return the end of a chunk in the buffer. Otherwise, -1 when no
+     * boundary is found in maxChunkBytes, or when the last member starts
+     * before targetChunkBytes and ends after it.
+     */
+    private int findChunkEnd() throws IOException {
+        // Split at exact boundaries of BGZF members.
+        int pos = 0;
+        int size = getBgzfMemberSize(pos);
+        while (size > 0) {
+            if (!fill(pos + size)) {
+                return length;
+            }
+            pos += size;
+            if (pos >= targetChunkBytes || !fill(pos + 1)) {
+                return pos;
+            }
+            size = getBgzfMemberSize(pos);
+        }
+        if (pos > 0) {
+            return pos;
+        }
+
+        // Search the next gzip header.
+        int from = targetChunkBytes;
+        while (true) {
+            boolean more = fill(Math.min(from + SEARCH_BYTES, maxChunkBytes));
+            int found = findHeader(from, length);
+            if (found >= 0) {
+                return found;
+            } else if (!more && endOfInput) {
+                // A large last member like a single member file is decoded as a stream.
+                return length <= targetChunkBytes ? length : -1;
+            } else if (length >= maxChunkBytes) {
+                return -1;
+            }
+            from = Math.max(from, length - HEADER_BYTES + 1);
+        }
+    }
+
+    private int findHeader(int from, int to) {
+        for (int i = from; i <= to - HEADER_BYTES; i++) {
+            if ((buffer[i] & 0xff) == ID1 && (buffer[i + 1] & 0xff) == ID2
+                    && buffer[i + 2] == CM_DEFLATE && isValidHeader(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isValidHeader(int pos) {
+        int flags = buffer[pos + 3] & 0xff;
+        int xfl = buffer[pos + 8] & 0xff;
+        int os = buffer[pos + 9] & 0xff;
+        return (flags & FRESERVED) == 0
+                && (xfl == 0 || xfl == 2 || xfl == 4)
+                && (os <= 13 || os == 255);
+    }
+
+    /**
+     * @return the size of a BGZF member. Otherwise, -1.
+     */
+    private int getBgzfMemberSize(int pos) throws IOException {
+        if (!fill(pos + HEADER_BYTES + 2)
+                || (buffer[pos] & 0xff) != ID1 || (buffer[pos + 1] & 0xff) != ID2
+                || (buffer[pos + 3] & FEXTRA) == 0) {
+            return -1;
+        }
+
+        int xlen = readUInt16(buffer, pos + HEADER_BYTES);
+        int extra = pos + HEADER_BYTES + 2;
+        if (!fill(extra + xlen)) {
+            return -1;
+        }
+        int i = extra;
+        while (i + 4 <= extra + xlen) {
+            int slen = readUInt16(buffer, i + 2);
+            if (buffer[i] == 'B' && buffer[i + 1] == 'C' && slen == 2 && i + 6 <= extra + xlen) {
+                return readUInt16(buffer, i + 4) + 1;
+            }
+            i += 4 + slen;
+        }
+        return -1;
+    }
+
+    /**
+     * Read data until the buffer has size bytes.
+     *
+     * @return false if the input reaches the end before size bytes.
+     */
+    private boolean fill(int size) throws IOException {
+        if (size > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+        }
+        while (length < size && !endOfInput) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                endOfInput = true;
+            } else {
+                length += n;
+            }
+        }
+        return length >= size;
+    }
+
+    private static int decodeMember(Members members, int start, Inflater inflater, Output out)
+            throws IOException {
+        byte[] data = members.data;
+        if (data.length - start < HEADER_BYTES
+                || (data[start] & 0xff) != ID1 || (data[start + 1] & 0xff) != ID2) {
+            if (start == 0 && members.offset == 0) {
+                throw new IOException("Input is not in the .gz format");
+            }
+            throw new IOException("Garbage after a valid .gz stream at offset " + (members.offset + start));
+        } else if (data[start + 2] != CM_DEFLATE) {
+            throw new IOException("Unsupported compression method " + data[start + 2]
+                    + " in the .gz header at offset " + (members.offset + start));
+        }
+
+        int flags = data[start + 3] & 0xff;
+        int pos = start + HEADER_BYTES;
+        if ((flags & FEXTRA) != 0) {
+            pos = checkBounds(members, pos + 2);
+            pos = checkBounds(members, pos + readUInt16(data, pos - 2));
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(members, pos);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(members, pos);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos = checkBounds(members, pos + 2);
+        }
+
+        int outStart = out.length;
+        inflater.setInput(data, pos, data.length - pos);
+        try {
+            while (!inflater.finished()) {
+                out.ensureCapacity();
+                int n = inflater.inflate(out.bytes, out.length, out.bytes.length - out.length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Unexpected end of a .gz member at offset " + (members.offset + start));
+                }
+                out.length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken .gz member at offset " + (members.offset + start), e);
+        }
+
+        int trailer = data.length - inflater.getRemaining();
+        if (data.length - trailer < TRAILER_BYTES) {
+            throw new IOException("Unexpected end of a .gz member at offset " + (members.offset + start));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.bytes, outStart, out.length - outStart);
+        if (readUInt32(data, trailer) != crc.getValue()) {
+            throw new IOException("Gzip-compressed data is corrupt at offset " + (members.offset + start));
+        } else if (readUInt32(data, trailer + 4) != ((out.length - outStart) & 0xffffffffL)) {
+            throw new IOException("Gzip-compressed data is corrupt at offset " + (members.offset + start));
+        }
+        return trailer + TRAILER_BYTES;
+    }
+
+    private static int skipZeroTerminated(Members members, int pos) throws IOException {
+        while (pos < members.data.length) {
+            if (members.data[pos++] == 0) {
+                return pos;
+            }
+        }
+        throw new IOException("Truncated .gz header at offset " + members.offset);
+    }
+
+    private static int checkBounds(Members members, int pos) throws IOException {
+        if (pos > members.data.length) {
+            throw new IOException("Truncated .gz header at offset " + members.offset);
+        }
+        return pos;
+    }
+
+    private static int readUInt16(byte[] data, int pos) {
+        return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8);
+    }
+
+    private static long readUInt32(byte[] data, int pos) {
+        return (readUInt16(data, pos) | ((long) readUInt16(data, pos + 2) << 16));
+    }
+
+    /**
+     * Compressed data which starts at a member boundary.
+     */
+    static class Members {
+        private final byte[] data;
+        private final long offset;
+
+        Members(byte[] data, long offset) {
+            this.data = data;
+            this.offset = offset;
+        }
+    }
+
+    private static class Output {
+        private final int maxLength;
+        private byte[] bytes;
+        private int length = 0;
+
+        Output(int capacity, int maxLength) {
+            this.maxLength = maxLength;
+            this.bytes = new byte[Math.min(Math.max(1024, capacity), maxLength)];
+        }
+
+        void ensureCapacity() throws ChunkTooLargeException {
+            if (length == bytes.length) {
+                if (length >= maxLength) {
+                    throw new ChunkTooLargeException(maxLength);
+                }
+                bytes = Arrays.copyOf(bytes, (int) Math.min(bytes.length * 2L, maxLength));
+            }
+        }
+
+        byte[] toByteArray() {
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
+    }
+}
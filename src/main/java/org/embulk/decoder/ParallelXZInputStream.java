@@ -0,0 +1,309 @@
+package org.embulk.decoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * Decode blocks of an xz file in parallel.
+ *
+ * xz -T and other multi-threaded writers split data into independent
+ * blocks, and the index at the end of a stream has the size of each block.
+ * This class reads the index of a spilled file on the reading thread and
+ * decodes chunks of blocks on a worker pool. A worker takes an idle
+ * SeekableXZInputStream, or opens a new one, and seeks to the first block
+ * of its chunk. Streams are kept open until the end of the file because
+ * opening one parses the index again. So, at most window streams are
+ * opened. Concatenated streams are read as one sequence of blocks.
+ *
+ * A chunk is not larger than MAX_CHUNK_BYTES and getMaxDecodedChunkBytes().
+ * If a block is larger than them, the rest of the file is decoded on the
+ * reading thread.
+ */
+class ParallelXZInputStream extends OrderedParallelInputStream<ParallelXZInputStream.Blocks> {
+    static final int TARGET_CHUNK_BYTES = 4 * 1024 * 1024;
+    static final int MAX_CHUNK_BYTES = MAX_DECODED_CHUNK_BYTES;
+
+    private final SpillFile spill;
+    private final ArrayCache arrayCache;
+    private final int targetChunkBytes;
+    private final int maxChunkBytes;
+    private final long[] blockSizes;
+    private int nextBlock = 0;
+    private final Deque<SeekableXZInputStream> idleStreams = new ArrayDeque<>();
+    private boolean spillClosed = false;
+    private int openedStreams = 0;
+    private SeekableXZInputStream sequentialTail = null;
+    private int sequentialBlock = -1;
+
+    ParallelXZInputStream(SpillFile spill, ExecutorService executor, int window, ArrayCache arrayCache)
+            throws IOException {
+        this(spill, executor, window, arrayCache, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+    }
+
+    /**
+     * @param spill a complete copy of an xz file. It is closed at the end
+     * of data or by close(). It is also closed when this constructor fails.
+     */
+    ParallelXZInputStream(SpillFile spill, ExecutorService executor, int window, ArrayCache arrayCache,
+            int targetChunkBytes, int maxChunkBytes) throws IOException {
+        super(executor, window);
+        this.spill = spill;
+        this.arrayCache = arrayCache;
+        this.targetChunkBytes = targetChunkBytes;
+        this.maxChunkBytes = Math.max(targetChunkBytes, maxChunkBytes);
+        try {
+            SeekableXZInputStream xz = acquire();
+            this.blockSizes = new long[xz.getBlockCount()];
+            for (int i = 0; i < blockSizes.length; i++) {
+                blockSizes[i] = xz.getBlockSize(i);
+            }
+            release(xz);
+        } catch (IOException | RuntimeException e) {
+            closeSpill();
+            throw e;
+        }
+        if (blockSizes.length == 0) {
+            closeSpill();
+        }
+    }
+
+    int getBlockCount() {
+        return blockSizes.length;
+    }
+
+    /**
+     * @return the number of SeekableXZInputStream opened for this file.
+     */
+    int getOpenedStreams() {
+        synchronized (idleStreams) {
+            return openedStreams;
+        }
+    }
+
+    /**
+     * @return the first block decoded on the reading thread. -1 if all
+     * blocks are decoded by workers.
+     */
+    int getSequentialBlock() {
+        return sequentialBlock;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1 && sequentialTail != null) {
+            b = sequentialTail.read();
+            if (b != -1) {
+                count(1);
+            } else {
+                closeSpill();
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n == -1 && sequentialTail != null) {
+            n = sequentialTail.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            } else if (n == -1) {
+                closeSpill();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped < n && sequentialTail != null) {
+            long tailSkipped = sequentialTail.skip(n - skipped);
+            count(tailSkipped);
+            skipped += tailSkipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        closeSpill();
+    }
+
+    @Override
+    protected Blocks readChunk() throws IOException {
+        if (sequentialTail != null || nextBlock >= blockSizes.length) {
+            return null;
+        }
+        int limit = Math.min(maxChunkBytes, getMaxDecodedChunkBytes());
+        if (blockSizes[nextBlock] < 0 || blockSizes[nextBlock] > limit) {
+            sequentialTail = acquire();
+            sequentialTail.seekToBlock(nextBlock);
+            sequentialBlock = nextBlock;
+            nextBlock = blockSizes.length;
+            return null;
+        }
+
+        int first = nextBlock;
+        long size = 0;
+        while (nextBlock < blockSizes.length && size < targetChunkBytes
+                && blockSizes[nextBlock] >= 0 && size + blockSizes[nextBlock] <= limit) {
+            size += blockSizes[nextBlock++];
+        }
+        return new Blocks(first, nextBlock - first, (int) size);
+    }
+
+    @Override
+    protected byte[] decodeChunk(Blocks blocks) throws IOException {
+        byte[] out = new byte[blocks.size];
+        SeekableXZInputStream xz = acquire();
+        try {
+            xz.seekToBlock(blocks.first);
+            int pos = 0;
+            while (pos < out.length) {
+                int n = xz.read(out, pos, out.length - pos);
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of xz block " + blocks.first);
+                }
+                pos += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            // The stream may be broken by an interrupt. Don't reuse it.
+            xz.close();
+            throw e;
+        }
+        release(xz);
+        return out;
+    }
+
+    @Override
+    protected boolean chunkDecoded(Blocks blocks) throws IOException {
+        if (blocks.first + blocks.count >= blockSizes.length) {
+            // All workers finished reading the file.
+            closeSpill();
+        }
+        return true;
+    }
+
+    private SeekableXZInputStream acquire() throws IOException {
+        synchronized (idleStreams) {
+            SeekableXZInputStream xz = idleStreams.poll();
+            if (xz != null) {
+                return xz;
+            } else if (spillClosed) {
+                throw new IOException("Stream closed");
+            }
+            openedStreams++;
+        }
+        return open();
+    }
+
+    private void release(SeekableXZInputStream xz) throws IOException {
+        synchronized (idleStreams) {
+            if (!spillClosed) {
+                idleStreams.push(xz);
+                return;
+            }
+        }
+        // A worker finished after close().
+        xz.close();
+    }
+
+    private SeekableXZInputStream open() throws IOException {
+        ChannelSeekableInputStream in = new ChannelSeekableInputStream(spill.newChannel());
+        try {
+            return new SeekableXZInputStream(in, -1, arrayCache);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private void closeSpill() throws IOException {
+        if (sequentialTail != null) {
+            sequentialTail.close();
+            sequentialTail = null;
+        }
+        synchronized (idleStreams) {
+            spillClosed = true;
+            for (SeekableXZInputStream xz : idleStreams) {
+                xz.close();
+            }
+            idleStreams.clear();
+        }
+        spill.close();
+    }
+
+    /**
+     * Consecutive blocks decoded by a worker.
+     */
+    static class Blocks {
+        private final int first;
+        private final int count;
+        private final int size;
+
+        Blocks(int first, int count, int size) {
+            this.first = first;
+            this.count = count;
+            this.size = size;
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+
+    private static class ChannelSeekableInputStream extends SeekableInputStream {
+        private final SeekableByteChannel channel;
+
+        ChannelSeekableInputStream(SeekableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public long length() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            channel.position(pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
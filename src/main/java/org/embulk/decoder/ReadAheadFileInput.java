@@ -0,0 +1,196 @@
+package org.embulk.decoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+
+/**
+ * FileInput which decodes files on a background thread.
+ *
+ * A producer thread calls nextFile() and poll() of the wrapped FileInput
+ * and puts the results to a bounded queue. So, decompression runs while
+ * a parser consumes buffers on the task thread. When the queue is full,
+ * the producer waits until the task thread takes a buffer.
+ *
+ * NOTE: The producer thread also reads the upstream FileInput because
+ * the decompressors pull data from it.
+ */
+class ReadAheadFileInput implements FileInput {
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    // Markers put to the queue between buffers.
+    private static final Object START_OF_FILE = new Object();
+    private static final Object END_OF_FILE = new Object();
+    private static final Object END_OF_FILES = new Object();
+
+    private final FileInput input;
+    private final BlockingQueue<Object> queue;
+    private final Thread producer;
+    private volatile boolean closed = false;
+    private boolean inFile = false;
+    private boolean endOfFile = false;
+    private boolean endOfFiles = false;
+
+    ReadAheadFileInput(FileInput input, int queueSize) {
+        this(input, queueSize, false);
+    }
+
+    /**
+     * @param virtualThread true to read ahead on a virtual thread if it is
+     * supported. Blocking reads of the upstream input park it cheaply.
+     */
+    ReadAheadFileInput(FileInput input, int queueSize, boolean virtualThread) {
+        this.input = input;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.producer = DecoderExecutors.newThread("read-ahead", new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        }, virtualThread);
+        this.producer.start();
+    }
+
+    @Override
+    public Buffer poll() {
+        if (!inFile) {
+            throw new IllegalStateException("nextFile() must be called before poll()");
+        } else if (endOfFile) {
+            return null;
+        }
+
+        Object item = take();
+        if (item == END_OF_FILE) {
+            endOfFile = true;
+            return null;
+        }
+        return (Buffer) item;
+    }
+
+    @Override
+    public boolean nextFile() {
+        if (endOfFiles) {
+            return false;
+        }
+
+        // Discard the rest of the current file like other FileInputs do.
+        while (true) {
+            Object item = take();
+            if (item == START_OF_FILE) {
+                inFile = true;
+                endOfFile = false;
+                return true;
+            } else if (item == END_OF_FILES) {
+                inFile = false;
+                endOfFiles = true;
+                return false;
+            } else if (item instanceof Buffer) {
+                ((Buffer) item).release();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        discardQueuedBuffers();
+        boolean interrupted = false;
+        while (producer.isAlive()) {
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        discardQueuedBuffers();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        input.close();
+    }
+
+    private void produce() {
+        try {
+            while (input.nextFile()) {
+                if (!put(START_OF_FILE)) {
+                    return;
+                }
+                Buffer buffer = input.poll();
+                while (buffer != null) {
+                    if (!put(buffer)) {
+                        buffer.release();
+                        return;
+                    }
+                    buffer = input.poll();
+                }
+                if (!put(END_OF_FILE)) {
+                    return;
+                }
+            }
+            put(END_OF_FILES);
+        } catch (Throwable t) {
+            put(new Failure(t));
+        }
+    }
+
+    /**
+     * Put an item to the queue.
+     *
+     * @return false when this input is closed and the item is not queued.
+     */
+    private boolean put(Object item) {
+        try {
+            while (!closed) {
+                if (queue.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Object take() {
+        Object item;
+        try {
+            item = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for decoded data.", e);
+        }
+
+        if (item instanceof Failure) {
+            // Keep the failure for the following calls.
+            queue.offer(item);
+            Throwable cause = ((Failure) item).cause;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return item;
+    }
+
+    private void discardQueuedBuffers() {
+        Object item = queue.poll();
+        while (item != null) {
+            if (item instanceof Buffer) {
+                ((Buffer) item).release();
+            }
+            item = queue.poll();
+        }
+    }
+
+    private static class Failure {
+        private final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
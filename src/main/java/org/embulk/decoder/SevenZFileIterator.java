@@ -0,0 +1,173 @@
+package org.embulk.decoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+
+/**
+ * Iterate entries of a 7z file.
+ *
+ * 7z keeps its headers at the end of a file. So, SevenZFile needs random
+ * access and ArchiveStreamFactory cannot read it as a stream.
+ *
+ * Entries are read by getNextEntry() in the order of the archive. Entries in
+ * a solid block share one compressed stream. Reading them in this order
+ * decompresses each block only once even if some entries are skipped by
+ * match_name.
+ */
+class SevenZFileIterator implements ArchiveEntryIterator, Closeable {
+    private final SevenZFile sevenZFile;
+    private final SpillFile spill;
+    private final EntryNameMatcher matcher;
+    private final EntrySlice slice;
+    private final EntryStats stats;
+    private SevenZArchiveEntry entry;
+    private SevenZArchiveEntry currentEntry;
+    private int entryCount = 0;
+    private boolean closed = false;
+
+    /**
+     * @param spill a temporary file of sevenZFile. It is deleted by close().
+     * null if there is nothing to delete.
+     */
+    SevenZFileIterator(SevenZFile sevenZFile, SpillFile spill, EntryNameMatcher matcher) {
+        this(sevenZFile, spill, matcher, new EntryStats());
+    }
+
+    SevenZFileIterator(SevenZFile sevenZFile, SpillFile spill, EntryNameMatcher matcher, EntryStats stats) {
+        this(sevenZFile, spill, matcher, EntrySlice.ALL, stats);
+    }
+
+    /**
+     * @param slice selects matched entries. Entries in other slices are
+     * skipped like entries which don't match.
+     */
+    SevenZFileIterator(SevenZFile sevenZFile, SpillFile spill, EntryNameMatcher matcher, EntrySlice slice,
+            EntryStats stats) {
+        this.sevenZFile = sevenZFile;
+        this.spill = spill;
+        this.matcher = matcher;
+        this.slice = slice;
+        this.stats = stats;
+    }
+
+    @Override
+    public EntryStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public ArchiveEntry getCurrentEntry() {
+        return currentEntry;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return checkNext();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public InputStream next() {
+        try {
+            if (!checkNext()) {
+                return null;
+            }
+            currentEntry = entry;
+            entry = null;
+            return new EntryInputStream(entryCount);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sevenZFile.close();
+        } finally {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    private boolean checkNext() throws IOException {
+        if (closed) {
+            return false;
+        } else if (entry != null) {
+            return true;
+        }
+
+        SevenZArchiveEntry e = sevenZFile.getNextEntry();
+        while (e != null) {
+            entryCount++;
+            if (!e.isDirectory() && !e.isAntiItem()) {
+                if (matcher.matches(e) && slice.next()) {
+                    stats.entryMatched();
+                    entry = e;
+                    return true;
+                }
+                // An entry in a non-solid block is skipped without decoding.
+                stats.entrySkipped(e.getSize());
+            }
+            e = sevenZFile.getNextEntry();
+        }
+        // Release the file as soon as all entries are read.
+        close();
+        return false;
+    }
+
+    /**
+     * Read the current entry of sevenZFile. It returns the end of stream
+     * after the iterator moves to the next entry.
+     */
+    private class EntryInputStream extends InputStream {
+        private final int entryIndex;
+
+        EntryInputStream(int entryIndex) {
+            this.entryIndex = entryIndex;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = isCurrent() ? sevenZFile.read() : -1;
+            if (b >= 0) {
+                stats.addDecodedBytes(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = isCurrent() ? sevenZFile.read(b, off, len) : -1;
+            if (n > 0) {
+                stats.addDecodedBytes(n);
+            }
+            return n;
+        }
+
+        private boolean isCurrent() {
+            return !closed && entryIndex == entryCount;
+        }
+    }
+}
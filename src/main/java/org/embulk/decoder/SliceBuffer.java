@@ -0,0 +1,124 @@
+package org.embulk.decoder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.embulk.spi.Buffer;
+
+/**
+ * Buffer which refers to a part of another buffer without copying.
+ *
+ * An upstream buffer may have the end of an entry and the beginning of the
+ * next one. So, the upstream buffer is shared by slices and released when
+ * the reader and all slices release it. Slices may be released on another
+ * thread like read_ahead.
+ */
+class SliceBuffer extends Buffer {
+    private final Shared shared;
+    private final int capacity;
+    private int offset;
+    private int limit;
+    private boolean released = false;
+
+    private SliceBuffer(Shared shared, int offset, int length) {
+        this.shared = shared;
+        this.offset = offset;
+        this.limit = length;
+        this.capacity = length;
+    }
+
+    /**
+     * @return a holder of an upstream buffer. The caller has a reference
+     * and must release it.
+     */
+    static Shared share(Buffer buffer) {
+        return new Shared(buffer);
+    }
+
+    @Deprecated
+    @Override
+    public byte[] array() {
+        return shared.buffer.array();
+    }
+
+    @Override
+    public int offset() {
+        return offset;
+    }
+
+    @Override
+    public Buffer offset(int offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    @Override
+    public int limit() {
+        return limit;
+    }
+
+    @Override
+    public Buffer limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void setBytes(int index, byte[] source, int sourceIndex, int length) {
+        System.arraycopy(source, sourceIndex, array(), offset + index, length);
+    }
+
+    @Override
+    public void setBytes(int index, Buffer source, int sourceIndex, int length) {
+        source.getBytes(sourceIndex, array(), offset + index, length);
+    }
+
+    @Override
+    public void getBytes(int index, byte[] dest, int destIndex, int length) {
+        System.arraycopy(array(), offset + index, dest, destIndex, length);
+    }
+
+    @Override
+    public void getBytes(int index, Buffer dest, int destIndex, int length) {
+        dest.setBytes(destIndex, array(), offset + index, length);
+    }
+
+    @Override
+    public void release() {
+        if (!released) {
+            released = true;
+            shared.release();
+        }
+    }
+
+    static class Shared {
+        private final Buffer buffer;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Shared(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        Buffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @param position a position from the offset of the upstream buffer.
+         */
+        SliceBuffer slice(int position, int length) {
+            references.incrementAndGet();
+            return new SliceBuffer(this, buffer.offset() + position, length);
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                buffer.release();
+            }
+        }
+    }
+}
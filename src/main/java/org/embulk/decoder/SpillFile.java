@@ -0,0 +1,253 @@
+package org.embulk.decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+
+/**
+ * A local temporary copy of an input stream.
+ *
+ * Some formats like zip and 7z need random access to read. The file
+ * input plugin only provides a forward-only stream. So, the stream is
+ * written to a temporary file and the file is deleted by close().
+ *
+ * A small stream can be kept in memory instead of a file. A stream larger
+ * than the maximum size is not copied to the end. Then, isComplete() returns
+ * false and replay() reads the copied part and the rest of the stream as
+ * a forward-only stream.
+ */
+class SpillFile implements Closeable {
+    private static final String PREFIX = "embulk-decoder-commons-compress-";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MEMORY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Path path;
+    private byte[] data;
+    private final long size;
+    private final boolean complete;
+    private volatile boolean closed = false;
+
+    private SpillFile(Path path, byte[] data, long size, boolean complete) {
+        this.path = path;
+        this.data = data;
+        this.size = size;
+        this.complete = complete;
+    }
+
+    /**
+     * Copy the rest of a stream to a new temporary file.
+     *
+     * @param tempDir a directory to create a file. null or an empty string
+     * means the default temporary directory.
+     */
+    static SpillFile spill(InputStream in, String tempDir, String suffix) throws IOException {
+        return spill(in, tempDir, suffix, 0, 0);
+    }
+
+    /**
+     * Copy the rest of a stream to memory or a new temporary file.
+     *
+     * @param memorySize a stream up to this size is kept in memory. 0 means
+     * a file is always used.
+     * @param maxSize copying stops when a stream is larger than this. 0 means
+     * no limit.
+     */
+    static SpillFile spill(InputStream in, String tempDir, String suffix, long memorySize, long maxSize)
+            throws IOException {
+        long limit = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+        // One more byte is read to know whether the stream ends at memorySize.
+        long memoryLimit = Math.min(Math.max(memorySize, 0), MAX_MEMORY_SIZE - 1);
+        int memoryCapacity = (int) memoryLimit + 1;
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long size = 0;
+        byte[] memory = null;
+        if (memoryLimit > 0) {
+            memory = new byte[Math.min(memoryCapacity, COPY_BUFFER_SIZE)];
+            while (size <= memoryLimit) {
+                if (size == memory.length) {
+                    memory = Arrays.copyOf(memory, (int) Math.min(size * 2, memoryCapacity));
+                }
+                int n = in.read(memory, (int) size, memory.length - (int) size);
+                if (n < 0) {
+                    return new SpillFile(null, Arrays.copyOf(memory, (int) size), size, true);
+                }
+                size += n;
+                if (size > limit) {
+                    return new SpillFile(null, Arrays.copyOf(memory, (int) size), size, false);
+                }
+            }
+        }
+
+        Path path = (tempDir == null || tempDir.isEmpty())
+                ? Files.createTempFile(PREFIX, suffix)
+                : Files.createTempFile(Paths.get(tempDir), PREFIX, suffix);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            if (memory != null) {
+                out.write(memory, 0, (int) size);
+                memory = null;
+            }
+            while (size <= limit) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                size += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return new SpillFile(path, null, size, size <= limit);
+    }
+
+    /**
+     * @return false if the stream was larger than the maximum size and only
+     * a part of it is copied.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean isInMemory() {
+        return path == null;
+    }
+
+    /**
+     * @return null if the data is in memory.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return null if the data is in memory.
+     */
+    File getFile() {
+        return path == null ? null : path.toFile();
+    }
+
+    /**
+     * Open a new read-only channel. The caller must close it.
+     */
+    SeekableByteChannel newChannel() throws IOException {
+        if (path == null) {
+            if (data == null) {
+                throw new IOException("Spill data is already closed.");
+            }
+            return new SeekableInMemoryByteChannel(data);
+        }
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return the number of copied bytes.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Read the copied data and then the rest of the stream. Use this when
+     * the stream is not complete. The copy is closed when it is read to
+     * the end or the returned stream is closed. rest is not closed.
+     *
+     * @param rest the stream given to spill().
+     */
+    InputStream replay(InputStream rest) throws IOException {
+        InputStream copied = path == null
+                ? new ByteArrayInputStream(data, 0, (int) size)
+                : Files.newInputStream(path);
+        return new ReplayInputStream(copied, rest);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        data = null;
+        if (path != null) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private class ReplayInputStream extends InputStream {
+        private InputStream copied;
+        private final InputStream rest;
+
+        ReplayInputStream(InputStream copied, InputStream rest) {
+            this.copied = copied;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (copied != null) {
+                int b = copied.read();
+                if (b >= 0) {
+                    return b;
+                }
+                closeCopied();
+            }
+            return rest.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (copied != null) {
+                int n = copied.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                closeCopied();
+            }
+            return rest.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (copied != null) {
+                long skipped = copied.skip(n);
+                if (skipped > 0) {
+                    return skipped;
+                } else if (copied.read() >= 0) {
+                    return 1;
+                }
+                closeCopied();
+            }
+            return rest.skip(n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeCopied();
+        }
+
+        private void closeCopied() throws IOException {
+            if (copied != null) {
+                copied.close();
+                copied = null;
+                SpillFile.this.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package org.embulk.decoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+
+/**
+ * FileInput which reads uncompressed tar files without copying entry data.
+ *
+ * CommonsCompressFileInput copies data from upstream buffers to
+ * FileInputInputStream, TarArchiveInputStream and then a new Buffer. This
+ * class parses tar headers from upstream buffers directly and returns
+ * slices of them trimmed at entry boundaries. Only 512 byte headers are
+ * copied.
+ *
+ * GNU long names and PAX path and size are supported. Sparse entries are
+ * not supported.
+ */
+class TarPassThroughFileInput implements FileInput {
+    private static final int BLOCK_SIZE = TarConstants.DEFAULT_RCDSIZE;
+
+    private final FileInput input;
+    private final EntryNameMatcher matcher;
+    private final EntrySlice slice;
+    private final EntryStats stats;
+    private final DecoderMetrics metrics;
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private SliceBuffer.Shared current;
+    private int position;
+    private boolean inUpstreamFile = false;
+    private boolean endOfArchive = false;
+    private boolean inEntry = false;
+    // The rest of data and padding of the current entry.
+    private long remaining = 0;
+    private long padding = 0;
+
+    TarPassThroughFileInput(FileInput input, EntryNameMatcher matcher, EntryStats stats,
+            DecoderMetrics metrics) {
+        this(input, matcher, EntrySlice.ALL, stats, metrics);
+    }
+
+    /**
+     * @param slice selects matched entries. Entries in other slices are
+     * skipped like entries which don't match.
+     */
+    TarPassThroughFileInput(FileInput input, EntryNameMatcher matcher, EntrySlice slice, EntryStats stats,
+            DecoderMetrics metrics) {
+        this.input = input;
+        this.matcher = matcher;
+        this.slice = slice;
+        this.stats = stats;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean nextFile() {
+        final long start = System.nanoTime();
+        try {
+            skip(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            inEntry = false;
+            while (true) {
+                if (!inUpstreamFile) {
+                    if (!input.nextFile()) {
+                        return false;
+                    }
+                    inUpstreamFile = true;
+                    endOfArchive = false;
+                } else if (endOfArchive) {
+                    // Blocks after the end of an archive like record padding
+                    // are discarded by nextFile() of the upstream FileInput.
+                    releaseCurrent();
+                    inUpstreamFile = false;
+                } else if (nextEntry()) {
+                    inEntry = true;
+                    return true;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            metrics.addDecoded(0, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Buffer poll() {
+        if (!inEntry) {
+            throw new IllegalStateException("nextFile() must be called before poll()");
+        }
+        final long start = System.nanoTime();
+        int length = 0;
+        try {
+            if (remaining == 0) {
+                return null;
+            } else if (!nextBuffer()) {
+                throw new EOFException("Unexpected end of a tar entry");
+            }
+            length = (int) Math.min(remaining, limit() - position);
+            Buffer slice = current.slice(position, length);
+            position += length;
+            remaining -= length;
+            stats.addDecodedBytes(length);
+            return slice;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            metrics.addDecoded(length, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            releaseCurrent();
+            input.close();
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * Read headers until a matched entry.
+     *
+     * @return false at the end of the archive.
+     */
+    private boolean nextEntry() throws IOException {
+        String longName = null;
+        String paxPath = null;
+        long paxSize = -1;
+        while (true) {
+            if (!readHeader()) {
+                // Some tar files don't have the end of archive blocks.
+                inUpstreamFile = false;
+                return false;
+            } else if (isZeroBlock()) {
+                endOfArchive = true;
+                return false;
+            } else if (!verifyCheckSum()) {
+                throw new IOException("Broken tar header");
+            }
+
+            TarArchiveEntry entry;
+            try {
+                entry = new TarArchiveEntry(header);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Broken tar header", e);
+            }
+            long size = entry.getSize();
+            long entryPadding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+            if (entry.isGNULongNameEntry()) {
+                longName = trimNul(new String(readContents(size), StandardCharsets.UTF_8));
+                skip(entryPadding);
+                continue;
+            } else if (entry.isPaxHeader()) {
+                String[] values = parsePaxHeaders(readContents(size));
+                paxPath = values[0];
+                paxSize = values[1] != null ? Long.parseLong(values[1]) : -1;
+                skip(entryPadding);
+                continue;
+            } else if (entry.isGlobalPaxHeader() || entry.isGNULongLinkEntry()) {
+                skip(size + entryPadding);
+                continue;
+            } else if (entry.isSparse()) {
+                throw new IOException("Sparse tar entries are not supported by the pass-through mode: "
+                        + entry.getName());
+            }
+
+            String name = paxPath != null ? paxPath : longName != null ? longName : entry.getName();
+            if (paxSize >= 0) {
+                size = paxSize;
+                entryPadding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+            }
+            longName = null;
+            paxPath = null;
+            paxSize = -1;
+
+            if (entry.isDirectory()) {
+                skip(size + entryPadding);
+            } else if (!matcher.matches(name) || !slice.next()) {
+                stats.entrySkipped(size);
+                skip(size + entryPadding);
+            } else {
+                stats.entryMatched();
+                remaining = size;
+                padding = entryPadding;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return false if there is no data. Otherwise, a whole header is read.
+     */
+    private boolean readHeader() throws IOException {
+        int n = read(header, 0, BLOCK_SIZE);
+        if (n == 0) {
+            return false;
+        } else if (n < BLOCK_SIZE) {
+            throw new EOFException("Unexpected end of a tar header");
+        }
+        return true;
+    }
+
+    private boolean isZeroBlock() {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean verifyCheckSum() {
+        try {
+            return TarUtils.verifyCheckSum(header);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private byte[] readContents(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too large tar header entry: " + size);
+        }
+        byte[] contents = new byte[(int) size];
+        if (read(contents, 0, contents.length) < contents.length) {
+            throw new EOFException("Unexpected end of a tar header entry");
+        }
+        return contents;
+    }
+
+    /**
+     * @return path and size in PAX headers. null if not found.
+     */
+    private static String[] parsePaxHeaders(byte[] contents) throws IOException {
+        String[] values = new String[2];
+        int pos = 0;
+        while (pos < contents.length) {
+            int space = pos;
+            while (space < contents.length && contents[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(contents, pos, space - pos, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Broken PAX header", e);
+            }
+            if (length <= 0 || pos + length > contents.length) {
+                throw new IOException("Broken PAX header");
+            }
+            // A record is "length key=value\n".
+            String record = new String(contents, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            int equal = record.indexOf('=');
+            if (equal > 0) {
+                String key = record.substring(0, equal);
+                String value = record.substring(equal + 1);
+                if ("path".equals(key)) {
+                    values[0] = value;
+                } else if ("size".equals(key)) {
+                    values[1] = value;
+                } else if (key.startsWith("GNU.sparse.")) {
+                    throw new IOException("Sparse tar entries are not supported by the pass-through mode.");
+                }
+            }
+            pos += length;
+        }
+        return values;
+    }
+
+    private static String trimNul(String name) {
+        int nul = name.indexOf('\0');
+        return nul >= 0 ? name.substring(0, nul) : name;
+    }
+
+    /**
+     * Copy data across upstream buffers. Used only for headers.
+     *
+     * @return the number of bytes read. It is less than len at the end.
+     */
+    private int read(byte[] b, int off, int len) {
+        int n = 0;
+        while (n < len && nextBuffer()) {
+            int length = Math.min(len - n, limit() - position);
+            current.getBuffer().getBytes(position, b, off + n, length);
+            position += length;
+            n += length;
+        }
+        return n;
+    }
+
+    private void skip(long len) throws IOException {
+        while (len > 0) {
+            if (!nextBuffer()) {
+                throw new EOFException("Unexpected end of a tar file");
+            }
+            int length = (int) Math.min(len, limit() - position);
+            position += length;
+            len -= length;
+        }
+    }
+
+    /**
+     * Poll an upstream buffer when the current one is consumed.
+     *
+     * @return false at the end of the upstream file.
+     */
+    private boolean nextBuffer() {
+        while (current == null || position >= limit()) {
+            releaseCurrent();
+            Buffer buffer = input.poll();
+            if (buffer == null) {
+                return false;
+            }
+            current = SliceBuffer.share(buffer);
+            position = 0;
+        }
+        return true;
+    }
+
+    private int limit() {
+        return current.getBuffer().limit();
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+}
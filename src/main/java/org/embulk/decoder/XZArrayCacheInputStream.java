@@ -0,0 +1,54 @@
+package org.embulk.decoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.SingleXZInputStream;
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * xz stream which allocates dictionaries from an ArrayCache.
+ *
+ * XZCompressorInputStream of Commons Compress doesn't take an ArrayCache.
+ * So, each stream allocates a dictionary which is 8MB for the default
+ * preset. XZ for Java returns arrays to the cache at the end of a stream
+ * or by close(). Then the next file reuses them.
+ */
+class XZArrayCacheInputStream extends CompressorInputStream {
+    private final InputStream xz;
+
+    XZArrayCacheInputStream(InputStream in, boolean decompressConcatenated, ArrayCache arrayCache)
+            throws IOException {
+        this.xz = decompressConcatenated ? new XZInputStream(in, -1, true, arrayCache)
+                : new SingleXZInputStream(in, -1, true, arrayCache);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = xz.read();
+        count(b == -1 ? -1 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = xz.read(b, off, len);
+        count(n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return xz.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        xz.close();
+    }
+}
@@ -0,0 +1,160 @@
+package org.embulk.decoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * Iterate entries of a zip file by its central directory.
+ *
+ * Unlike ZipArchiveInputStream, entries which don't match to match_name are
+ * skipped without reading their data. STORED entries with data descriptors
+ * are also supported because sizes are read from the central directory.
+ *
+ * Entries are returned in the physical order to read the file sequentially.
+ * In detached mode, streams of entries are neither counted nor closed by
+ * next(). ParallelEntryIterator reads them on other threads because
+ * ZipFile reads each entry independently.
+ */
+class ZipFileIterator implements ArchiveEntryIterator, Closeable {
+    private final ZipFile zipFile;
+    private final SpillFile spill;
+    private final Enumeration<ZipArchiveEntry> entries;
+    private final EntryNameMatcher matcher;
+    private final EntrySlice slice;
+    private final EntryStats stats;
+    private ZipArchiveEntry entry;
+    private ZipArchiveEntry currentEntry;
+    private InputStream current;
+    private boolean detached = false;
+    private boolean closed = false;
+
+    /**
+     * @param spill a temporary file of zipFile. It is deleted by close().
+     * null if there is nothing to delete.
+     */
+    ZipFileIterator(ZipFile zipFile, SpillFile spill, EntryNameMatcher matcher) {
+        this(zipFile, spill, matcher, new EntryStats());
+    }
+
+    ZipFileIterator(ZipFile zipFile, SpillFile spill, EntryNameMatcher matcher, EntryStats stats) {
+        this(zipFile, spill, matcher, EntrySlice.ALL, stats);
+    }
+
+    /**
+     * @param slice selects matched entries. Entries in other slices are
+     * skipped without reading their data.
+     */
+    ZipFileIterator(ZipFile zipFile, SpillFile spill, EntryNameMatcher matcher, EntrySlice slice,
+            EntryStats stats) {
+        this.zipFile = zipFile;
+        this.spill = spill;
+        this.entries = zipFile.getEntriesInPhysicalOrder();
+        this.matcher = matcher;
+        this.slice = slice;
+        this.stats = stats;
+    }
+
+    void setDetached(boolean detached) {
+        this.detached = detached;
+    }
+
+    @Override
+    public EntryStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public ArchiveEntry getCurrentEntry() {
+        return currentEntry;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return checkNext();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public InputStream next() {
+        try {
+            if (!checkNext()) {
+                return null;
+            }
+            currentEntry = entry;
+            entry = null;
+            if (detached) {
+                return zipFile.getInputStream(currentEntry);
+            }
+            closeCurrent();
+            current = stats.countDecodedBytes(zipFile.getInputStream(currentEntry));
+            return current;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closeCurrent();
+            zipFile.close();
+        } finally {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    private boolean checkNext() throws IOException {
+        if (closed) {
+            return false;
+        } else if (entry != null) {
+            return true;
+        }
+
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry e = entries.nextElement();
+            if (e.isDirectory()) {
+                continue;
+            } else if (!matcher.matches(e) || !slice.next()) {
+                // Nothing is read for a skipped entry.
+                stats.entrySkipped(e.getSize());
+                continue;
+            }
+            stats.entryMatched();
+            entry = e;
+            return true;
+        }
+        // Release the file as soon as all entries are read. Detached
+        // streams may be still read. So, it is closed by close().
+        if (!detached) {
+            close();
+        }
+        return false;
+    }
+
+    private void closeCurrent() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
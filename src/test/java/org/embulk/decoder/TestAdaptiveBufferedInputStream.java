@@ -0,0 +1,107 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestAdaptiveBufferedInputStream {
+    @Test
+    public void testGrowWhileThroughputImproves() throws IOException {
+        byte[] data = newData(256 * 1024);
+        AdaptiveBufferedInputStream in = newInput(new SlowInputStream(data, Integer.MAX_VALUE), 1024, 16 * 1024);
+        assertArrayEquals(data, readAll(in, 100));
+        assertEquals("Verify the buffer grows up to the maximum size.", 16 * 1024, in.getBufferSize());
+    }
+
+    @Test
+    public void testSettleWithoutImprovement() throws IOException {
+        byte[] data = newData(256 * 1024);
+        // The underlying stream returns only 512 bytes at a time. So, a larger
+        // buffer doesn't improve the throughput.
+        AdaptiveBufferedInputStream in = newInput(new SlowInputStream(data, 512), 1024, 16 * 1024);
+        assertArrayEquals(data, readAll(in, 100));
+        assertEquals(2048, in.getBufferSize());
+    }
+
+    @Test
+    public void testMarkAndReset() throws IOException {
+        byte[] data = newData(64 * 1024);
+        AdaptiveBufferedInputStream in = newInput(new SlowInputStream(data, Integer.MAX_VALUE), 256, 4096);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[100];
+        int n;
+        while (true) {
+            in.mark(1000);
+            n = in.read(b);
+            if (n < 0) {
+                break;
+            }
+            in.reset();
+            n = in.read(b);
+            out.write(b, 0, n);
+        }
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        byte[] data = newData(64 * 1024);
+        AdaptiveBufferedInputStream in = new AdaptiveBufferedInputStream(
+                new ByteArrayInputStream(data), 1024, 4096);
+        assertEquals(10000, in.skip(10000));
+        assertEquals(data[10000] & 0xff, in.read());
+    }
+
+    private static AdaptiveBufferedInputStream newInput(final SlowInputStream slow, int initialSize, int maxSize) {
+        return new AdaptiveBufferedInputStream(slow, initialSize, maxSize) {
+            @Override
+            long nanoTime() {
+                return slow.clock;
+            }
+        };
+    }
+
+    private static byte[] newData(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[size];
+        int n;
+        while ((n = in.read(b)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Each read takes 1ms like a request to object storage and 1ns for each
+     * byte. The time is counted by a clock instead of sleeping.
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        private final int maxRead;
+        private long clock = 0;
+
+        SlowInputStream(byte[] data, int maxRead) {
+            super(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int n = super.read(b, off, Math.min(len, maxRead));
+            clock += 1000000 + Math.max(0, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestArchiveIndex {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIsSupported() {
+        assertTrue(ArchiveIndex.isSupported(CommonsCompressUtil.toFormats("tar")));
+        assertTrue(ArchiveIndex.isSupported(CommonsCompressUtil.toFormats("tgz")));
+        assertTrue(ArchiveIndex.isSupported(CommonsCompressUtil.toFormats("tar gzip")));
+        assertFalse(ArchiveIndex.isSupported(CommonsCompressUtil.toFormats("tar.bz2")));
+        assertFalse(ArchiveIndex.isSupported(CommonsCompressUtil.toFormats("zip")));
+        assertFalse(ArchiveIndex.isSupported(CommonsCompressUtil.toFormats("gzip")));
+        assertFalse(ArchiveIndex.isSupported(null));
+    }
+
+    @Test
+    public void testCreateKey() {
+        byte[] prefix = "abc".getBytes();
+        String key = ArchiveIndex.createKey(new String[] {"tar"}, prefix, 3);
+        assertEquals(64, key.length());
+        assertEquals(key, ArchiveIndex.createKey(new String[] {"tar"}, prefix, 3));
+        assertNotEquals(key, ArchiveIndex.createKey(new String[] {"tar"}, prefix, 2));
+        assertNotEquals(key, ArchiveIndex.createKey(new String[] {"gz", "tar"}, prefix, 3));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ArchiveIndex index = new ArchiveIndex("key");
+        index.addRestartPoint(0, 0);
+        index.addRestartPoint(100, 2048);
+        index.addEntry("a.csv", 0, 10);
+        index.addEntry("dir/b.csv", 1024, 2000);
+        Path file = ArchiveIndex.getPath(folder.getRoot().toPath(), "key");
+        index.write(file);
+
+        ArchiveIndex read = ArchiveIndex.read(file, "key");
+        assertEquals(2, read.getRestartPoints().size());
+        assertEquals(100, read.getRestartPoints().get(1).compressedOffset);
+        assertEquals(2048, read.getRestartPoints().get(1).uncompressedOffset);
+        assertEquals(2, read.getEntries().size());
+        assertEquals("dir/b.csv", read.getEntries().get(1).name);
+        assertEquals(1024, read.getEntries().get(1).headerOffset);
+        assertEquals(2000, read.getEntries().get(1).size);
+        assertEquals("Verify the temporary file is renamed.", 1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testReadMissingFile() throws IOException {
+        assertNull(ArchiveIndex.read(folder.getRoot().toPath().resolve("none.idx"), "key"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAnotherKey() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("key.idx");
+        new ArchiveIndex("key").write(file);
+        ArchiveIndex.read(file, "other");
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadBrokenFile() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("key.idx");
+        Files.write(file, "broken".getBytes());
+        ArchiveIndex.read(file, "key");
+    }
+
+    @Test
+    public void testFindRestartPoint() {
+        ArchiveIndex index = new ArchiveIndex("key");
+        assertNull(index.findRestartPoint(0));
+        index.addRestartPoint(0, 0);
+        index.addRestartPoint(100, 1000);
+        index.addRestartPoint(200, 2000);
+        assertEquals(0, index.findRestartPoint(999).uncompressedOffset);
+        assertEquals(1000, index.findRestartPoint(1000).uncompressedOffset);
+        assertEquals(1000, index.findRestartPoint(1999).uncompressedOffset);
+        assertEquals(2000, index.findRestartPoint(Long.MAX_VALUE).uncompressedOffset);
+    }
+}
@@ -5,7 +5,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -15,6 +17,9 @@ import mockit.NonStrictExpectations;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.junit.Test;
 
 public class TestArchiveInputStreamIterator {
@@ -102,12 +107,77 @@ public class TestArchiveInputStreamIterator {
         assertNull("Verify there is no stream.", it.next());
     }
 
+    // A skipped entry in an uncompressed tar is skipped by skip() of
+    // the underlying stream instead of reading it.
+    @Test
+    public void testSkipEntryWithoutReading() throws Exception {
+        byte[] large = new byte[1024 * 1024];
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(bout)) {
+            putEntry(out, "skipped.txt", large);
+            putEntry(out, "matched.csv", "1,foo".getBytes());
+        }
+
+        final long[] readBytes = new long[1];
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(bout.toByteArray())) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                readBytes[0] += Math.max(0, n);
+                return n;
+            }
+        };
+        EntryStats stats = new EntryStats();
+        ArchiveInputStreamIterator it = new ArchiveInputStreamIterator(
+                new TarArchiveInputStream(in), EntryNameMatcher.of(".*\\.csv"), stats);
+        assertTrue("Verify there is a matched item.", it.hasNext());
+        assertEquals("Verify the matched item.", "1,foo", readContents(it.next()));
+        assertFalse("Verify there is no next item.", it.hasNext());
+
+        assertTrue("Verify the skipped entry is not read. read bytes:" + readBytes[0],
+                readBytes[0] < large.length / 2);
+        assertEquals("Verify matched entries.", 1, stats.getMatchedEntries());
+        assertEquals("Verify skipped entries.", 1, stats.getSkippedEntries());
+        assertEquals("Verify skipped bytes.", large.length, stats.getSkippedBytes());
+        assertEquals("Verify decoded bytes.", 5, stats.getDecodedBytes());
+    }
+
+    @Test
+    public void testSliceMatchedEntries() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(bout)) {
+            putEntry(out, "a.csv", "1,a".getBytes());
+            putEntry(out, "b.txt", "2,b".getBytes());
+            putEntry(out, "b.csv", "3,b".getBytes());
+            putEntry(out, "c.csv", "4,c".getBytes());
+            putEntry(out, "d.csv", "5,d".getBytes());
+        }
+        EntryStats stats = new EntryStats();
+        ArchiveInputStreamIterator it = new ArchiveInputStreamIterator(
+                new TarArchiveInputStream(new ByteArrayInputStream(bout.toByteArray())),
+                EntryNameMatcher.of(".*\\.csv"), EntrySlice.of(2, 1), stats, null);
+        assertTrue(it.hasNext());
+        assertEquals("Verify an unmatched entry isn't counted by the slice.", "3,b", readContents(it.next()));
+        assertTrue(it.hasNext());
+        assertEquals("5,d", readContents(it.next()));
+        assertFalse("Verify there is no next item.", it.hasNext());
+        assertEquals("Verify entries in other slices are skipped.", 3, stats.getSkippedEntries());
+    }
+
     @Test(expected=UnsupportedOperationException.class)
     public void testRemove(@Mocked final ArchiveInputStream ain) {
         ArchiveInputStreamIterator it = new ArchiveInputStreamIterator(ain);
         it.remove();
     }
 
+    private void putEntry(TarArchiveOutputStream out, String name, byte[] contents) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(contents.length);
+        out.putArchiveEntry(entry);
+        out.write(contents);
+        out.closeArchiveEntry();
+    }
+
     private String readContents(InputStream in) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         byte[] buff = new byte[128];
@@ -4,10 +4,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import mockit.Expectations;
@@ -18,9 +22,12 @@ import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorOutputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
@@ -31,8 +38,11 @@ import org.embulk.spi.Buffer;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.DecoderPlugin;
 import org.embulk.spi.FileInput;
+import org.embulk.util.file.FileInputInputStream;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class TestCommonsCompressDecoderPlugin
 {
@@ -153,6 +163,120 @@ public class TestCommonsCompressDecoderPlugin
         }};
     }
 
+    @Test
+    public void testOpenWithReadAhead(@Mocked final FileInput input) throws Exception
+    {
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getReadAhead(); result = true;
+            task.getReadAheadBuffers(); result = 2;
+            input.nextFile(); result = true; result = false;
+            input.poll(); result = getResourceAsBuffer("samples.tar");
+        }};
+
+        CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+        FileInput archiveFileInput = plugin.open(taskSource, input);
+        Assert.assertTrue("Verify read-ahead input is used.", archiveFileInput instanceof ReadAheadFileInput);
+
+        verifyContents(archiveFileInput, "1,foo", "2,bar");
+
+        new Verifications() {{
+            input.close(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testOpenWithZeroCopy(@Mocked final FileInput input) throws Exception
+    {
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getZeroCopy(); result = true;
+            input.nextFile(); result = true; result = false;
+            input.poll(); result = getResourceAsBuffer("samples.tar");
+        }};
+
+        CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+        FileInput archiveFileInput = plugin.open(taskSource, input);
+        Assert.assertTrue("Verify tar is read without copying.", archiveFileInput instanceof TarPassThroughFileInput);
+
+        verifyContents(archiveFileInput, "1,foo", "2,bar");
+
+        new Verifications() {{
+            input.close(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testOpenWithZeroCopyForCompressedTar(@Mocked final FileInput input) throws Exception
+    {
+        new Expectations() {{
+            task.getFormat(); result = "tgz";
+            task.getZeroCopy(); result = true;
+            input.nextFile(); result = true; result = false;
+            input.poll(); result = getResourceAsBuffer("samples.tgz");
+        }};
+
+        CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+        FileInput archiveFileInput = plugin.open(taskSource, input);
+        Assert.assertTrue("Verify zero_copy is not used for tgz.", archiveFileInput instanceof CommonsCompressFileInput);
+
+        verifyContents(archiveFileInput, "1,foo", "2,bar");
+    }
+
+    @Test
+    public void testOpenWithSlice(@Mocked final FileInput input) throws Exception
+    {
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getSliceCount(); result = 2;
+            task.getSliceIndex(); result = 1;
+            input.nextFile(); result = true; result = false;
+            input.poll(); result = getResourceAsBuffer("samples.tar");
+        }};
+
+        CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+        verifyContents(plugin.open(taskSource, input), "2,bar");
+    }
+
+    @Test
+    public void testOpenWithSliceAndZeroCopy(@Mocked final FileInput input) throws Exception
+    {
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getZeroCopy(); result = true;
+            task.getSliceCount(); result = 2;
+            task.getSliceIndex(); result = 0;
+            input.nextFile(); result = true; result = false;
+            input.poll(); result = getResourceAsBuffer("samples.tar");
+        }};
+
+        CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+        verifyContents(plugin.open(taskSource, input), "1,foo");
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOpenWithIndexDir(@Mocked final FileInput input) throws Exception
+    {
+        new Expectations() {{
+            task.getFormat(); result = "tgz";
+            task.getDecompressConcatenated(); result = true;
+            task.getIndexDir(); result = folder.getRoot().getAbsolutePath();
+            input.nextFile(); result = true; result = false; result = true; result = false;
+            // The first 64KB is read to find an index. So, the end of a file is returned.
+            input.poll();
+            result = getResourceAsBuffer("samples.tgz"); result = null;
+            result = getResourceAsBuffer("samples.tgz"); result = null;
+        }};
+
+        CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+        verifyContents(plugin.open(taskSource, input), "1,foo", "2,bar");
+        Assert.assertEquals("Verify an index is written.", 1, folder.getRoot().list().length);
+        verifyContents(plugin.open(taskSource, input), "1,foo", "2,bar");
+    }
+
     @Test
     public void testOpenArchiveFormatAutoDetect(@Mocked final FileInput input) throws Exception
     {
@@ -226,6 +350,21 @@ public class TestCommonsCompressDecoderPlugin
         }
     }
 
+    @Test
+    public void testOpenForSevenZ() throws Exception
+    {
+        final byte[] archive = TestSevenZFileIterator.newSevenZ("sample_1.csv", "1,foo", "sample_2.csv", "2,bar");
+        for (final String format : new String[]{ArchiveStreamFactory.SEVEN_Z, ""}) {
+            new Expectations() {{
+                task.getFormat(); result = format;
+            }};
+            FileInput mockInput = new MockFileInput(new MockBuffer(archive));
+            CommonsCompressDecoderPlugin plugin = newMockedCommonsCompressDecoderPlugin();
+            FileInput archiveFileInput = plugin.open(taskSource, mockInput);
+            verifyContents(archiveFileInput, "1,foo", "2,bar");
+        }
+    }
+
     @Test
     public void testOpenForGeneratedCompression() throws Exception
     {
@@ -233,11 +372,11 @@ public class TestCommonsCompressDecoderPlugin
                 CompressorStreamFactory.BZIP2,
                 CompressorStreamFactory.DEFLATE,
                 CompressorStreamFactory.GZIP,
-                // CompressorStreamFactory.LZMA, // CompressorException: Compressor: lzma not found.
+                CompressorStreamFactory.LZMA,
                 // CompressorStreamFactory.PACK200, // Failed to generate compressed file.
                 // CompressorStreamFactory.SNAPPY_FRAMED, // CompressorException: Compressor: snappy-framed not found.
                 // CompressorStreamFactory.SNAPPY_RAW, // CompressorException: Compressor: snappy-raw not found.
-                // CompressorStreamFactory.XZ, // ClassNotFoundException: org.tukaani.xz.FilterOptions
+                CompressorStreamFactory.XZ,
                 // CompressorStreamFactory.Z, // CompressorException: Compressor: z not found.
         };
 
@@ -252,6 +391,242 @@ public class TestCommonsCompressDecoderPlugin
         }
     }
 
+    // outer.tar
+    //   a.csv
+    //   b.csv.gz
+    //   inner.zip
+    //     c.csv
+    //     d.tar.gz
+    //       e.csv
+    @Test
+    public void testOpenNestedArchives() throws Exception
+    {
+        final byte[] archive = newNestedArchive();
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getMaxNestingDepth(); result = 3;
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        verifyContents(archiveFileInput, "1,a", "2,b", "3,c", "5,e");
+    }
+
+    // Each file returned to a parser belongs to exactly one slice. Nested
+    // archives are not counted by slices.
+    @Test
+    public void testOpenNestedArchivesWithSlice() throws Exception
+    {
+        final byte[] archive = newNestedArchive();
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getMaxNestingDepth(); result = 3;
+            task.getSliceCount(); result = 2;
+            task.getSliceIndex(); result = 0; result = 1;
+        }};
+        List<String> all = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            List<String> slice = readFiles(newMockedCommonsCompressDecoderPlugin().open(
+                    taskSource, new MockFileInput(new MockBuffer(archive))));
+            Assert.assertFalse("Verify slice " + i + " has files.", slice.isEmpty());
+            all.addAll(slice);
+        }
+        Collections.sort(all);
+        Assert.assertEquals("Verify the union of slices is all files.",
+                Arrays.asList("1,a", "2,b", "3,c", "5,e"), all);
+    }
+
+    @Test
+    public void testOpenNestedArchivesWithParallelEntries() throws Exception
+    {
+        final byte[] archive = newNestedArchive();
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getMaxNestingDepth(); result = 3;
+            task.getParallelEntries(); result = 4;
+            task.getDecodeThreads(); result = 2;
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        verifyContents(archiveFileInput, "1,a", "2,b", "3,c", "5,e");
+    }
+
+    @Test
+    public void testOpenZipWithParallelEntries() throws Exception
+    {
+        final byte[] archive = newArchive(ArchiveStreamFactory.ZIP,
+                "sample_1.csv", "1,foo".getBytes(), "sample_2.csv", "2,bar".getBytes());
+        new Expectations() {{
+            task.getFormat(); result = "zip";
+            task.getRandomAccess(); result = true;
+            task.getVerifyChecksums(); result = true;
+            task.getParallelEntries(); result = 4;
+            task.getMaxInFlightBytes(); result = 4;
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        verifyContents(archiveFileInput, "1,foo", "2,bar");
+    }
+
+    @Test
+    public void testOpenNestedArchivesWithDepth() throws Exception
+    {
+        final byte[] archive = newNestedArchive();
+        new Expectations() {{
+            task.getFormat(); result = "";
+            task.getMaxNestingDepth(); result = 1;
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        Assert.assertTrue(archiveFileInput.nextFile());
+        Assert.assertEquals("1,a", readFileInput(archiveFileInput));
+        Assert.assertTrue(archiveFileInput.nextFile());
+        Assert.assertEquals("Verify a compressed file in an archive is decoded.", "2,b", readFileInput(archiveFileInput));
+        Assert.assertTrue(archiveFileInput.nextFile());
+        Assert.assertEquals("Verify an archive at the max depth is opened.", "3,c", readFileInput(archiveFileInput));
+        Assert.assertTrue(archiveFileInput.nextFile());
+        Assert.assertTrue("Verify a file deeper than the max depth is not decoded.",
+                readFileInput(archiveFileInput).length() > 10);
+        Assert.assertFalse(archiveFileInput.nextFile());
+        archiveFileInput.close();
+    }
+
+    @Test
+    public void testOpenNestedArchivesMatchName() throws Exception
+    {
+        final byte[] archive = newNestedArchive();
+        new Expectations() {{
+            task.getFormat(); result = "tar";
+            task.getMaxNestingDepth(); result = 3;
+            task.getMatchName(); result = "(b|c|d|e|inner).*";
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        verifyContents(archiveFileInput, "2,b", "3,c", "5,e");
+    }
+
+    @Test
+    public void testOpenNestedTarGzWithAutoDetection() throws Exception
+    {
+        final byte[] archive = gzip(newArchive(ArchiveStreamFactory.TAR,
+                "sample_1.csv", "1,foo".getBytes(), "sample_2.csv", "2,bar".getBytes()));
+        new Expectations() {{
+            task.getFormat(); result = "";
+            task.getMaxNestingDepth(); result = 1;
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        verifyContents(archiveFileInput, "1,foo", "2,bar");
+    }
+
+    @Test
+    public void testOpenZipWithVerifyChecksums() throws Exception
+    {
+        // Entries have data descriptors. So, CRC32 is verified after the next entry is read.
+        final byte[] archive = newArchive(ArchiveStreamFactory.ZIP,
+                "sample_1.csv", "1,foo".getBytes(), "sample_2.csv", "2,bar".getBytes());
+        new Expectations() {{
+            task.getFormat(); result = "zip";
+            task.getVerifyChecksums(); result = true;
+            task.getEntryDigest(); result = "SHA-256";
+        }};
+        FileInput archiveFileInput = newMockedCommonsCompressDecoderPlugin().open(
+                taskSource, new MockFileInput(new MockBuffer(archive)));
+        verifyContents(archiveFileInput, "1,foo", "2,bar");
+    }
+
+    private byte[] newNestedArchive() throws IOException
+    {
+        byte[] dTarGz = gzip(newArchive(ArchiveStreamFactory.TAR, "e.csv", "5,e".getBytes()));
+        byte[] innerZip = newArchive(ArchiveStreamFactory.ZIP, "c.csv", "3,c".getBytes(), "d.tar.gz", dTarGz);
+        return newArchive(ArchiveStreamFactory.TAR, "a.csv", "1,a".getBytes(),
+                "b.csv.gz", gzip("2,b".getBytes()), "inner.zip", innerZip);
+    }
+
+    private byte[] newArchive(String format, Object... namesAndContents) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            ArchiveOutputStream aout = new ArchiveStreamFactory().createArchiveOutputStream(format, bout);
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                byte[] contents = (byte[]) namesAndContents[i + 1];
+                ArchiveEntry entry;
+                if (ArchiveStreamFactory.ZIP.equals(format)) {
+                    entry = new ZipArchiveEntry((String) namesAndContents[i]);
+                } else {
+                    TarArchiveEntry tarEntry = new TarArchiveEntry((String) namesAndContents[i]);
+                    tarEntry.setSize(contents.length);
+                    entry = tarEntry;
+                }
+                aout.putArchiveEntry(entry);
+                aout.write(contents);
+                aout.closeArchiveEntry();
+            }
+            aout.finish();
+            aout.close();
+        } catch (ArchiveException e) {
+            throw new IOException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] gzip(byte[] contents) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (GzipCompressorOutputStream out = new GzipCompressorOutputStream(bout)) {
+            out.write(contents);
+        }
+        return bout.toByteArray();
+    }
+
+    // Count buffers per decoded MB. A full buffer is 8192 bytes in MockBufferAllocator.
+    @Test
+    public void testFillBufferCountsBuffersPerMegabyte() throws Exception
+    {
+        final byte[] contents = newCsvContents(1024 * 1024);
+        final int fullBuffers = (contents.length + 8191) / 8192;
+
+        String[] archiveFormats = new String[]{
+                ArchiveStreamFactory.AR,
+                ArchiveStreamFactory.CPIO,
+                ArchiveStreamFactory.JAR,
+                ArchiveStreamFactory.TAR,
+                ArchiveStreamFactory.ZIP,
+        };
+        for (String format : archiveFormats) {
+            byte[] archive = toByteArray(getArchiveInputStream(format, "sample.csv", contents));
+            int unfilled = countBuffers(archive, contents, 1);
+            int filled = countBuffers(archive, contents, Integer.MAX_VALUE);
+            Assert.assertEquals("Verify buffers are filled for " + format, fullBuffers, filled);
+            Assert.assertTrue("Verify the number of buffers doesn't increase for " + format, filled <= unfilled);
+        }
+
+        String[] compressorFormats = new String[]{
+                CompressorStreamFactory.BZIP2,
+                CompressorStreamFactory.DEFLATE,
+                CompressorStreamFactory.GZIP,
+        };
+        for (String format : compressorFormats) {
+            byte[] compressed = toByteArray(getCompressorInputStream(format, contents));
+            int unfilled = countBuffers(compressed, contents, 1);
+            int filled = countBuffers(compressed, contents, Integer.MAX_VALUE);
+            Assert.assertEquals("Verify buffers are filled for " + format, fullBuffers, filled);
+            Assert.assertTrue("Verify the number of buffers doesn't increase for " + format, filled <= unfilled);
+        }
+    }
+
+    @Test
+    public void testMinFillSize() throws Exception
+    {
+        new Expectations() {{
+            task.getFillBuffer(); result = true;
+            task.getMinFillSize(); result = 0; result = 4096;
+        }};
+        Assert.assertEquals("Verify whole buffers are filled by default.",
+                Integer.MAX_VALUE, CommonsCompressDecoderPlugin.getMinFillSize(task));
+        Assert.assertEquals("Verify min_fill_size is used.",
+                4096, CommonsCompressDecoderPlugin.getMinFillSize(task));
+    }
+
     @Test
     public void testOpenForTGZFormat(@Mocked final FileInput input) throws Exception
     {
@@ -334,6 +709,40 @@ public class TestCommonsCompressDecoderPlugin
         }};
     }
 
+    private int countBuffers(byte[] data, byte[] expected, int minFillSize) throws IOException {
+        FileInput input = new CommonsCompressFileInput(
+                new MockBufferAllocator(),
+                new CommonsCompressProvider(task, new FileInputInputStream(new MockFileInput(new MockBuffer(data)))),
+                minFillSize);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int count = 0;
+        Assert.assertTrue("Verify a file can be read.", input.nextFile());
+        Buffer buffer = input.poll();
+        while (buffer != null) {
+            count++;
+            bout.write(buffer.array(), buffer.offset(), buffer.limit());
+            buffer = input.poll();
+        }
+        input.close();
+        Assert.assertArrayEquals("Verify contents are decoded.", expected, bout.toByteArray());
+        return count;
+    }
+
+    private byte[] newCsvContents(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(i).append(",value").append(i % 97).append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        IOUtils.copy(in, bout);
+        in.close();
+        return bout.toByteArray();
+    }
+
     private Buffer getInputStreamAsBuffer(InputStream in) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         byte[] buff = new byte[1024];
@@ -361,6 +770,15 @@ public class TestCommonsCompressDecoderPlugin
         return bout.toString().trim();
     }
     
+    private List<String> readFiles(FileInput input) throws IOException {
+        List<String> files = new ArrayList<>();
+        while (input.nextFile()) {
+            files.add(readFileInput(input));
+        }
+        input.close();
+        return files;
+    }
+
     private void verifyContents(FileInput input, String ...contents) throws IOException {
         for (String expected : contents) {
             Assert.assertTrue("Verify a file can be read." + expected, input.nextFile());
@@ -390,6 +808,35 @@ public class TestCommonsCompressDecoderPlugin
         return new ByteArrayInputStream(bout.toByteArray());
     }
 
+    private InputStream getArchiveInputStream(String format, String name, byte[] contents)
+            throws ArchiveException, IOException {
+        File f = File.createTempFile("embulk-decoder-test", ".csv");
+        try {
+            try (FileOutputStream out = new FileOutputStream(f)) {
+                out.write(contents);
+            }
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ArchiveOutputStream aout = new ArchiveStreamFactory().createArchiveOutputStream(format, bout);
+            aout.putArchiveEntry(aout.createArchiveEntry(f, name));
+            aout.write(contents);
+            aout.closeArchiveEntry();
+            aout.finish();
+            aout.close();
+            return new ByteArrayInputStream(bout.toByteArray());
+        } finally {
+            f.delete();
+        }
+    }
+
+    private InputStream getCompressorInputStream(String format, byte[] contents)
+            throws CompressorException, IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CompressorOutputStream aout = new CompressorStreamFactory().createCompressorOutputStream(format, bout);
+        aout.write(contents);
+        aout.close();
+        return new ByteArrayInputStream(bout.toByteArray());
+    }
+
     private InputStream getCompressorInputStream(String format, String resource)
             throws CompressorException, URISyntaxException, IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
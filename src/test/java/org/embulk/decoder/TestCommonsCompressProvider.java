@@ -10,6 +10,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import mockit.Mocked;
@@ -22,14 +23,22 @@ import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
 import org.embulk.decoder.CommonsCompressDecoderPlugin.PluginTask;
 import org.embulk.util.file.FileInputInputStream;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 
 public class TestCommonsCompressProvider {
     @Mocked PluginTask task;
     @Mocked FileInputInputStream files;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testCommonsCompressProviderAutoDetect() throws Exception {
         new Expectations() {{
@@ -183,6 +192,116 @@ public class TestCommonsCompressProvider {
         forPartialMock.close();
     }
 
+    @Test
+    public void testOpenNextSlicesFiles(
+            @Mocked final InputStream in1,
+            @Mocked final InputStream in2,
+            @Mocked final InputStream in3) throws Exception {
+        final CommonsCompressProvider forPartialMock = new CommonsCompressProvider(task, files);
+        new Expectations(CommonsCompressProvider.class) {{
+            forPartialMock.createInputStreamIterator((InputStream)any);
+            result = Arrays.asList(in1).iterator();
+            result = Arrays.asList(in2).iterator();
+            result = Arrays.asList(in3).iterator();
+            files.nextFile(); result = true; result = true; result = true; result = false;
+            task.getFormat(); result = "";
+            task.getSliceCount(); result = 2;
+            task.getSliceIndex(); result = 1;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            assertTrue("Return only the 2nd file", in2 == provider.openNext());
+            assertNull("No stream found", provider.openNext());
+        }
+
+        forPartialMock.close();
+    }
+
+    @Test
+    public void testNewBufferedInputStream() throws Exception {
+        new Expectations() {{
+            task.getFormat(); result = "";
+            task.getInputBufferSize(); result = 65536;
+            task.getAdaptiveBufferSize(); result = true; result = false;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            InputStream in = provider.newBufferedInputStream(new ByteArrayInputStream(new byte[1]));
+            assertTrue(in instanceof AdaptiveBufferedInputStream);
+            assertEquals(65536, ((AdaptiveBufferedInputStream) in).getBufferSize());
+        }
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            InputStream in = provider.newBufferedInputStream(new ByteArrayInputStream(new byte[1]));
+            assertFalse(in instanceof AdaptiveBufferedInputStream);
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorAutoDetectLastFormat() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar")),
+                    "1,foo", "2,bar");
+            assertEquals("Verify the second file matches the last format first.", 1, provider.getFormatSniffer().getHits());
+
+            // Only the first stream is read because decompress_concatenated is false.
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("concatenated.csv.bz2")),
+                    "1,foo");
+            assertEquals("Verify a different format is detected again.",
+                    "bzip2", provider.getFormatSniffer().getLastFormat());
+            assertEquals(1, provider.getFormatSniffer().getHits());
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorAutoDetectCountsHits() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            for (int i = 0; i < 3; i++) {
+                verifyContents(provider.createInputStreamIterator(getResourceInputStream("sample_1.csv.bz2")),
+                        "1,foo");
+            }
+            assertEquals("Verify files after the first one hit the cache.", 2, provider.getFormatSniffer().getHits());
+
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.zip")),
+                    "1,foo", "2,bar");
+            assertEquals("Verify a miss is not counted.", 2, provider.getFormatSniffer().getHits());
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.zip")),
+                    "1,foo", "2,bar");
+            assertEquals(3, provider.getFormatSniffer().getHits());
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorAutoDetectSolidCompression() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tgz")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar.bz2")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar.xz")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar.Z")),
+                    "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorAutoDetectMixedFormats() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar.gz")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("concatenated.csv.gz")),
+                    "1,foo");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.zip")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.ar")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("sample_1.csv.bz2")),
+                    "1,foo");
+        }
+    }
+
     @Test
     public void testCreateInputStreamIteratorAutoDetectForArchive() throws Exception {
         try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
@@ -241,6 +360,297 @@ public class TestCommonsCompressProvider {
         }
     }
 
+    @Test
+    public void testCreateInputStreamIteratorParallelBZip2() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("tar bzip2_parallel"),
+                    0, getResourceInputStream("samples.tar.bz2"));
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamConcatenatedParallelBZip2() throws Exception {
+        new Expectations() {{
+            task.getDecompressConcatenated(); result = true;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("bzip2_parallel"), 0, getResourceInputStream("concatenated.csv.bz2"));
+            verifyContents(it, "1,foo\n2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamConcatenatedParallelGZip() throws Exception {
+        new Expectations() {{
+            task.getDecompressConcatenated(); result = true;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("gzip_parallel"), 0, getResourceInputStream("concatenated.csv.gz"));
+            verifyContents(it, "1,foo\n2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorParallelGZip() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("tar gzip_parallel"),
+                    0, getResourceInputStream("samples.tgz"));
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorParallelXZ() throws Exception {
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("tar xz_parallel"),
+                    0, getResourceInputStream("samples.tar.xz"));
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testParallelXZSpillIsDeletedByClose() throws Exception {
+        new Expectations() {{
+            task.getDecompressConcatenated(); result = true;
+            task.getTempDir(); result = folder.getRoot().getAbsolutePath();
+        }};
+
+        // The spill is deleted after the last chunk. So, the file has two chunks.
+        byte[] contents = new byte[ParallelXZInputStream.TARGET_CHUNK_BYTES + 1024 * 1024];
+        Arrays.fill(contents, (byte) 'a');
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (XZOutputStream out = new XZOutputStream(bout, new LZMA2Options(1))) {
+            for (int off = 0; off < contents.length; off += 1024 * 1024) {
+                out.write(contents, off, 1024 * 1024);
+                out.endBlock();
+            }
+        }
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("xz_parallel"), 0, new ByteArrayInputStream(bout.toByteArray()));
+            // The stream is not read to the end like a failed task.
+            assertTrue(it.next().read() >= 0);
+            assertEquals("Verify the xz file is spilled.", 1, folder.getRoot().list().length);
+        }
+        assertEquals("Verify the spill file is deleted by close().", 0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorLz4() throws Exception {
+        byte[] tar = toByteArray(getResourceInputStream("samples.tar"));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (FramedLZ4CompressorOutputStream out = new FramedLZ4CompressorOutputStream(bout)) {
+            out.write(tar);
+        }
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            verifyContents(provider.createInputStreamIterator(CommonsCompressUtil.toFormats("tar.lz4"),
+                    0, new ByteArrayInputStream(bout.toByteArray())), "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(CommonsCompressUtil.toFormats("tar lz4_framed_parallel"),
+                    0, new ByteArrayInputStream(bout.toByteArray())), "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(new ByteArrayInputStream(bout.toByteArray())),
+                    "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorRandomAccessZip() throws Exception {
+        new Expectations() {{
+            task.getRandomAccess(); result = true;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("zip"), 0, getResourceInputStream("samples.zip"));
+            assertTrue("Verify the central directory is used.", it instanceof ZipFileIterator);
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testParallelizeStreamArchiveWithoutNesting() throws Exception {
+        new Expectations() {{
+            task.getParallelEntries(); result = 4;
+            task.getMaxNestingDepth(); result = 0;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> tar = provider.createInputStreamIterator(getResourceInputStream("samples.tar"));
+            Iterator<InputStream> it = provider.parallelize(tar, 0);
+            assertFalse("Verify entries are not read ahead without decoding.", it instanceof ParallelEntryIterator);
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testParallelizeStreamArchiveWithNesting() throws Exception {
+        new Expectations() {{
+            task.getParallelEntries(); result = 4;
+            task.getMaxNestingDepth(); result = 1;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> tar = provider.createInputStreamIterator(getResourceInputStream("samples.tar"));
+            Iterator<InputStream> it = provider.parallelize(tar, 0);
+            assertTrue("Verify compressed entries are decoded by workers.", it instanceof ParallelEntryIterator);
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testParallelizeRandomAccessZipWithoutNesting() throws Exception {
+        new Expectations() {{
+            task.getRandomAccess(); result = true;
+            task.getParallelEntries(); result = 4;
+            task.getMaxNestingDepth(); result = 0;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> zip = provider.createInputStreamIterator(getResourceInputStream("samples.zip"));
+            Iterator<InputStream> it = provider.parallelize(zip, 0);
+            assertTrue("Verify entries are inflated by workers.", it instanceof ParallelEntryIterator);
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorRandomAccessAutoDetect() throws Exception {
+        new Expectations() {{
+            task.getRandomAccess(); result = true;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(getResourceInputStream("samples.zip"));
+            assertTrue("Verify the central directory is used.", it instanceof ZipFileIterator);
+            verifyContents(it, "1,foo", "2,bar");
+
+            // Other formats are not affected.
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("samples.tar")),
+                    "1,foo", "2,bar");
+            verifyContents(provider.createInputStreamIterator(getResourceInputStream("sample_1.csv.bz2")),
+                    "1,foo");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorRandomAccessZipInMemory() throws Exception {
+        new Expectations() {{
+            task.getRandomAccess(); result = true;
+            task.getSpillMemorySize(); result = 1024 * 1024;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("zip"), 0, getResourceInputStream("samples.zip"));
+            assertTrue("Verify the central directory is used.", it instanceof ZipFileIterator);
+            verifyContents(it, "1,foo", "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorRandomAccessZipOverSpillMaxSize() throws Exception {
+        new Expectations() {{
+            task.getRandomAccess(); result = true;
+            task.getSpillMaxSize(); result = 10L;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("zip"), 0, getResourceInputStream("samples.zip"));
+            assertTrue("Verify the zip file is read as a stream.", it instanceof ArchiveInputStreamIterator);
+            verifyContents(it, "1,foo", "2,bar");
+            ((ArchiveInputStreamIterator) it).close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCreateInputStreamIteratorSevenZOverSpillMaxSize() throws Exception {
+        new Expectations() {{
+            task.getSpillMaxSize(); result = 10L;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            provider.createInputStreamIterator(CommonsCompressUtil.toFormats("7z"), 0,
+                    new ByteArrayInputStream(new byte[100]));
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorRandomAccessMatchName() throws Exception {
+        new Expectations() {{
+            task.getRandomAccess(); result = true;
+            task.getMatchName(); result = ".*_2\\.csv";
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("zip"), 0, getResourceInputStream("samples.zip"));
+            verifyContents(it, "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorExcludeNames() throws Exception {
+        new Expectations() {{
+            task.getExcludeNames(); result = Arrays.asList("glob:*_1.csv");
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("tar"), 0, getResourceInputStream("samples.tar"));
+            verifyContents(it, "2,bar");
+        }
+    }
+
+    @Test
+    public void testCreateInputStreamIteratorJdkInflateBackend() throws Exception {
+        new Expectations() {{
+            task.getInflateBackend(); result = "jdk";
+            task.getDecompressConcatenated(); result = true;
+        }};
+
+        try (CommonsCompressProvider provider = new CommonsCompressProvider(task, files)) {
+            Iterator<InputStream> it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("gzip"), 0, getResourceInputStream("concatenated.csv.gz"));
+            verifyContents(it, "1,foo\n2,bar");
+
+            it = provider.createInputStreamIterator(
+                    CommonsCompressUtil.toFormats("tgz"), 0, getResourceInputStream("samples.tgz"));
+            verifyContents(it, "1,foo", "2,bar");
+
+            CompressorInputStream in = provider.createCompressorInputStream("",
+                    getResourceInputStream("concatenated.csv.gz"));
+            assertTrue("Verify the backend is used by auto detection.", in instanceof InflaterCompressorInputStream);
+        }
+    }
+
+    @Test
+    public void testInflateBackends() throws Exception {
+        assertNull("Verify the default backend.", InflateBackends.get(""));
+        assertNull("Verify the default backend.", InflateBackends.get("commons_compress"));
+        assertEquals("Verify jdk backend.", "jdk", InflateBackends.get("jdk").getName());
+        assertEquals("Verify auto falls back to jdk backend.", "jdk", InflateBackends.get("auto").getName());
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testUnknownInflateBackend() throws Exception {
+        InflateBackends.get("unknown");
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testTooSmallInflateBufferSize() throws Exception {
+        InflateBackends.get("jdk", new DecoderPool(), 9);
+    }
+
     @Test
     public void testCreateInputStreamConcatenatedGZ() throws Exception {
         new Expectations() {{
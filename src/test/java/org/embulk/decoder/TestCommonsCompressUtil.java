@@ -68,6 +68,27 @@ public class TestCommonsCompressUtil {
         assertEquals("solid compresson format returns tar for 2st element.", ArchiveStreamFactory.TAR, formats[1]);
     }
 
+    @Test
+    public void testToFormatsForZstdAndLz4() {
+        for (String format : new String[] {"tzst", "tar.zst", "tar zst", "tar zstd"}) {
+            String[] formats = CommonsCompressUtil.toFormats(format);
+            assertEquals(format + " returns zstd for 1st element.", CompressorStreamFactory.ZSTANDARD, formats[0]);
+            assertEquals(format + " returns tar for 2nd element.", ArchiveStreamFactory.TAR, formats[1]);
+        }
+        String[] formats = CommonsCompressUtil.toFormats("tar.lz4");
+        assertEquals("tar.lz4 returns lz4-framed for 1st element.", CompressorStreamFactory.LZ4_FRAMED, formats[0]);
+        assertEquals("tar.lz4 returns tar for 2nd element.", ArchiveStreamFactory.TAR, formats[1]);
+        assertEquals("lz4 is lz4-framed.", CompressorStreamFactory.LZ4_FRAMED, CommonsCompressUtil.toFormats("lz4")[0]);
+        assertEquals("lz4-block is supported.", CompressorStreamFactory.LZ4_BLOCK,
+                CommonsCompressUtil.toFormats("lz4-block")[0]);
+        assertEquals("Verify zstd_parallel.", CommonsCompressUtil.ZSTD_PARALLEL,
+                CommonsCompressUtil.toFormats("tar ZSTD_PARALLEL")[0]);
+        assertTrue("Verify xz_parallel.",
+                CommonsCompressUtil.isParallelFormat(CommonsCompressUtil.toFormats("tar XZ_PARALLEL")[0]));
+        assertTrue("Verify lz4_framed_parallel.",
+                CommonsCompressUtil.isParallelFormat(CommonsCompressUtil.toFormats("lz4_framed_parallel")[0]));
+    }
+
     @Test
     public void testToFormatsForMultipleFormats() {
         String format = ArchiveStreamFactory.TAR + " " + CompressorStreamFactory.BZIP2;
@@ -0,0 +1,173 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestDecoderExecutors {
+    @Test
+    public void testPlatformThread() throws Exception {
+        Thread thread = DecoderExecutors.newThread("test", new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, false);
+        assertTrue("Verify a thread name.", thread.getName().startsWith("embulk-decoder-commons-compress-test-"));
+        assertTrue("Verify a daemon thread.", thread.isDaemon());
+        assertEquals("Verify a platform thread.", false, isVirtual(thread));
+    }
+
+    @Test
+    public void testVirtualThreadOrFallback() throws Exception {
+        Thread thread = DecoderExecutors.newThread("test", new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, true);
+        assertTrue("Verify a thread name.", thread.getName().startsWith("embulk-decoder-commons-compress-test-"));
+        assertTrue("Verify a daemon thread.", thread.isDaemon());
+        assertEquals("Verify a virtual thread is used only if it is supported.",
+                DecoderExecutors.isVirtualThreadSupported(), isVirtual(thread));
+    }
+
+    @Test
+    public void testWorkerPoolWithVirtualThreads() throws Exception {
+        ExecutorService executor = DecoderExecutors.newWorkerPool("test", 2, true);
+        try {
+            Future<Thread> future = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            });
+            Thread thread = future.get();
+            assertTrue("Verify a daemon thread.", thread.isDaemon());
+            assertEquals("Verify a virtual thread is used only if it is supported.",
+                    DecoderExecutors.isVirtualThreadSupported(), isVirtual(thread));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSharedPoolLimitsTasksOfExecutor() throws Exception {
+        ExecutorService executor = DecoderExecutors.newDecodeExecutor(2, false);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            List<Future<Thread>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(executor.submit(new Callable<Thread>() {
+                    @Override
+                    public Thread call() throws Exception {
+                        int n = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), n));
+                        }
+                        Thread.sleep(5);
+                        running.decrementAndGet();
+                        return Thread.currentThread();
+                    }
+                }));
+            }
+            for (Future<Thread> future : futures) {
+                Thread thread = future.get();
+                assertTrue("Verify a daemon thread.", thread.isDaemon());
+                assertEquals("Verify a platform thread.", false, isVirtual(thread));
+            }
+            assertTrue("Verify at most 2 tasks run at a time. max: " + maxRunning.get(), maxRunning.get() <= 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSharedPoolIsReleasedByLastExecutor() throws Exception {
+        int users = DecoderExecutors.getSharedPoolUsers();
+        ExecutorService first = DecoderExecutors.newDecodeExecutor(2, false);
+        ExecutorService second = DecoderExecutors.newDecodeExecutor(2, false);
+        assertEquals("Verify executors share the pool.", users + 2, DecoderExecutors.getSharedPoolUsers());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<Object> blocked = first.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                started.countDown();
+                // Interrupted by shutdownNow().
+                new CountDownLatch(1).await();
+                return null;
+            }
+        });
+        started.await();
+        first.shutdownNow();
+        assertTrue("Verify the running task is interrupted.", first.awaitTermination(10, TimeUnit.SECONDS));
+        try {
+            blocked.get();
+            fail();
+        } catch (Exception e) {
+            assertTrue("Verify the task is interrupted.", e.getCause() instanceof InterruptedException
+                    || e instanceof CancellationException);
+        }
+        assertEquals("Verify the first executor releases the pool.", users + 1,
+                DecoderExecutors.getSharedPoolUsers());
+
+        Future<String> future = second.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        assertEquals("Verify the other executor still runs tasks.", "done", future.get());
+        second.shutdown();
+        assertTrue(second.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals("Verify the second executor releases the pool.", users, DecoderExecutors.getSharedPoolUsers());
+    }
+
+    @Test
+    public void testSharedPoolShrinksWhenLargestUserReleases() throws Exception {
+        ExecutorService small = DecoderExecutors.newDecodeExecutor(2, false);
+        ExecutorService large = DecoderExecutors.newDecodeExecutor(8, false);
+        try {
+            assertTrue("Verify the pool grows to the largest request.", DecoderExecutors.getSharedPoolThreads() >= 8);
+
+            large.shutdown();
+            assertTrue(large.awaitTermination(10, TimeUnit.SECONDS));
+            if (DecoderExecutors.getSharedPoolUsers() == 1) {
+                // No other test uses the pool now.
+                assertEquals("Verify the pool shrinks to the rest.", 2, DecoderExecutors.getSharedPoolThreads());
+            }
+            assertEquals("Verify the pool still runs tasks.", "done", small.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "done";
+                }
+            }).get());
+        } finally {
+            large.shutdownNow();
+            small.shutdownNow();
+        }
+    }
+
+    /**
+     * Thread.isVirtual() is available on Java 21 or later.
+     */
+    private boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
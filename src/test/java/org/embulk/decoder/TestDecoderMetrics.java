@@ -0,0 +1,100 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+import org.junit.Test;
+
+public class TestDecoderMetrics {
+    @Test
+    public void testCounters() {
+        EntryStats stats = new EntryStats();
+        stats.entryMatched();
+        stats.entrySkipped(10);
+        stats.entrySkipped(-1);
+        DecoderMetrics metrics = new DecoderMetrics();
+        metrics.setEntryStats(stats);
+        metrics.fileOpened();
+        metrics.addUpstreamRead(100, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.addDecoded(250, TimeUnit.MILLISECONDS.toNanos(7));
+        metrics.addDecoded(0, TimeUnit.MILLISECONDS.toNanos(1));
+
+        assertEquals(1, metrics.getInputFiles());
+        assertEquals(100, metrics.getCompressedBytes());
+        assertEquals(250, metrics.getDecompressedBytes());
+        assertEquals(1, metrics.getBuffers());
+        assertEquals(3, metrics.getEntriesSeen());
+        assertEquals(1, metrics.getEntriesMatched());
+        assertEquals(2, metrics.getEntriesSkipped());
+        assertEquals(2, metrics.getUpstreamReadMillis());
+        assertEquals("Upstream read time is not decode time.", 6, metrics.getDecodeMillis());
+        assertEquals(2.5, metrics.getCompressionRatio(), 0.001);
+    }
+
+    @Test
+    public void testCompressionRatioWithoutInput() {
+        assertEquals(0, new DecoderMetrics().getCompressionRatio(), 0.001);
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        DecoderMetrics metrics = new DecoderMetrics().startReporting(0, true);
+        ObjectName name = metrics.getObjectName();
+        assertNotNull(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        metrics.addUpstreamRead(10, 0);
+        assertEquals(10L, server.getAttribute(name, "CompressedBytes"));
+
+        metrics.close();
+        assertNull(metrics.getObjectName());
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testCloseWithoutReporting() {
+        DecoderMetrics metrics = new DecoderMetrics();
+        metrics.close();
+        assertNull(metrics.getObjectName());
+    }
+
+    @Test
+    public void testPeriodicLogging() {
+        DecoderMetrics metrics = new DecoderMetrics().startReporting(1, false);
+        assertNull(metrics.getObjectName());
+        metrics.close();
+    }
+
+    @Test
+    public void testMeteredFileInput(@Mocked final FileInput input, @Mocked final Buffer buffer) {
+        new Expectations() {{
+            input.nextFile(); result = true; result = false;
+            input.poll(); result = buffer; result = null;
+            buffer.limit(); result = 5;
+        }};
+
+        DecoderMetrics metrics = new DecoderMetrics();
+        MeteredFileInput metered = new MeteredFileInput(input, metrics);
+        assertTrue(metered.nextFile());
+        assertTrue(buffer == metered.poll());
+        assertNull(metered.poll());
+        assertFalse(metered.nextFile());
+        metered.close();
+
+        assertEquals(1, metrics.getInputFiles());
+        assertEquals(5, metrics.getCompressedBytes());
+    }
+}
@@ -0,0 +1,67 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+import org.tukaani.xz.BasicArrayCache;
+
+public class TestDecoderPool {
+    @Test
+    public void testReuseInflater() {
+        DecoderPool pool = new DecoderPool();
+        Inflater raw = pool.borrowInflater(true);
+        Inflater zlib = pool.borrowInflater(false);
+        pool.releaseInflater(raw, true);
+        pool.releaseInflater(zlib, false);
+
+        assertTrue("Verify the same mode is reused.", raw == pool.borrowInflater(true));
+        assertTrue(zlib == pool.borrowInflater(false));
+        assertEquals(2, pool.getReused());
+        pool.close();
+    }
+
+    @Test
+    public void testReuseBuffer() {
+        DecoderPool pool = new DecoderPool();
+        byte[] buffer = pool.borrowBuffer(1024);
+        pool.releaseBuffer(buffer);
+        assertEquals("Verify a different size is not reused.", 2048, pool.borrowBuffer(2048).length);
+        assertTrue(buffer == pool.borrowBuffer(1024));
+        pool.close();
+    }
+
+    @Test
+    public void testMaxIdle() {
+        DecoderPool pool = new DecoderPool(1);
+        Inflater first = pool.borrowInflater(true);
+        Inflater second = pool.borrowInflater(true);
+        pool.releaseInflater(first, true);
+        pool.releaseInflater(second, true);
+        assertTrue(first == pool.borrowInflater(true));
+        assertFalse(second == pool.borrowInflater(true));
+        pool.close();
+    }
+
+    @Test
+    public void testUnpooled() {
+        DecoderPool pool = DecoderPool.unpooled();
+        Inflater inflater = pool.borrowInflater(true);
+        pool.releaseInflater(inflater, true);
+        assertFalse(inflater == pool.borrowInflater(true));
+        assertEquals(0, pool.getReused());
+        assertFalse(pool.getArrayCache() instanceof BasicArrayCache);
+    }
+
+    @Test
+    public void testReleaseAfterClose() {
+        DecoderPool pool = new DecoderPool();
+        Inflater inflater = pool.borrowInflater(true);
+        pool.close();
+        pool.releaseInflater(inflater, true);
+        assertFalse("Verify nothing is kept after close.", inflater == pool.borrowInflater(true));
+    }
+}
@@ -0,0 +1,79 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TestEntryNameMatcher {
+    private static final String[] NAMES = {
+        "", "a.csv", "data/a.csv", "data/b.txt", "data/sub/c.csv", "log.csv.gz",
+        "csv", ".csv", "data", "data/", "x.CSV", "a$b", "a.b", "axb", "a\\b",
+    };
+
+    // Fast paths and Pattern must return the same results as String.matches.
+    @Test
+    public void testCompileRegexSameAsStringMatches() {
+        String[] regexes = {
+            "", ".*", "a.csv", "a\\.csv", ".*\\.csv", "data/.*", ".*sub.*", "^data/.*$",
+            ".*\\.(csv|txt)", "data/[ab]\\.csv", "(?i).*\\.csv", "a\\$b", "a\\\\b", "a\\.*",
+            "\\Qa.b\\E", "data/\\w\\.csv", ".*.csv", "data", "a$b", "^$",
+        };
+        for (String regex : regexes) {
+            EntryNameMatcher.Matcher matcher = EntryNameMatcher.compileRegex(regex);
+            for (String name : NAMES) {
+                assertEquals("Verify regex:" + regex + " name:" + name,
+                        name.matches(regex), matcher.matches(name));
+            }
+        }
+    }
+
+    @Test
+    public void testCompileGlob() {
+        assertTrue(EntryNameMatcher.compileGlob("*.csv").matches("data/sub/c.csv"));
+        assertFalse(EntryNameMatcher.compileGlob("*.csv").matches("log.csv.gz"));
+        assertTrue(EntryNameMatcher.compileGlob("data/*").matches("data/b.txt"));
+        assertTrue(EntryNameMatcher.compileGlob("*sub*").matches("data/sub/c.csv"));
+        assertTrue(EntryNameMatcher.compileGlob("a.csv").matches("a.csv"));
+        assertFalse(EntryNameMatcher.compileGlob("a.csv").matches("axcsv"));
+        assertTrue(EntryNameMatcher.compileGlob("data/?.csv").matches("data/a.csv"));
+        assertFalse(EntryNameMatcher.compileGlob("data/?.csv").matches("data/ab.csv"));
+        assertTrue(EntryNameMatcher.compileGlob("data/*/*.csv").matches("data/sub/c.csv"));
+        assertFalse(EntryNameMatcher.compileGlob("data/*/*.csv").matches("data/a.csv"));
+        assertTrue(EntryNameMatcher.compileGlob("a(1)*").matches("a(1).csv"));
+        assertTrue(EntryNameMatcher.compileGlob("*").matches(""));
+    }
+
+    @Test
+    public void testMatchNameOnly() {
+        EntryNameMatcher matcher = EntryNameMatcher.of(".*\\.csv");
+        assertTrue(matcher.matches("data/a.csv"));
+        assertFalse(matcher.matches("data/b.txt"));
+        assertFalse("Verify null doesn't match.", matcher.matches((String) null));
+    }
+
+    @Test
+    public void testEmptyConditionsMatchAll() {
+        EntryNameMatcher matcher = EntryNameMatcher.of("", null, Collections.<String>emptyList());
+        assertTrue(matcher.matches("data/b.txt"));
+        assertTrue("Verify null matches.", matcher.matches((String) null));
+        assertTrue(EntryNameMatcher.of(null).matches("a.csv"));
+    }
+
+    @Test
+    public void testIncludeAndExclude() {
+        EntryNameMatcher matcher = EntryNameMatcher.of("data/.*",
+                Arrays.asList("glob:*.csv", "regex:.*\\.txt"),
+                Arrays.asList("glob:data/sub/*", ".*b\\.txt"));
+        assertTrue(matcher.matches("data/a.csv"));
+        assertFalse("Verify exclude_names.", matcher.matches("data/b.txt"));
+        assertFalse("Verify exclude_names.", matcher.matches("data/sub/c.csv"));
+        assertFalse("Verify match_name.", matcher.matches("a.csv"));
+        assertFalse("Verify include_names.", matcher.matches("data/a.json"));
+        assertTrue(matcher.matches("data/c.txt"));
+    }
+}
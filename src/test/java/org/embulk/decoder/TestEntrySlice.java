@@ -0,0 +1,55 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestEntrySlice {
+    @Test
+    public void testAll() {
+        assertSame(EntrySlice.ALL, EntrySlice.of(1, 0));
+        assertSame("Verify 0 means no slice.", EntrySlice.ALL, EntrySlice.of(0, 0));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(EntrySlice.ALL.next());
+        }
+    }
+
+    @Test
+    public void testEachEntryBelongsToOneSlice() {
+        EntrySlice[] slices = {EntrySlice.of(3, 0), EntrySlice.of(3, 1), EntrySlice.of(3, 2)};
+        for (int i = 0; i < 10; i++) {
+            int selected = 0;
+            for (int j = 0; j < slices.length; j++) {
+                if (slices[j].next()) {
+                    assertEquals("Verify the slice of an entry " + i, i % 3, j);
+                    selected++;
+                }
+            }
+            assertEquals(1, selected);
+        }
+    }
+
+    @Test
+    public void testSecondSlice() {
+        EntrySlice slice = EntrySlice.of(2, 1);
+        assertEquals(2, slice.getCount());
+        assertEquals(1, slice.getIndex());
+        assertFalse(slice.next());
+        assertTrue(slice.next());
+        assertFalse(slice.next());
+        assertTrue(slice.next());
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testIndexOutOfRange() {
+        EntrySlice.of(2, 2);
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testNegativeIndex() {
+        EntrySlice.of(2, -1);
+    }
+}
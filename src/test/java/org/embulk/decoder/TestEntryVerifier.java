@@ -0,0 +1,132 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+public class TestEntryVerifier {
+    private static final byte[] DATA = "1,foo\n2,bar\n".getBytes();
+
+    @Test
+    public void testDisabled() {
+        EntryVerifier verifier = new EntryVerifier(false, "");
+        InputStream in = new ByteArrayInputStream(DATA);
+        assertSame(in, verifier.wrap(new ZipArchiveEntry("a.csv"), in));
+        assertSame("Verify tar entries don't have checksums.",
+                in, new EntryVerifier(true, null).wrap(new TarArchiveEntry("a.csv"), in));
+    }
+
+    @Test
+    public void testVerifyZipStream() throws IOException {
+        for (int method : new int[] {ZipArchiveEntry.STORED, ZipArchiveEntry.DEFLATED}) {
+            ZipArchiveInputStream zip = new ZipArchiveInputStream(new ByteArrayInputStream(newZip(method, DATA)));
+            ArchiveEntry entry = zip.getNextEntry();
+            EntryVerifier verifier = new EntryVerifier(true, "SHA-256");
+            InputStream in = verifier.wrap(entry, zip);
+            assertEquals("1,foo\n2,bar\n", new String(IOUtils.toByteArray(in)));
+            zip.getNextEntry();
+            verifier.verifyPending();
+            assertTrue("Verify CRC is known after the next entry. method: " + method,
+                    ((ZipArchiveEntry) entry).getCrc() >= 0);
+        }
+    }
+
+    @Test
+    public void testCorruptedStoredEntry() throws IOException {
+        byte[] zip = newZip(ZipArchiveEntry.STORED, DATA);
+        int pos = indexOf(zip, "foo".getBytes());
+        zip[pos] = 'x';
+
+        ZipArchiveInputStream zin = new ZipArchiveInputStream(new ByteArrayInputStream(zip));
+        ArchiveEntry entry = zin.getNextEntry();
+        InputStream in = new EntryVerifier(true, null).wrap(entry, zin);
+        try {
+            IOUtils.toByteArray(in);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("CRC32 mismatch in entry a.csv at offset 12."));
+        }
+    }
+
+    @Test
+    public void testSkipIsVerified() throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry("a.csv");
+        entry.setCrc(0);
+        InputStream in = new EntryVerifier(true, null).wrap(entry, new ByteArrayInputStream(DATA));
+        try {
+            in.skip(100);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("a.csv"));
+        }
+    }
+
+    @Test
+    public void testVerifyPending() throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry("a.csv");
+        EntryVerifier verifier = new EntryVerifier(true, null);
+        InputStream in = verifier.wrap(entry, new ByteArrayInputStream(DATA));
+        IOUtils.toByteArray(in);
+        verifier.verifyPending();
+
+        // CRC32 is set by a data descriptor after data.
+        entry.setCrc(1);
+        try {
+            verifier.verifyPending();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("a.csv"));
+        }
+        verifier.verifyPending();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnsupportedDigest() {
+        new EntryVerifier(false, "NO-SUCH-DIGEST");
+    }
+
+    private static byte[] newZip(int method, byte[] data) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(bout)) {
+            ZipArchiveEntry entry = new ZipArchiveEntry("a.csv");
+            entry.setMethod(method);
+            if (method == ZipArchiveEntry.STORED) {
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                crc.update(data);
+                entry.setCrc(crc.getValue());
+                entry.setSize(data.length);
+            }
+            out.putArchiveEntry(entry);
+            out.write(data);
+            out.closeArchiveEntry();
+        }
+        return bout.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte[] target) {
+        for (int i = 0; i <= data.length - target.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < target.length && found; j++) {
+                found = data[i + j] == target[j];
+            }
+            if (found) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
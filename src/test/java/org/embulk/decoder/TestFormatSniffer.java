@@ -0,0 +1,102 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.Test;
+
+public class TestFormatSniffer {
+    private static final byte[] GZIP = {0x1f, (byte) 0x8b, 0x08, 0x00};
+
+    @Test
+    public void testSniffCompressor() throws IOException {
+        FormatSniffer sniffer = new FormatSniffer();
+        InputStream in = newStream(GZIP);
+        assertEquals("gz", sniffer.sniff(in));
+        assertEquals("Verify the position is not changed.", 0x1f, in.read());
+        assertEquals("bzip2", sniffer.sniff(newStream("BZh91AY".getBytes())));
+        assertEquals("zstd", sniffer.sniff(newStream(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0x04})));
+        assertEquals("lz4-framed", sniffer.sniff(newStream(new byte[] {0x04, 0x22, 0x4d, 0x18, 0x64})));
+        assertEquals(0, sniffer.getHits());
+    }
+
+    @Test
+    public void testSniffLastFormatFirst() throws IOException {
+        FormatSniffer sniffer = new FormatSniffer();
+        sniffer.sniff(newStream(GZIP));
+        assertEquals("gz", sniffer.sniff(newStream(GZIP)));
+        assertEquals(1, sniffer.getHits());
+        assertEquals("gz", sniffer.getLastFormat());
+    }
+
+    @Test
+    public void testSniffUnknownFormat() throws IOException {
+        FormatSniffer sniffer = new FormatSniffer();
+        assertNull(sniffer.sniff(newStream("1,foo\n".getBytes())));
+        assertNull("Verify a short stream.", sniffer.sniff(newStream(new byte[] {0x1f})));
+        assertNull(sniffer.sniff(newStream(new byte[0])));
+    }
+
+    @Test
+    public void testSniffTar() throws IOException {
+        FormatSniffer sniffer = new FormatSniffer();
+        assertEquals("tar", sniffer.sniff(newStream(newTar(TarArchiveOutputStream.LONGFILE_POSIX))));
+        assertEquals("tar", sniffer.sniffArchive(newStream(newTar(TarArchiveOutputStream.LONGFILE_POSIX))));
+    }
+
+    @Test
+    public void testSniffOldTar() throws IOException {
+        byte[] tar = newTar(TarArchiveOutputStream.LONGFILE_ERROR);
+        // Remove the magic and update the checksum like a V7 tar header.
+        for (int i = 0; i < TarConstants.MAGICLEN + TarConstants.VERSIONLEN; i++) {
+            tar[TarConstants.MAGIC_OFFSET + i] = 0;
+        }
+        for (int i = 0; i < TarConstants.CHKSUMLEN; i++) {
+            tar[148 + i] = ' ';
+        }
+        long checksum = 0;
+        for (int i = 0; i < 512; i++) {
+            checksum += 0xff & tar[i];
+        }
+        byte[] octal = String.format("%06o\0 ", checksum).getBytes();
+        System.arraycopy(octal, 0, tar, 148, octal.length);
+
+        FormatSniffer sniffer = new FormatSniffer();
+        assertEquals("tar", sniffer.sniffArchive(newStream(tar)));
+        assertEquals("tar", sniffer.sniff(newStream(tar)));
+        assertNull("Verify an old tar is not remembered.", sniffer.getLastFormat());
+    }
+
+    @Test
+    public void testSniffArchiveIgnoresCompressors() throws IOException {
+        FormatSniffer sniffer = new FormatSniffer();
+        assertNull(sniffer.sniffArchive(newStream(GZIP)));
+        assertEquals("zip", sniffer.sniffArchive(newStream(new byte[] {'P', 'K', 3, 4, 0})));
+    }
+
+    private byte[] newTar(int longFileMode) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tout = new TarArchiveOutputStream(bout)) {
+            tout.setLongFileMode(longFileMode);
+            TarArchiveEntry entry = new TarArchiveEntry("a.csv");
+            entry.setSize(3);
+            tout.putArchiveEntry(entry);
+            tout.write("1,a".getBytes());
+            tout.closeArchiveEntry();
+        }
+        return bout.toByteArray();
+    }
+
+    private InputStream newStream(byte[] bytes) {
+        return new BufferedInputStream(new ByteArrayInputStream(bytes));
+    }
+}
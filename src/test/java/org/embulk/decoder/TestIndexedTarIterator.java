@@ -0,0 +1,310 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestIndexedTarIterator {
+    private static final String[] TAR = {"tar"};
+    private static final String[] TGZ = {"gz", "tar"};
+    private static final int ENTRIES = 20;
+    private static final int ENTRY_SIZE = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBuildIndexAndSkipToMatchedEntry() throws IOException {
+        byte[] tgz = gzipMembers(newTar("data"), 32 * 1024);
+
+        IndexedTarIterator iterator = open(new CountingInputStream(tgz), TGZ, EntryNameMatcher.of(""));
+        assertTrue(iterator.isBuilding());
+        for (int i = 0; i < ENTRIES; i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(contents(i), read(iterator.next()));
+        }
+        assertFalse(iterator.hasNext());
+        iterator.close();
+        assertEquals("Verify the index is written.", 1, folder.getRoot().list().length);
+        String name = folder.getRoot().list()[0];
+        ArchiveIndex index = ArchiveIndex.read(folder.getRoot().toPath().resolve(name),
+                name.substring(0, name.length() - ArchiveIndex.SUFFIX.length()));
+        assertEquals("Verify directories are not indexed.", ENTRIES, index.getEntries().size());
+        assertTrue("Verify gzip members are restart points.", index.getRestartPoints().size() > 1);
+
+        CountingInputStream upstream = new CountingInputStream(tgz);
+        EntryStats stats = new EntryStats();
+        iterator = open(upstream, TGZ, EntryNameMatcher.of("data/file-15\\.csv"), stats);
+        assertFalse(iterator.isBuilding());
+        assertEquals(contents(15), read(iterator.next()));
+        assertFalse(iterator.hasNext());
+        iterator.close();
+
+        assertEquals(1, stats.getMatchedEntries());
+        assertEquals(ENTRIES - 1, stats.getSkippedEntries());
+        assertTrue("Verify compressed data before the entry is skipped. read: " + upstream.read,
+                upstream.read < tgz.length / 2);
+        assertTrue(upstream.skipped > 0);
+    }
+
+    @Test
+    public void testPlainTar() throws IOException {
+        byte[] tar = newTar("data");
+        IndexedTarIterator iterator = open(new CountingInputStream(tar), TAR, EntryNameMatcher.of(""));
+        while (iterator.hasNext()) {
+            read(iterator.next());
+        }
+        iterator.close();
+
+        CountingInputStream upstream = new CountingInputStream(tar);
+        iterator = open(upstream, TAR, EntryNameMatcher.of("", Arrays.asList("glob:*-3.csv", "glob:*-18.csv"), null));
+        assertEquals(contents(3), read(iterator.next()));
+        assertEquals(contents(18), read(iterator.next()));
+        assertFalse(iterator.hasNext());
+        iterator.close();
+        assertTrue("Verify data between entries is skipped. read: " + upstream.read,
+                upstream.read < tar.length / 2);
+    }
+
+    @Test
+    public void testSkipRestAfterLastMatchedEntry() throws IOException {
+        byte[] tgz = gzipMembers(newTar("data"), 32 * 1024);
+        IndexedTarIterator iterator = open(new CountingInputStream(tgz), TGZ, EntryNameMatcher.of(""));
+        while (iterator.hasNext()) {
+            read(iterator.next());
+        }
+        iterator.close();
+
+        CountingInputStream upstream = new CountingInputStream(tgz);
+        iterator = open(upstream, TGZ, EntryNameMatcher.of("data/file-1\\.csv"));
+        assertEquals(contents(1), read(iterator.next()));
+        assertFalse(iterator.hasNext());
+        iterator.close();
+        assertTrue("Verify the rest of the file is not read. read: " + upstream.read,
+                upstream.read < tgz.length / 2);
+        assertEquals("Verify the rest of the file is skipped to check its length.",
+                tgz.length, upstream.read + upstream.skipped);
+    }
+
+    @Test
+    public void testAppendedEntriesAreNotDropped() throws IOException {
+        // Both files have the same key because entries are appended after
+        // the key prefix.
+        byte[] original = newTar("data", ENTRIES);
+        byte[] appended = newTar("data", ENTRIES + 5);
+        IndexedTarIterator iterator = open(new CountingInputStream(original), TAR, EntryNameMatcher.of(""));
+        while (iterator.hasNext()) {
+            read(iterator.next());
+        }
+        iterator.close();
+
+        iterator = open(new CountingInputStream(appended), TAR, EntryNameMatcher.of("data/file-.*"));
+        assertFalse(iterator.isBuilding());
+        try {
+            while (iterator.hasNext()) {
+                read(iterator.next());
+            }
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("doesn't match"));
+        }
+        iterator.close();
+        assertEquals("Verify the index is deleted.", 0, folder.getRoot().list().length);
+
+        iterator = open(new CountingInputStream(appended), TAR, EntryNameMatcher.of("data/file-.*"));
+        assertTrue("Verify the index is rebuilt.", iterator.isBuilding());
+        int count = 0;
+        while (iterator.hasNext()) {
+            read(iterator.next());
+            count++;
+        }
+        iterator.close();
+        assertEquals(ENTRIES + 5, count);
+    }
+
+    @Test
+    public void testSingleMemberGzip() throws IOException {
+        byte[] tgz = gzipMembers(newTar("data"), Integer.MAX_VALUE);
+        IndexedTarIterator iterator = open(new CountingInputStream(tgz), TGZ, EntryNameMatcher.of(""));
+        while (iterator.hasNext()) {
+            read(iterator.next());
+        }
+        iterator.close();
+
+        iterator = open(new CountingInputStream(tgz), TGZ, EntryNameMatcher.of(".*-1[27]\\.csv"));
+        assertEquals("Verify data is decompressed and discarded.", contents(12), read(iterator.next()));
+        assertEquals(contents(17), read(iterator.next()));
+        assertFalse(iterator.hasNext());
+        iterator.close();
+    }
+
+    @Test
+    public void testMismatchedIndexIsDeleted() throws IOException {
+        // The first entry is larger than the key prefix. So, both files have
+        // the same key.
+        byte[] original = newTar("data");
+        byte[] changed = newTar("changed");
+        IndexedTarIterator iterator = open(new CountingInputStream(original), TAR, EntryNameMatcher.of(""));
+        while (iterator.hasNext()) {
+            read(iterator.next());
+        }
+        iterator.close();
+
+        iterator = open(new CountingInputStream(changed), TAR, EntryNameMatcher.of("data/file-5\\.csv"));
+        assertFalse(iterator.isBuilding());
+        try {
+            iterator.hasNext();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause().getMessage().contains("doesn't match"));
+        }
+        iterator.close();
+        assertEquals("Verify the index is deleted.", 0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testBrokenIndexIsRebuilt() throws IOException {
+        byte[] tar = newTar("data");
+        IndexedTarIterator iterator = open(new CountingInputStream(tar), TAR, EntryNameMatcher.of(""));
+        while (iterator.hasNext()) {
+            read(iterator.next());
+        }
+        iterator.close();
+        Path file = folder.getRoot().listFiles()[0].toPath();
+        Files.write(file, "broken".getBytes());
+
+        iterator = open(new CountingInputStream(tar), TAR, EntryNameMatcher.of(""));
+        assertTrue(iterator.isBuilding());
+        iterator.close();
+    }
+
+    private IndexedTarIterator open(InputStream in, String[] formats, EntryNameMatcher matcher) throws IOException {
+        return open(in, formats, matcher, new EntryStats());
+    }
+
+    private IndexedTarIterator open(InputStream in, String[] formats, EntryNameMatcher matcher, EntryStats stats)
+            throws IOException {
+        return IndexedTarIterator.open(in, formats, folder.getRoot().toPath(), new DecoderPool(), matcher,
+                EntrySlice.ALL, stats, 16 * 1024);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return new String(IOUtils.toByteArray(in));
+    }
+
+    private static String contents(int i) {
+        StringBuilder sb = new StringBuilder();
+        // The first entry is larger than ArchiveIndex.KEY_PREFIX_SIZE.
+        int size = i == 0 ? ArchiveIndex.KEY_PREFIX_SIZE + ENTRY_SIZE : ENTRY_SIZE;
+        // Random values are not compressed well like real data.
+        Random random = new Random(i);
+        while (sb.length() < size) {
+            sb.append(i).append(',').append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param dir the directory of entries except the first one.
+     */
+    private static byte[] newTar(String dir) throws IOException {
+        return newTar(dir, ENTRIES);
+    }
+
+    private static byte[] newTar(String dir, int entries) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(bout)) {
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (int i = 0; i < entries; i++) {
+                if (i == 1) {
+                    out.putArchiveEntry(new TarArchiveEntry(dir + "/"));
+                    out.closeArchiveEntry();
+                }
+                byte[] data = contents(i).getBytes();
+                TarArchiveEntry entry = new TarArchiveEntry((i == 0 ? "data" : dir) + "/file-" + i + ".csv");
+                entry.setSize(data.length);
+                out.putArchiveEntry(entry);
+                out.write(data);
+                out.closeArchiveEntry();
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    private static byte[] gzipMembers(byte[] data, int memberSize) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int off = 0; off < data.length; off += memberSize) {
+            try (GZIPOutputStream out = new GZIPOutputStream(new NonClosingOutputStream(bout))) {
+                out.write(data, off, Math.min(memberSize, data.length - off));
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    private static class NonClosingOutputStream extends java.io.FilterOutputStream {
+        NonClosingOutputStream(ByteArrayOutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class CountingInputStream extends ByteArrayInputStream {
+        long read = 0;
+        long skipped = 0;
+
+        CountingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read() {
+            int b = super.read();
+            if (b >= 0) {
+                read++;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                read += n;
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            long s = super.skip(n);
+            skipped += s;
+            return s;
+        }
+    }
+}
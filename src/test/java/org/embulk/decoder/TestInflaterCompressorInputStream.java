@@ -0,0 +1,157 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorInputStream;
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.junit.Test;
+
+public class TestInflaterCompressorInputStream {
+    // Smaller than test data to read input many times.
+    private static final int BUFFER_SIZE = 1000;
+
+    @Test
+    public void testGzip() throws Exception {
+        verifyGzip(gzip(newContents(300 * 1024), null), true);
+    }
+
+    @Test
+    public void testGzipHeaderFields() throws Exception {
+        GzipParameters parameters = new GzipParameters();
+        parameters.setFilename("sample.csv");
+        parameters.setComment("comment");
+        verifyGzip(gzip(newContents(10 * 1024), parameters), true);
+    }
+
+    @Test
+    public void testConcatenated() throws Exception {
+        byte[] compressed = getResourceBytes("concatenated.csv.gz");
+        verifyGzip(compressed, true);
+        verifyGzip(compressed, false);
+        assertEquals("Verify all members are read.", "1,foo\n2,bar",
+                new String(toByteArray(InflaterCompressorInputStream.gzip(
+                        new ByteArrayInputStream(compressed), true, BUFFER_SIZE))).trim());
+    }
+
+    @Test
+    public void testManyMembers() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            byte[] member = gzip(newContents(i * 100), null);
+            bout.write(member, 0, member.length);
+        }
+        verifyGzip(bout.toByteArray(), true);
+    }
+
+    @Test
+    public void testPooledInflater() throws Exception {
+        byte[] contents = newContents(10 * 1024);
+        byte[] compressed = gzip(contents, null);
+        try (DecoderPool pool = new DecoderPool()) {
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(contents, toByteArray(InflaterCompressorInputStream.gzip(
+                        new ByteArrayInputStream(compressed), true, BUFFER_SIZE, pool)));
+            }
+            assertEquals("Verify an Inflater and a buffer are reused twice.", 4, pool.getReused());
+        }
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (DeflateCompressorOutputStream out = new DeflateCompressorOutputStream(bout)) {
+            out.write(newContents(300 * 1024));
+        }
+        byte[] compressed = bout.toByteArray();
+        byte[] expected = toByteArray(new DeflateCompressorInputStream(new ByteArrayInputStream(compressed)));
+        assertArrayEquals("Verify decoded data is the same as DeflateCompressorInputStream.", expected,
+                toByteArray(InflaterCompressorInputStream.zlib(new ByteArrayInputStream(compressed), BUFFER_SIZE)));
+    }
+
+    @Test(expected=IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] compressed = gzip(newContents(10 * 1024), null);
+        decode(Arrays.copyOf(compressed, compressed.length - 4));
+    }
+
+    @Test(expected=IOException.class)
+    public void testBrokenCrc() throws Exception {
+        byte[] compressed = gzip(newContents(10 * 1024), null);
+        compressed[compressed.length - 8] ^= 0x55;
+        decode(compressed);
+    }
+
+    @Test(expected=IOException.class)
+    public void testGarbageAfterMember() throws Exception {
+        byte[] compressed = gzip(newContents(10 * 1024), null);
+        byte[] garbage = Arrays.copyOf(compressed, compressed.length + 3);
+        decode(garbage);
+    }
+
+    @Test(expected=IOException.class)
+    public void testNotGzip() throws Exception {
+        decode(getResourceBytes("sample_1.csv"));
+    }
+
+    @Test(expected=IOException.class)
+    public void testEmptyInput() throws Exception {
+        decode(new byte[0]);
+    }
+
+    private void verifyGzip(byte[] compressed, boolean decompressConcatenated) throws IOException {
+        byte[] expected = toByteArray(new GzipCompressorInputStream(
+                new ByteArrayInputStream(compressed), decompressConcatenated));
+        assertArrayEquals("Verify decoded data is the same as GzipCompressorInputStream.", expected,
+                toByteArray(InflaterCompressorInputStream.gzip(
+                        new ByteArrayInputStream(compressed), decompressConcatenated, BUFFER_SIZE)));
+    }
+
+    private byte[] decode(byte[] compressed) throws IOException {
+        return toByteArray(InflaterCompressorInputStream.gzip(new ByteArrayInputStream(compressed), true, BUFFER_SIZE));
+    }
+
+    private byte[] gzip(byte[] contents, GzipParameters parameters) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (GzipCompressorOutputStream out = parameters == null ? new GzipCompressorOutputStream(bout)
+                : new GzipCompressorOutputStream(bout, parameters)) {
+            out.write(contents);
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] newContents(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(random.nextInt(100000)).append(",value").append(random.nextInt(1000)).append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int len = in.read(buff);
+        while (len != -1) {
+            bout.write(buff, 0, len);
+            len = in.read(buff);
+        }
+        in.close();
+        return bout.toByteArray();
+    }
+
+    private byte[] getResourceBytes(String resource) throws IOException {
+        return toByteArray(getClass().getResourceAsStream(resource));
+    }
+}
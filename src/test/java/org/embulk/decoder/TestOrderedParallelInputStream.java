@@ -0,0 +1,141 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOrderedParallelInputStream {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = DecoderExecutors.newWorkerPool("test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReadInOrder() throws Exception {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            chunks.add("chunk" + i + ";");
+            expected.append("CHUNK").append(i).append(";");
+        }
+        assertEquals("Verify chunks are decoded in order.", expected.toString(),
+                readAll(new UpperCaseInputStream(chunks, 3)));
+    }
+
+    @Test
+    public void testMergeChunksWhenDecodeFails() throws Exception {
+        // "b" and "c" don't end with ';'. So, they are joined with the next chunk.
+        List<String> chunks = Arrays.asList("a;", "b", "c", "d;", "e;");
+        assertEquals("Verify failed chunks are joined.", "A;BCD;E;",
+                readAll(new UpperCaseInputStream(chunks, 2)));
+    }
+
+    @Test(expected=IOException.class)
+    public void testDecodeFailsAtTheEnd() throws Exception {
+        readAll(new UpperCaseInputStream(Arrays.asList("a;", "b"), 2));
+    }
+
+    @Test
+    public void testStopByChunkDecoded() throws Exception {
+        List<String> chunks = Arrays.asList("a;", "b;", "end;", "c;");
+        assertEquals("Verify data after the last chunk is not returned.", "A;B;END;",
+                readAll(new UpperCaseInputStream(chunks, 2)));
+    }
+
+    @Test
+    public void testLargeChunksAreDecodedAsStreams() throws Exception {
+        List<String> chunks = Arrays.asList("a;", "large chunk;", "bb", "cc;", "end;", "d;");
+        UpperCaseInputStream in = new UpperCaseInputStream(chunks, 2);
+        in.setMaxDecodedChunkBytes(4);
+        assertEquals("Verify large chunks are decoded by openChunk() in order.", "A;large chunk;bbcc;END;",
+                readAll(in));
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        UpperCaseInputStream in = new UpperCaseInputStream(Arrays.asList("abc;", "def;", "ghi;"), 2);
+        assertEquals("Verify skip across chunks.", 6, in.skip(6));
+        assertEquals("Verify the data after skip.", "F;GHI;", readAll(in));
+        assertEquals("Verify skipped bytes are counted.", 12, in.getBytesRead());
+    }
+
+    @Test
+    public void testSkipAtTheEnd() throws Exception {
+        UpperCaseInputStream in = new UpperCaseInputStream(Arrays.asList("abc;"), 2);
+        assertEquals("Verify skip stops at the end.", 4, in.skip(100));
+        assertEquals("Verify skip returns 0 at the end.", 0, in.skip(100));
+        in.close();
+    }
+
+    private String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[7];
+        int n = in.read(buff);
+        while (n != -1) {
+            bout.write(buff, 0, n);
+            n = in.read(buff);
+        }
+        in.close();
+        return bout.toString();
+    }
+
+    // Decode a chunk by converting to upper case. A chunk must end with ';'.
+    private class UpperCaseInputStream extends OrderedParallelInputStream<String> {
+        private final Iterator<String> chunks;
+
+        UpperCaseInputStream(List<String> chunks, int window) {
+            super(executor, window);
+            this.chunks = chunks.iterator();
+        }
+
+        @Override
+        protected String readChunk() {
+            return chunks.hasNext() ? chunks.next() : null;
+        }
+
+        @Override
+        protected byte[] decodeChunk(String chunk) throws IOException {
+            if (!chunk.endsWith(";")) {
+                throw new IOException("Incomplete chunk: " + chunk);
+            } else if (chunk.length() > getMaxDecodedChunkBytes()) {
+                throw new ChunkTooLargeException(getMaxDecodedChunkBytes());
+            }
+            return chunk.toUpperCase().getBytes();
+        }
+
+        // A large chunk is returned as it is to check which path decoded it.
+        @Override
+        protected InputStream openChunk(String chunk) {
+            return new ByteArrayInputStream(chunk.getBytes());
+        }
+
+        @Override
+        protected String mergeChunks(String first, String second) {
+            return first + second;
+        }
+
+        @Override
+        protected boolean chunkDecoded(String chunk) {
+            return !chunk.equals("end;");
+        }
+    }
+}
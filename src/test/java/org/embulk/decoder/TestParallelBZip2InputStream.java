@@ -0,0 +1,130 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestParallelBZip2InputStream {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = DecoderExecutors.newWorkerPool("test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSingleBlock() throws Exception {
+        verifyDecode(getResourceBytes("sample_1.csv.bz2"), true);
+    }
+
+    @Test
+    public void testMultipleBlocks() throws Exception {
+        // Block size 100k makes some blocks.
+        verifyDecode(compress(newContents(1024 * 1024), 1), true);
+    }
+
+    @Test
+    public void testConcatenated() throws Exception {
+        verifyDecode(getResourceBytes("concatenated.csv.bz2"), true);
+    }
+
+    @Test
+    public void testNotConcatenated() throws Exception {
+        verifyDecode(getResourceBytes("concatenated.csv.bz2"), false);
+    }
+
+    @Test
+    public void testConcatenatedMultipleBlocks() throws Exception {
+        byte[] first = compress(newContents(300 * 1024), 1);
+        byte[] second = compress(newContents(200 * 1024), 2);
+        byte[] concatenated = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, concatenated, first.length, second.length);
+        verifyDecode(concatenated, true);
+        verifyDecode(concatenated, false);
+    }
+
+    @Test
+    public void testEmptyContents() throws Exception {
+        verifyDecode(compress(new byte[0], 9), true);
+    }
+
+    @Test(expected=IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] compressed = compress(newContents(300 * 1024), 1);
+        decode(Arrays.copyOf(compressed, compressed.length / 2), true);
+    }
+
+    @Test(expected=IOException.class)
+    public void testBrokenBlock() throws Exception {
+        byte[] compressed = compress(newContents(300 * 1024), 1);
+        compressed[compressed.length / 2] ^= 0x55;
+        decode(compressed, true);
+    }
+
+    @Test(expected=IOException.class)
+    public void testNotBZip2() throws Exception {
+        decode(getResourceBytes("sample_1.csv"), true);
+    }
+
+    private void verifyDecode(byte[] compressed, boolean concatenated) throws IOException {
+        byte[] expected = toByteArray(new BZip2CompressorInputStream(
+                new ByteArrayInputStream(compressed), concatenated));
+        assertArrayEquals("Verify decoded data is the same as BZip2CompressorInputStream.",
+                expected, decode(compressed, concatenated));
+    }
+
+    private byte[] decode(byte[] compressed, boolean concatenated) throws IOException {
+        return toByteArray(new ParallelBZip2InputStream(
+                new ByteArrayInputStream(compressed), concatenated, executor, 8));
+    }
+
+    private byte[] compress(byte[] contents, int blockSize) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (BZip2CompressorOutputStream out = new BZip2CompressorOutputStream(bout, blockSize)) {
+            out.write(contents);
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] newContents(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(random.nextInt(100000)).append(",value").append(random.nextInt(1000)).append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int len = in.read(buff);
+        while (len != -1) {
+            bout.write(buff, 0, len);
+            len = in.read(buff);
+        }
+        in.close();
+        return bout.toByteArray();
+    }
+
+    private byte[] getResourceBytes(String resource) throws IOException {
+        return toByteArray(getClass().getResourceAsStream(resource));
+    }
+}
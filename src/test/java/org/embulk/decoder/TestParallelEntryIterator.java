@@ -0,0 +1,234 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestParallelEntryIterator {
+    private static final long MAX_IN_FLIGHT_BYTES = 64 * 1024;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = DecoderExecutors.newWorkerPool("test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDecodeGzipEntriesInTar() throws Exception {
+        byte[][] contents = newContents(50, 2000);
+        ParallelEntryIterator it = newTarIterator(newTar(contents, true), MAX_IN_FLIGHT_BYTES, newGzipDecoder());
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            InputStream in = it.next();
+            assertEquals("Verify the current entry.", "file_" + i + ".gz", it.getCurrentEntry().getName());
+            assertArrayEquals("Verify decoded entry " + i + ".", contents[i], toByteArray(in));
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        assertNull("Verify next() returns null at the end.", it.next());
+        assertEquals("Verify matched entries.", contents.length, it.getStats().getMatchedEntries());
+        it.close();
+    }
+
+    @Test
+    public void testEntriesWithoutDecoder() throws Exception {
+        byte[][] contents = newContents(20, 1000);
+        ParallelEntryIterator it = newTarIterator(newTar(contents, false), MAX_IN_FLIGHT_BYTES, null);
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            assertArrayEquals("Verify entry " + i + ".", contents[i], toByteArray(it.next()));
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        it.close();
+    }
+
+    @Test
+    public void testLargeEntriesAreReadAsStreams() throws Exception {
+        byte[][] contents = newContents(10, 1000);
+        // Random bytes are not compressed, so that they are larger than the limit.
+        contents[3] = new byte[(int) MAX_IN_FLIGHT_BYTES * 2];
+        new Random(1).nextBytes(contents[3]);
+        contents[7] = Arrays.copyOf(contents[3], contents[3].length);
+
+        ParallelEntryIterator it = newTarIterator(newTar(contents, true), MAX_IN_FLIGHT_BYTES, newGzipDecoder());
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            assertArrayEquals("Verify decoded entry " + i + ".", contents[i], toByteArray(it.next()));
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        it.close();
+    }
+
+    @Test
+    public void testLargeDecodedEntry() throws Exception {
+        byte[][] contents = newContents(5, 1000);
+        // Highly compressed data is decoded by the caller after the limit.
+        contents[2] = newContents(1, (int) MAX_IN_FLIGHT_BYTES * 4)[0];
+
+        ParallelEntryIterator it = newTarIterator(newTar(contents, true), MAX_IN_FLIGHT_BYTES, newGzipDecoder());
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            assertArrayEquals("Verify decoded entry " + i + ".", contents[i], toByteArray(it.next()));
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        it.close();
+    }
+
+    @Test
+    public void testInFlightBytesAreLimitedInTotal() throws Exception {
+        // Each entry is decoded to more than the limit on a worker.
+        byte[][] contents = newContents(20, (int) MAX_IN_FLIGHT_BYTES * 3);
+        ParallelEntryIterator it = newTarIterator(newTar(contents, true), MAX_IN_FLIGHT_BYTES, newGzipDecoder());
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            assertArrayEquals("Verify decoded entry " + i + ".", contents[i], toByteArray(it.next()));
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        long peak = it.getPeakInFlightBytes();
+        assertTrue("Verify entries are buffered.", peak > 0);
+        assertTrue("Verify buffered bytes of all entries don't exceed the limit. peak: " + peak,
+                peak <= MAX_IN_FLIGHT_BYTES);
+        it.close();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBrokenEntry() throws Exception {
+        byte[][] contents = newContents(5, 1000);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(bout)) {
+            // A gzip header without data.
+            byte[] broken = Arrays.copyOf(gzip(contents[0]), 20);
+            TarArchiveEntry entry = new TarArchiveEntry("broken.gz");
+            entry.setSize(broken.length);
+            out.putArchiveEntry(entry);
+            out.write(broken);
+            out.closeArchiveEntry();
+        }
+        ParallelEntryIterator it = newTarIterator(bout.toByteArray(), MAX_IN_FLIGHT_BYTES, newGzipDecoder());
+        assertTrue("Verify there is an entry.", it.hasNext());
+        it.next();
+    }
+
+    @Test
+    public void testZipFile() throws Exception {
+        byte[][] contents = newContents(30, 3000);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(bout)) {
+            for (int i = 0; i < contents.length; i++) {
+                out.putArchiveEntry(new ZipArchiveEntry("file_" + i + ".csv"));
+                out.write(contents[i]);
+                out.closeArchiveEntry();
+            }
+        }
+        SpillFile spill = SpillFile.spill(new ByteArrayInputStream(bout.toByteArray()), "", ".zip");
+        ZipFileIterator zip = new ZipFileIterator(new ZipFile(spill.getFile()), spill, EntryNameMatcher.of(""));
+        ParallelEntryIterator it = new ParallelEntryIterator(zip, executor, 8, MAX_IN_FLIGHT_BYTES,
+                new EntryVerifier(true, null), null);
+        long size = 0;
+        for (int i = 0; i < contents.length; i++) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            assertArrayEquals("Verify entry " + i + ".", contents[i], toByteArray(it.next()));
+            size += contents[i].length;
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        assertEquals("Verify decoded bytes.", size, it.getStats().getDecodedBytes());
+        assertTrue("Verify buffered bytes of all entries don't exceed the limit.",
+                it.getPeakInFlightBytes() <= MAX_IN_FLIGHT_BYTES);
+        assertTrue("Verify the zip file is open until the iterator is closed.", Files.exists(spill.getPath()));
+        it.close();
+        assertFalse("Verify the spill file is deleted by close().", Files.exists(spill.getPath()));
+    }
+
+    private ParallelEntryIterator newTarIterator(byte[] tar, long maxInFlightBytes,
+            ParallelEntryIterator.EntryDecoder decoder) {
+        ArchiveInputStreamIterator source = new ArchiveInputStreamIterator(
+                new TarArchiveInputStream(new ByteArrayInputStream(tar)), EntryNameMatcher.of(""), new EntryStats());
+        return new ParallelEntryIterator(source, executor, 4, maxInFlightBytes, new EntryVerifier(false, null),
+                decoder);
+    }
+
+    private ParallelEntryIterator.EntryDecoder newGzipDecoder() {
+        return new ParallelEntryIterator.EntryDecoder() {
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                in.mark(2);
+                int magic = in.read() | (in.read() << 8);
+                in.reset();
+                return magic == 0x8b1f ? new GzipCompressorInputStream(in, true) : in;
+            }
+        };
+    }
+
+    private byte[] newTar(byte[][] contents, boolean compressed) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(bout)) {
+            for (int i = 0; i < contents.length; i++) {
+                byte[] data = compressed ? gzip(contents[i]) : contents[i];
+                TarArchiveEntry entry = new TarArchiveEntry("file_" + i + (compressed ? ".gz" : ".csv"));
+                entry.setSize(data.length);
+                out.putArchiveEntry(entry);
+                out.write(data);
+                out.closeArchiveEntry();
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (GzipCompressorOutputStream out = new GzipCompressorOutputStream(bout)) {
+            out.write(data);
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[][] newContents(int count, int size) {
+        byte[][] contents = new byte[count][];
+        for (int n = 0; n < count; n++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < size + n; i++) {
+                sb.append(n).append(',').append(i).append(",foo").append(i % 7).append('\n');
+            }
+            contents[n] = Arrays.copyOf(sb.toString().getBytes(), size + n);
+        }
+        return contents;
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
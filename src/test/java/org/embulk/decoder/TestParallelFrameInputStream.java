@@ -0,0 +1,257 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream.BlockSize;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestParallelFrameInputStream {
+    // Use small chunks to split test data into many chunks.
+    private static final int TARGET_CHUNK_BYTES = 4 * 1024;
+    private static final int MAX_CHUNK_BYTES = 256 * 1024;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = DecoderExecutors.newWorkerPool("test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLz4SingleFrame() throws Exception {
+        byte[] contents = newContents(100 * 1024);
+        verifyLz4(contents, compressLz4(contents, contents.length, defaultParameters()));
+    }
+
+    @Test
+    public void testLz4ManyFrames() throws Exception {
+        byte[] contents = newContents(1024 * 1024);
+        verifyLz4(contents, compressLz4(contents, 3000, defaultParameters()));
+    }
+
+    @Test
+    public void testLz4Checksums() throws Exception {
+        byte[] contents = newContents(512 * 1024);
+        verifyLz4(contents, compressLz4(contents, 3000,
+                new FramedLZ4CompressorOutputStream.Parameters(BlockSize.K64, true, true, true)));
+    }
+
+    @Test
+    public void testLz4SkippableFrames() throws Exception {
+        byte[] contents = newContents(64 * 1024);
+        byte[] first = compressLz4(Arrays.copyOf(contents, 10000), 3000, defaultParameters());
+        byte[] second = compressLz4(Arrays.copyOfRange(contents, 10000, contents.length), 3000, defaultParameters());
+        byte[] compressed = concat(skippableFrame(100), first, skippableFrame(TARGET_CHUNK_BYTES * 2), second,
+                skippableFrame(10));
+        verifyLz4(contents, compressed);
+    }
+
+    @Test
+    public void testLz4LargeFrameFallsBackToSequential() throws Exception {
+        byte[] contents = newRandomBytes(MAX_CHUNK_BYTES * 2);
+        byte[] first = compressLz4(newContents(64 * 1024), 1024, defaultParameters());
+        byte[] large = compressLz4(contents, contents.length, defaultParameters());
+        byte[] compressed = concat(first, large);
+        verifyLz4(toByteArray(new FramedLZ4CompressorInputStream(new ByteArrayInputStream(compressed), true)),
+                compressed);
+    }
+
+    @Test
+    public void testLz4ChunksLargerThanMaxDecodedBytes() throws Exception {
+        // Highly compressible frames are decoded to more than 4KB each.
+        byte[] contents = new byte[512 * 1024];
+        Arrays.fill(contents, (byte) 'a');
+        byte[] compressed = compressLz4(contents, 64 * 1024, defaultParameters());
+        ParallelFrameInputStream in = newLz4Stream(compressed);
+        in.setMaxDecodedChunkBytes(4096);
+        assertArrayEquals("Verify chunks are decoded as streams.", contents, toByteArray(in));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLz4NotInFormat() throws Exception {
+        toByteArray(newLz4Stream(newContents(1024)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLz4GarbageAfterFrames() throws Exception {
+        byte[] compressed = compressLz4(newContents(64 * 1024), 3000, defaultParameters());
+        toByteArray(newLz4Stream(concat(compressed, new byte[] {1, 2, 3, 4, 5, 6, 7, 8})));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLz4TruncatedFrame() throws Exception {
+        byte[] compressed = compressLz4(newContents(64 * 1024), 3000, defaultParameters());
+        toByteArray(newLz4Stream(Arrays.copyOf(compressed, compressed.length - 10)));
+    }
+
+    @Test
+    public void testZstdFramesAreSplitAtBoundaries() throws Exception {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] compressed = newZstdFrames(100, contents);
+
+        ParallelFrameInputStream in = new ParallelFrameInputStream(new ByteArrayInputStream(compressed),
+                ParallelFrameInputStream.Format.ZSTD, executor, 4, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+        int offset = 0;
+        int chunks = 0;
+        ParallelFrameInputStream.Frames frames = in.readChunk();
+        while (frames != null) {
+            assertEquals("Verify a chunk starts with a frame.", 0x28, compressed[offset] & 0xff);
+            offset += frames.size();
+            chunks++;
+            frames = in.readChunk();
+        }
+        assertEquals("Verify all frames are read.", compressed.length, offset);
+        assertTrue("Verify frames are split into chunks.", chunks > 1);
+    }
+
+    @Test
+    public void testZstdDecode() throws Exception {
+        assumeTrue(ZstdUtils.isZstdCompressionAvailable());
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] compressed = newZstdFrames(100, contents);
+        assertArrayEquals("Verify decoded data.", contents.toByteArray(), toByteArray(new ParallelFrameInputStream(
+                new ByteArrayInputStream(compressed), ParallelFrameInputStream.Format.ZSTD, executor, 4,
+                TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testZstdNotInFormat() throws Exception {
+        byte[] lz4 = compressLz4(newContents(1024), 1024, defaultParameters());
+        toByteArray(new ParallelFrameInputStream(new ByteArrayInputStream(lz4),
+                ParallelFrameInputStream.Format.ZSTD, executor, 4));
+    }
+
+    private void verifyLz4(byte[] expected, byte[] compressed) throws IOException {
+        assertArrayEquals("Verify decoded data.", expected, toByteArray(newLz4Stream(compressed)));
+    }
+
+    private ParallelFrameInputStream newLz4Stream(byte[] compressed) {
+        return new ParallelFrameInputStream(new ByteArrayInputStream(compressed),
+                ParallelFrameInputStream.Format.LZ4_FRAMED, executor, 4, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+    }
+
+    private FramedLZ4CompressorOutputStream.Parameters defaultParameters() {
+        return new FramedLZ4CompressorOutputStream.Parameters(BlockSize.K64, false, false, false);
+    }
+
+    private byte[] compressLz4(byte[] contents, int frameSize,
+            FramedLZ4CompressorOutputStream.Parameters parameters) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int off = 0; off < contents.length; off += frameSize) {
+            try (FramedLZ4CompressorOutputStream out = new FramedLZ4CompressorOutputStream(bout, parameters)) {
+                out.write(contents, off, Math.min(frameSize, contents.length - off));
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] skippableFrame(int size) {
+        byte[] frame = new byte[8 + size];
+        frame[0] = 0x5a;
+        frame[1] = 0x2a;
+        frame[2] = 0x4d;
+        frame[3] = 0x18;
+        frame[4] = (byte) size;
+        frame[5] = (byte) (size >>> 8);
+        frame[6] = (byte) (size >>> 16);
+        return frame;
+    }
+
+    /**
+     * Write zstd frames which have raw and RLE blocks. They are valid frames
+     * without a compressor.
+     */
+    private byte[] newZstdFrames(int count, ByteArrayOutputStream contents) throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            out.write(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd});
+            // No checksum, no dictionary and no content size. 1MB window.
+            out.write(0x00);
+            out.write(0x50);
+            int blocks = 1 + random.nextInt(3);
+            for (int b = 0; b < blocks; b++) {
+                boolean last = b == blocks - 1;
+                if (b % 2 == 1) {
+                    int size = 1 + random.nextInt(1000);
+                    writeZstdBlockHeader(out, last, 1, size);
+                    byte value = (byte) ('a' + random.nextInt(26));
+                    out.write(value);
+                    for (int j = 0; j < size; j++) {
+                        contents.write(value);
+                    }
+                } else {
+                    byte[] raw = newContents(1 + random.nextInt(1000));
+                    writeZstdBlockHeader(out, last, 0, raw.length);
+                    out.write(raw);
+                    contents.write(raw);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void writeZstdBlockHeader(ByteArrayOutputStream out, boolean last, int type, int size) {
+        int header = (last ? 1 : 0) | (type << 1) | (size << 3);
+        out.write(header);
+        out.write(header >>> 8);
+        out.write(header >>> 16);
+    }
+
+    private byte[] newContents(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(i).append(",foo").append(i % 7).append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(), size);
+    }
+
+    private byte[] newRandomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] concat(byte[]... arrays) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
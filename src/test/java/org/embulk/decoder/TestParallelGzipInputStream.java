@@ -0,0 +1,234 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestParallelGzipInputStream {
+    // Use small chunks to split test data into many chunks.
+    private static final int TARGET_CHUNK_BYTES = 4 * 1024;
+    private static final int MAX_CHUNK_BYTES = 256 * 1024;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = DecoderExecutors.newWorkerPool("test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcatenatedResource() throws Exception {
+        verifyDecode(getResourceBytes("concatenated.csv.gz"));
+    }
+
+    @Test
+    public void testSingleMember() throws Exception {
+        verifyDecode(compress(newContents(100 * 1024), 10 * 1024 * 1024, false));
+    }
+
+    @Test
+    public void testManyMembers() throws Exception {
+        verifyDecode(compress(newContents(1024 * 1024), 3000, false));
+    }
+
+    @Test
+    public void testBgzfMembers() throws Exception {
+        verifyDecode(compress(newContents(1024 * 1024), 3000, true));
+    }
+
+    @Test
+    public void testDefaultChunkSize() throws Exception {
+        byte[] compressed = compress(newContents(4 * 1024 * 1024), 64 * 1024, false);
+        byte[] expected = toByteArray(new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true));
+        assertArrayEquals("Verify decoded data is the same as GzipCompressorInputStream.", expected,
+                toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(compressed), executor, 8)));
+    }
+
+    @Test
+    public void testLargeMemberFallsBackToSequential() throws Exception {
+        byte[] first = compress(newContents(64 * 1024), 1024, false);
+        byte[] large = compress(newRandomBytes(MAX_CHUNK_BYTES * 2), MAX_CHUNK_BYTES * 2, false);
+        verifyDecode(concat(first, large));
+    }
+
+    @Test
+    public void testLargeLastMemberIsDecodedAsStream() throws Exception {
+        byte[] compressed = compress(newRandomBytes(TARGET_CHUNK_BYTES * 4), TARGET_CHUNK_BYTES * 4, false);
+        ParallelGzipInputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed),
+                executor, 8, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+        assertNull("Verify a single member larger than a chunk is not a chunk.", in.readChunk());
+        verifyDecode(compressed);
+    }
+
+    @Test
+    public void testChunksLargerThanMaxDecodedBytes() throws Exception {
+        byte[] compressed = compress(newContents(256 * 1024), 3000, false);
+        ParallelGzipInputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed),
+                executor, 8, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+        // Each chunk has more than 4KB of decoded data.
+        in.setMaxDecodedChunkBytes(4096);
+        byte[] expected = toByteArray(new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true));
+        assertArrayEquals("Verify chunks are decoded as streams.", expected, toByteArray(in));
+    }
+
+    // A stored member contains a gzip header in its data. It is found as
+    // a member boundary by mistake. So, the chunks must be joined.
+    @Test
+    public void testFalseHeaderInCompressedData() throws Exception {
+        byte[] contents = newContents(64 * 1024);
+        byte[] header = new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3};
+        for (int i = TARGET_CHUNK_BYTES + 100; i < contents.length - header.length; i += 5000) {
+            System.arraycopy(header, 0, contents, i, header.length);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        writeMember(bout, contents, 0, contents.length, Deflater.NO_COMPRESSION, false);
+        writeMember(bout, contents, 0, 1000, Deflater.DEFAULT_COMPRESSION, false);
+        verifyDecode(bout.toByteArray());
+    }
+
+    @Test
+    public void testEmptyMembers() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        writeMember(bout, new byte[0], 0, 0, Deflater.DEFAULT_COMPRESSION, false);
+        writeMember(bout, new byte[0], 0, 0, Deflater.DEFAULT_COMPRESSION, true);
+        verifyDecode(bout.toByteArray());
+    }
+
+    @Test(expected=IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] compressed = compress(newContents(64 * 1024), 3000, false);
+        decode(Arrays.copyOf(compressed, compressed.length - 3));
+    }
+
+    @Test(expected=IOException.class)
+    public void testBrokenCrc() throws Exception {
+        byte[] compressed = compress(newContents(64 * 1024), 3000, true);
+        compressed[compressed.length - 8] ^= 0x55;
+        decode(compressed);
+    }
+
+    @Test(expected=IOException.class)
+    public void testGarbageAfterMembers() throws Exception {
+        decode(concat(compress(newContents(64 * 1024), 3000, false), "garbage".getBytes()));
+    }
+
+    @Test(expected=IOException.class)
+    public void testNotGzip() throws Exception {
+        decode(getResourceBytes("sample_1.csv"));
+    }
+
+    @Test(expected=IOException.class)
+    public void testEmptyInput() throws Exception {
+        decode(new byte[0]);
+    }
+
+    private void verifyDecode(byte[] compressed) throws IOException {
+        byte[] expected = toByteArray(new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true));
+        assertArrayEquals("Verify decoded data is the same as GzipCompressorInputStream.",
+                expected, decode(compressed));
+    }
+
+    private byte[] decode(byte[] compressed) throws IOException {
+        return toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(compressed),
+                executor, 8, TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES));
+    }
+
+    private byte[] compress(byte[] contents, int memberSize, boolean bgzf) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int off = 0; off < contents.length; off += memberSize) {
+            writeMember(bout, contents, off, Math.min(memberSize, contents.length - off),
+                    Deflater.DEFAULT_COMPRESSION, bgzf);
+        }
+        return bout.toByteArray();
+    }
+
+    private void writeMember(ByteArrayOutputStream out, byte[] contents, int off, int len,
+            int level, boolean bgzf) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(contents, off, len);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buff);
+            deflated.write(buff, 0, n);
+        }
+        deflater.end();
+
+        if (bgzf) {
+            int blockSize = 18 + deflated.size() + 8;
+            out.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                    (byte) ((blockSize - 1) & 0xff), (byte) ((blockSize - 1) >>> 8)}, 0, 18);
+        } else {
+            out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3}, 0, 10);
+        }
+        byte[] bytes = deflated.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(contents, off, len);
+        writeInt(out, crc.getValue());
+        writeInt(out, len);
+    }
+
+    private void writeInt(ByteArrayOutputStream out, long value) {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+
+    private byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private byte[] newContents(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(random.nextInt(100000)).append(",value").append(random.nextInt(1000)).append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] newRandomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int len = in.read(buff);
+        while (len != -1) {
+            bout.write(buff, 0, len);
+            len = in.read(buff);
+        }
+        in.close();
+        return bout.toByteArray();
+    }
+
+    private byte[] getResourceBytes(String resource) throws IOException {
+        return toByteArray(getClass().getResourceAsStream(resource));
+    }
+}
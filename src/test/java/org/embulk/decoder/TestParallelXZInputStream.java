@@ -0,0 +1,187 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+public class TestParallelXZInputStream {
+    // Use small chunks to split test data into many chunks.
+    private static final int TARGET_CHUNK_BYTES = 16 * 1024;
+    private static final int MAX_CHUNK_BYTES = 256 * 1024;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = DecoderExecutors.newWorkerPool("test", 4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testManyBlocks() throws Exception {
+        byte[] contents = newContents(1024 * 1024);
+        SpillFile spill = spill(compress(contents, 10000));
+        ParallelXZInputStream in = newStream(spill);
+        assertEquals("Verify blocks in the index.", 105, in.getBlockCount());
+        assertEquals(-1, in.getSequentialBlock());
+        assertArrayEquals("Verify decoded data.", contents, toByteArray(in));
+        assertFalse("Verify the spill file is deleted at the end.", Files.exists(spill.getPath()));
+    }
+
+    @Test
+    public void testReuseStreams() throws Exception {
+        byte[] contents = newContents(1024 * 1024);
+        ParallelXZInputStream in = newStream(spill(compress(contents, 10000)));
+        assertArrayEquals("Verify decoded data.", contents, toByteArray(in));
+        // 105 blocks are decoded as about 60 chunks. At most window (4) chunks are decoded at a time.
+        assertTrue("Verify the index is not parsed for each chunk.", in.getOpenedStreams() <= 4);
+    }
+
+    @Test
+    public void testSingleBlock() throws Exception {
+        byte[] contents = newContents(100 * 1024);
+        assertArrayEquals("Verify decoded data.", contents,
+                toByteArray(newStream(spill(compress(contents, contents.length)))));
+    }
+
+    @Test
+    public void testConcatenatedStreams() throws Exception {
+        byte[] contents = newContents(200 * 1024);
+        byte[] first = compress(Arrays.copyOf(contents, 50000), 7000);
+        byte[] second = compress(Arrays.copyOfRange(contents, 50000, contents.length), 7000);
+        byte[] compressed = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, compressed, first.length, second.length);
+        assertArrayEquals("Verify decoded data.", contents, toByteArray(newStream(spill(compressed))));
+    }
+
+    @Test
+    public void testInMemorySpill() throws Exception {
+        byte[] contents = newContents(512 * 1024);
+        byte[] compressed = compress(contents, 10000);
+        SpillFile spill = SpillFile.spill(new ByteArrayInputStream(compressed), "", ".xz", compressed.length, 0);
+        assertArrayEquals("Verify decoded data.", contents, toByteArray(newStream(spill)));
+    }
+
+    @Test
+    public void testLargeBlockFallsBackToSequential() throws Exception {
+        byte[] small = newContents(64 * 1024);
+        byte[] large = new byte[MAX_CHUNK_BYTES * 2];
+        new Random(1).nextBytes(large);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (XZOutputStream out = new XZOutputStream(bout, new LZMA2Options(1))) {
+            out.write(small);
+            out.endBlock();
+            out.write(large);
+        }
+        byte[] contents = Arrays.copyOf(small, small.length + large.length);
+        System.arraycopy(large, 0, contents, small.length, large.length);
+        assertArrayEquals("Verify decoded data.", contents, toByteArray(newStream(spill(bout.toByteArray()))));
+    }
+
+    @Test
+    public void testBlockLargerThanMaxDecodedChunkBytes() throws Exception {
+        byte[] contents = newContents(200 * 1024);
+        // Blocks of 20000, 150000 and 34800 bytes.
+        byte[] compressed = compress(Arrays.copyOf(contents, 20000), 20000);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (XZOutputStream out = new XZOutputStream(bout, new LZMA2Options(1))) {
+            out.write(contents, 20000, 150000);
+            out.endBlock();
+            out.write(contents, 170000, contents.length - 170000);
+        }
+        byte[] rest = bout.toByteArray();
+        byte[] concatenated = Arrays.copyOf(compressed, compressed.length + rest.length);
+        System.arraycopy(rest, 0, concatenated, compressed.length, rest.length);
+
+        ParallelXZInputStream in = newStream(spill(concatenated));
+        in.setMaxDecodedChunkBytes(64 * 1024);
+        assertArrayEquals("Verify decoded data.", contents, toByteArray(in));
+        assertEquals("Verify the large block is decoded on the reading thread.", 1, in.getSequentialBlock());
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        byte[] contents = newContents(256 * 1024);
+        ParallelXZInputStream in = newStream(spill(compress(contents, 10000)));
+        assertEquals("Verify skip.", 100000, in.skip(100000));
+        byte[] rest = toByteArray(in);
+        assertArrayEquals("Verify data after skip.", Arrays.copyOfRange(contents, 100000, contents.length), rest);
+    }
+
+    @Test
+    public void testNotInFormat() throws Exception {
+        SpillFile spill = spill(newContents(1024));
+        try {
+            newStream(spill);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse("Verify the spill file is deleted when the constructor fails.",
+                Files.exists(spill.getPath()));
+    }
+
+    private ParallelXZInputStream newStream(SpillFile spill) throws IOException {
+        return new ParallelXZInputStream(spill, executor, 4, ArrayCache.getDummyCache(),
+                TARGET_CHUNK_BYTES, MAX_CHUNK_BYTES);
+    }
+
+    private SpillFile spill(byte[] data) throws IOException {
+        return SpillFile.spill(new ByteArrayInputStream(data), "", ".xz");
+    }
+
+    private byte[] compress(byte[] contents, int blockSize) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (XZOutputStream out = new XZOutputStream(bout, new LZMA2Options(1))) {
+            for (int off = 0; off < contents.length; off += blockSize) {
+                out.write(contents, off, Math.min(blockSize, contents.length - off));
+                out.endBlock();
+            }
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] newContents(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(i).append(",foo").append(i % 7).append('\n');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(), size);
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
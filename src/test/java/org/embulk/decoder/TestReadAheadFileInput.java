@@ -0,0 +1,236 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+import org.junit.Test;
+
+public class TestReadAheadFileInput {
+
+    @Test
+    public void testPollInOrder() {
+        MockFileInput mockInput = new MockFileInput(new String[][]{{"1,", "foo"}, {"2,bar"}});
+        ReadAheadFileInput input = new ReadAheadFileInput(mockInput, 2);
+
+        assertTrue("Verify 1st file.", input.nextFile());
+        assertEquals("Verify 1st file contents.", "1,foo", readFile(input));
+        assertNull("Verify poll() keeps returning null.", input.poll());
+        assertTrue("Verify 2nd file.", input.nextFile());
+        assertEquals("Verify 2nd file contents.", "2,bar", readFile(input));
+        assertFalse("Verify there is no file.", input.nextFile());
+        assertFalse("Verify there is no file after the end.", input.nextFile());
+        input.close();
+
+        assertTrue("Verify the wrapped input is closed.", mockInput.closed);
+    }
+
+    @Test
+    public void testNextFileDiscardsRestOfFile() {
+        MockFileInput mockInput = new MockFileInput(new String[][]{{"a", "b", "c"}, {"2,bar"}});
+        ReadAheadFileInput input = new ReadAheadFileInput(mockInput, 1);
+
+        assertTrue("Verify 1st file.", input.nextFile());
+        assertEquals("Verify 1st buffer.", "a", toString(input.poll()));
+        assertTrue("Verify 2nd file.", input.nextFile());
+        assertEquals("Verify 2nd file contents.", "2,bar", readFile(input));
+        assertFalse("Verify there is no file.", input.nextFile());
+        input.close();
+
+        assertEquals("Verify all buffers are released.", 0, mockInput.unreleasedBuffers());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testPollWithoutNextFile() {
+        ReadAheadFileInput input = new ReadAheadFileInput(new MockFileInput(new String[][]{}), 1);
+        try {
+            input.poll();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void testErrorIsPropagated() {
+        MockFileInput mockInput = new MockFileInput(new String[][]{{"1,foo"}});
+        mockInput.failure = new RuntimeException("poll fails.");
+        ReadAheadFileInput input = new ReadAheadFileInput(mockInput, 4);
+
+        try {
+            assertTrue("Verify 1st file.", input.nextFile());
+            input.poll();
+            assertTrue("poll() should throw an exception.", false);
+        } catch (RuntimeException e) {
+            assertEquals("Verify the same exception is thrown.", mockInput.failure, e);
+        }
+
+        try {
+            input.poll();
+            assertTrue("poll() should throw an exception again.", false);
+        } catch (RuntimeException e) {
+            assertEquals("Verify the same exception is thrown.", mockInput.failure, e);
+        }
+        input.close();
+    }
+
+    @Test
+    public void testCloseBeforeReadingAll() throws Exception {
+        String[] buffers = new String[64];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = "buffer" + i;
+        }
+        MockFileInput mockInput = new MockFileInput(new String[][]{buffers});
+        ReadAheadFileInput input = new ReadAheadFileInput(mockInput, 2);
+
+        assertTrue("Verify 1st file.", input.nextFile());
+        assertEquals("Verify 1st buffer.", "buffer0", toString(input.poll()));
+        input.close();
+
+        assertTrue("Verify the wrapped input is closed.", mockInput.closed);
+        assertEquals("Verify all buffers are released.", 0, mockInput.unreleasedBuffers());
+    }
+
+    private String readFile(FileInput input) {
+        StringBuilder sb = new StringBuilder();
+        Buffer buffer = input.poll();
+        while (buffer != null) {
+            sb.append(toString(buffer));
+            buffer = input.poll();
+        }
+        return sb.toString();
+    }
+
+    private String toString(Buffer buffer) {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.getBytes(0, bytes, 0, bytes.length);
+        String text = new String(bytes);
+        buffer.release();
+        return text;
+    }
+
+    private class MockFileInput implements FileInput {
+        private final String[][] files;
+        private final List<MockBuffer> buffers = new ArrayList<>();
+        private int fileIndex = -1;
+        private int bufferIndex = 0;
+        RuntimeException failure;
+        volatile boolean closed = false;
+
+        MockFileInput(String[][] files) {
+            this.files = files;
+        }
+
+        @Override
+        public boolean nextFile() {
+            fileIndex++;
+            bufferIndex = 0;
+            return fileIndex < files.length;
+        }
+
+        @Override
+        public Buffer poll() {
+            if (failure != null) {
+                throw failure;
+            } else if (bufferIndex >= files[fileIndex].length) {
+                return null;
+            }
+            MockBuffer buffer = new MockBuffer(files[fileIndex][bufferIndex++].getBytes());
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        int unreleasedBuffers() {
+            int count = 0;
+            synchronized (buffers) {
+                for (MockBuffer buffer : buffers) {
+                    if (!buffer.released) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    private class MockBuffer extends Buffer {
+        private final byte[] bytes;
+        private int offset = 0;
+        private int limit;
+        volatile boolean released = false;
+
+        MockBuffer(byte[] bytes) {
+            this.bytes = bytes;
+            this.limit = bytes.length;
+        }
+
+        @Override
+        public byte[] array() {
+            return bytes;
+        }
+
+        @Override
+        public int offset() {
+            return offset;
+        }
+
+        @Override
+        public Buffer offset(int offset) {
+            this.offset = offset;
+            return this;
+        }
+
+        @Override
+        public int limit() {
+            return limit;
+        }
+
+        @Override
+        public Buffer limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        @Override
+        public int capacity() {
+            return bytes.length;
+        }
+
+        @Override
+        public void setBytes(int index, byte[] source, int sourceIndex, int length) {
+            System.arraycopy(source, sourceIndex, bytes, index, length);
+        }
+
+        @Override
+        public void setBytes(int index, Buffer source, int sourceIndex, int length) {
+            source.getBytes(sourceIndex, bytes, index, length);
+        }
+
+        @Override
+        public void getBytes(int index, byte[] dest, int destIndex, int length) {
+            System.arraycopy(bytes, offset + index, dest, destIndex, length);
+        }
+
+        @Override
+        public void getBytes(int index, Buffer dest, int destIndex, int length) {
+            dest.setBytes(destIndex, bytes, offset + index, length);
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
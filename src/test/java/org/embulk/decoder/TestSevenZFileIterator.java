@@ -0,0 +1,185 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.junit.Test;
+
+public class TestSevenZFileIterator {
+
+    @Test
+    public void testIterateEntries() throws Exception {
+        byte[] archive = newSevenZ("dir/", null, "dir/sample_1.csv", "1,foo", "empty.csv", "",
+                "sample_2.csv", "2,bar");
+        SpillFile spill = spill(archive);
+        SevenZFileIterator it = new SevenZFileIterator(new SevenZFile(spill.newChannel()), spill, EntryNameMatcher.of(""));
+
+        assertTrue("Verify there is 1st entry.", it.hasNext());
+        assertEquals("Verify 1st entry.", "1,foo", toString(it.next()));
+        assertTrue("Verify there is 2nd entry.", it.hasNext());
+        assertEquals("Verify an empty entry.", "", toString(it.next()));
+        assertTrue("Verify there is 3rd entry.", it.hasNext());
+        assertEquals("Verify 3rd entry.", "2,bar", toString(it.next()));
+        assertFalse("Verify there is no entry.", it.hasNext());
+        assertNull("Verify next() returns null at the end.", it.next());
+        assertFalse("Verify a spill file is deleted at the end.", Files.exists(spill.getPath()));
+    }
+
+    @Test
+    public void testSolidBlockWithMatchName() throws Exception {
+        byte[] archive = newSolidSevenZ("a.csv", "1,foo\n", "b.txt", "skipped\n", "c.csv", "2,bar\n");
+        SpillFile spill = spill(archive);
+        SevenZFileIterator it = new SevenZFileIterator(new SevenZFile(spill.newChannel()), spill, EntryNameMatcher.of(".*\\.csv"));
+
+        assertTrue("Verify there is 1st entry.", it.hasNext());
+        assertEquals("Verify 1st entry.", "1,foo\n", toString(it.next()));
+        assertTrue("Verify there is 2nd entry.", it.hasNext());
+        assertEquals("Verify an entry after a skipped entry in the same block.", "2,bar\n", toString(it.next()));
+        assertFalse("Verify there is no entry.", it.hasNext());
+    }
+
+    @Test
+    public void testPreviousStreamReachesEnd() throws Exception {
+        byte[] archive = newSolidSevenZ("a.csv", "1,foo\n", "b.csv", "2,bar\n");
+        SpillFile spill = spill(archive);
+        try (SevenZFileIterator it = new SevenZFileIterator(new SevenZFile(spill.newChannel()), spill, EntryNameMatcher.of(""))) {
+            InputStream first = it.next();
+            assertEquals("Verify the 1st byte.", '1', first.read());
+            InputStream second = it.next();
+            assertEquals("Verify the previous stream is at the end.", -1, first.read());
+            assertEquals("Verify 2nd entry.", "2,bar\n", toString(second));
+        }
+    }
+
+    @Test
+    public void testCloseDeletesSpillFile() throws Exception {
+        SpillFile spill = spill(newSevenZ("sample_1.csv", "1,foo", "sample_2.csv", "2,bar"));
+        SevenZFileIterator it = new SevenZFileIterator(new SevenZFile(spill.newChannel()), spill, EntryNameMatcher.of(""));
+        assertTrue("Verify there is 1st entry.", it.hasNext());
+        InputStream in = it.next();
+        it.close();
+
+        assertFalse("Verify a spill file is deleted.", Files.exists(spill.getPath()));
+        assertEquals("Verify a stream is at the end after close().", -1, in.read());
+        assertFalse("Verify there is no entry after close().", it.hasNext());
+    }
+
+    private SpillFile spill(byte[] archive) throws IOException {
+        return SpillFile.spill(new ByteArrayInputStream(archive), "", ".7z");
+    }
+
+    /**
+     * @param namesAndContents pairs of a name and contents. null contents
+     * means a directory.
+     */
+    static byte[] newSevenZ(String... namesAndContents) throws IOException {
+        File f = File.createTempFile("embulk-decoder-test", ".7z");
+        try {
+            try (SevenZOutputFile out = new SevenZOutputFile(f)) {
+                for (int i = 0; i < namesAndContents.length; i += 2) {
+                    SevenZArchiveEntry entry = new SevenZArchiveEntry();
+                    entry.setName(namesAndContents[i]);
+                    entry.setDirectory(namesAndContents[i + 1] == null);
+                    out.putArchiveEntry(entry);
+                    if (namesAndContents[i + 1] != null) {
+                        out.write(namesAndContents[i + 1].getBytes());
+                    }
+                    out.closeArchiveEntry();
+                }
+            }
+            return Files.readAllBytes(f.toPath());
+        } finally {
+            f.delete();
+        }
+    }
+
+    /**
+     * Create a 7z file which has all entries in one solid block.
+     * SevenZOutputFile doesn't create solid blocks. So, this method writes
+     * a minimum header with the copy method. All sizes must be less than 128.
+     */
+    static byte[] newSolidSevenZ(String... namesAndContents) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        int files = namesAndContents.length / 2;
+        int[] sizes = new int[files];
+        long[] crcs = new long[files];
+        for (int i = 0; i < files; i++) {
+            byte[] contents = namesAndContents[i * 2 + 1].getBytes();
+            packed.write(contents, 0, contents.length);
+            sizes[i] = contents.length;
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            crcs[i] = crc.getValue();
+            for (char c : (namesAndContents[i * 2] + "\0").toCharArray()) {
+                names.write(c & 0xff);
+                names.write(c >>> 8);
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 0x01); // Header
+        header.put((byte) 0x04); // MainStreamsInfo
+        header.put((byte) 0x06).put((byte) 0).put((byte) 1); // PackInfo, pack pos, 1 stream
+        header.put((byte) 0x09).put((byte) packed.size()).put((byte) 0x00);
+        header.put((byte) 0x07).put((byte) 0x0b).put((byte) 1).put((byte) 0); // UnpackInfo, 1 folder
+        header.put((byte) 1).put((byte) 0x01).put((byte) 0x00); // 1 coder, copy method
+        header.put((byte) 0x0c).put((byte) packed.size()).put((byte) 0x00);
+        header.put((byte) 0x08).put((byte) 0x0d).put((byte) files); // SubStreamsInfo
+        header.put((byte) 0x09);
+        for (int i = 0; i < files - 1; i++) {
+            header.put((byte) sizes[i]);
+        }
+        header.put((byte) 0x0a).put((byte) 1);
+        for (long crc : crcs) {
+            header.putInt((int) crc);
+        }
+        header.put((byte) 0x00).put((byte) 0x00); // End of SubStreamsInfo and MainStreamsInfo
+        header.put((byte) 0x05).put((byte) files); // FilesInfo
+        header.put((byte) 0x11).put((byte) (names.size() + 1)).put((byte) 0).put(names.toByteArray());
+        header.put((byte) 0x00).put((byte) 0x00); // End of FilesInfo and Header
+        byte[] headerBytes = new byte[header.position()];
+        header.flip();
+        header.get(headerBytes);
+
+        CRC32 headerCrc = new CRC32();
+        headerCrc.update(headerBytes);
+        ByteBuffer startHeader = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        startHeader.putLong(packed.size()).putLong(headerBytes.length).putInt((int) headerCrc.getValue());
+        CRC32 startHeaderCrc = new CRC32();
+        startHeaderCrc.update(startHeader.array());
+
+        ByteBuffer archive = ByteBuffer.allocate(32 + packed.size() + headerBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        archive.put(new byte[]{'7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c, 0, 4});
+        archive.putInt((int) startHeaderCrc.getValue()).put(startHeader.array());
+        archive.put(packed.toByteArray()).put(headerBytes);
+        return archive.array();
+    }
+
+    private String toString(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[1024];
+        int len = in.read(buff);
+        while (len != -1) {
+            bout.write(buff, 0, len);
+            len = in.read(buff);
+        }
+        return new String(bout.toByteArray());
+    }
+}
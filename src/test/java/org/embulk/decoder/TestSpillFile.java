@@ -0,0 +1,126 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSpillFile {
+
+    @Test
+    public void testSpillToFile() throws Exception {
+        byte[] data = newData(200 * 1024);
+        try (SpillFile spill = SpillFile.spill(new ByteArrayInputStream(data), "", ".bin")) {
+            assertTrue("Verify the whole stream is copied.", spill.isComplete());
+            assertFalse("Verify a file is used.", spill.isInMemory());
+            assertEquals("Verify the size.", data.length, spill.size());
+            assertArrayEquals("Verify the file.", data, Files.readAllBytes(spill.getPath()));
+            assertArrayEquals("Verify the channel.", data, readChannel(spill));
+        }
+    }
+
+    @Test
+    public void testSpillToMemory() throws Exception {
+        byte[] data = newData(200 * 1024);
+        try (SpillFile spill = SpillFile.spill(new ByteArrayInputStream(data), "", ".bin", data.length, 0)) {
+            assertTrue("Verify the whole stream is copied.", spill.isComplete());
+            assertTrue("Verify memory is used.", spill.isInMemory());
+            assertNull("Verify there is no file.", spill.getPath());
+            assertArrayEquals("Verify the channel.", data, readChannel(spill));
+        }
+    }
+
+    @Test
+    public void testSpillLargerThanMemorySize() throws Exception {
+        byte[] data = newData(200 * 1024);
+        try (SpillFile spill = SpillFile.spill(new ByteArrayInputStream(data), "", ".bin", 100 * 1024, 0)) {
+            assertTrue("Verify the whole stream is copied.", spill.isComplete());
+            assertFalse("Verify a file is used.", spill.isInMemory());
+            assertArrayEquals("Verify the file includes data in memory.", data, readChannel(spill));
+        }
+    }
+
+    @Test
+    public void testReplayFileOverMaxSize() throws Exception {
+        byte[] data = newData(500 * 1024);
+        InputStream in = new ByteArrayInputStream(data);
+        SpillFile spill = SpillFile.spill(in, "", ".bin", 0, 100 * 1024);
+        assertFalse("Verify copying stopped.", spill.isComplete());
+        assertTrue("Verify the copied size.", spill.size() > 100 * 1024 && spill.size() < data.length);
+
+        assertArrayEquals("Verify the copy and the rest.", data, toByteArray(spill.replay(in)));
+        assertFalse("Verify the file is deleted after the copy is read.", Files.exists(spill.getPath()));
+    }
+
+    @Test
+    public void testReplayMemoryOverMaxSize() throws Exception {
+        byte[] data = newData(500 * 1024);
+        InputStream in = new ByteArrayInputStream(data);
+        SpillFile spill = SpillFile.spill(in, "", ".bin", 1024 * 1024, 100 * 1024);
+        assertFalse("Verify copying stopped.", spill.isComplete());
+        assertTrue("Verify memory is used.", spill.isInMemory());
+
+        InputStream replay = spill.replay(in);
+        assertEquals("Verify skip.", 10, replay.skip(10));
+        byte[] rest = toByteArray(replay);
+        assertEquals("Verify the size.", data.length - 10, rest.length);
+        assertEquals("Verify the first byte after skip.", data[10], rest[0]);
+        assertEquals("Verify the last byte.", data[data.length - 1], rest[rest.length - 1]);
+    }
+
+    @Test
+    public void testCloseReplayDeletesFile() throws Exception {
+        byte[] data = newData(500 * 1024);
+        InputStream in = new ByteArrayInputStream(data);
+        SpillFile spill = SpillFile.spill(in, "", ".bin", 0, 100 * 1024);
+        InputStream replay = spill.replay(in);
+        assertEquals("Verify the first byte.", data[0] & 0xff, replay.read());
+        replay.close();
+        assertFalse("Verify the file is deleted.", Files.exists(spill.getPath()));
+    }
+
+    @Test
+    public void testCloseDeletesFile() throws Exception {
+        SpillFile spill = SpillFile.spill(new ByteArrayInputStream(newData(1024)), "", ".bin");
+        assertTrue("Verify the file exists.", Files.exists(spill.getPath()));
+        spill.close();
+        assertFalse("Verify the file is deleted.", Files.exists(spill.getPath()));
+    }
+
+    private byte[] newData(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    private byte[] readChannel(SpillFile spill) throws IOException {
+        try (SeekableByteChannel channel = spill.newChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            return buffer.array();
+        }
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
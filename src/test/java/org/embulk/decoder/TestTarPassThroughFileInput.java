@@ -0,0 +1,285 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FileInput;
+import org.junit.Test;
+
+public class TestTarPassThroughFileInput {
+    @Test
+    public void testRead() throws IOException {
+        byte[] tar = newTar(TarArchiveOutputStream.LONGFILE_POSIX);
+        for (int bufferSize : new int[] {1, 100, 511, 512, 513, 8192}) {
+            BufferFileInput upstream = new BufferFileInput(bufferSize, tar);
+            EntryStats stats = new EntryStats();
+            TarPassThroughFileInput input = newInput(upstream, EntryNameMatcher.of(""), stats);
+            verifyContents(input, "1,a", "", repeat('x', 1000), "long");
+            input.close();
+
+            assertEquals(4, stats.getMatchedEntries());
+            assertEquals(1007, stats.getDecodedBytes());
+            assertEquals("Verify all buffers are released. buffer size: " + bufferSize,
+                    upstream.allocated, upstream.released);
+        }
+    }
+
+    @Test
+    public void testGnuLongName() throws IOException {
+        BufferFileInput upstream = new BufferFileInput(100, newTar(TarArchiveOutputStream.LONGFILE_GNU));
+        TarPassThroughFileInput input = newInput(upstream,
+                EntryNameMatcher.of("", Arrays.asList("glob:dir/*"), new ArrayList<String>()), new EntryStats());
+        verifyContents(input, "long");
+        input.close();
+    }
+
+    @Test
+    public void testSkipUnmatchedEntries() throws IOException {
+        BufferFileInput upstream = new BufferFileInput(300, newTar(TarArchiveOutputStream.LONGFILE_POSIX));
+        EntryStats stats = new EntryStats();
+        TarPassThroughFileInput input = newInput(upstream, EntryNameMatcher.of("b.*"), stats);
+        verifyContents(input, repeat('x', 1000));
+        input.close();
+
+        assertEquals(3, stats.getSkippedEntries());
+        assertEquals(7, stats.getSkippedBytes());
+    }
+
+    @Test
+    public void testSliceUpstreamBuffers() throws IOException {
+        BufferFileInput upstream = new BufferFileInput(8192, newTar(TarArchiveOutputStream.LONGFILE_POSIX));
+        TarPassThroughFileInput input = newInput(upstream, EntryNameMatcher.of(""), new EntryStats());
+        assertTrue(input.nextFile());
+        Buffer slice = input.poll();
+        assertTrue("Verify data is not copied.", slice.array() == upstream.buffers.get(0).array());
+        assertEquals(3, slice.limit());
+        slice.release();
+        input.close();
+        assertEquals(upstream.allocated, upstream.released);
+    }
+
+    @Test
+    public void testSkipRestOfEntry() throws IOException {
+        BufferFileInput upstream = new BufferFileInput(100, newTar(TarArchiveOutputStream.LONGFILE_POSIX));
+        TarPassThroughFileInput input = newInput(upstream, EntryNameMatcher.of(""), new EntryStats());
+        assertTrue(input.nextFile());
+        assertTrue(input.nextFile());
+        assertTrue(input.nextFile());
+        input.poll().release();
+        assertTrue("Verify the rest of an entry is skipped.", input.nextFile());
+        assertEquals("long", readEntry(input));
+        assertFalse(input.nextFile());
+        input.close();
+    }
+
+    @Test
+    public void testMultipleFilesWithoutEndOfArchive() throws IOException {
+        byte[] tar = newTar(TarArchiveOutputStream.LONGFILE_POSIX);
+        // Remove end of archive blocks.
+        int end = tar.length;
+        while (end > 0 && tar[end - 1] == 0) {
+            end--;
+        }
+        end = (end + 511) / 512 * 512;
+        byte[] truncated = Arrays.copyOf(tar, end);
+
+        BufferFileInput upstream = new BufferFileInput(700, truncated, tar);
+        TarPassThroughFileInput input = newInput(upstream, EntryNameMatcher.of("a.*"), new EntryStats());
+        verifyContents(input, "1,a", "1,a");
+        input.close();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBrokenHeader() throws IOException {
+        byte[] tar = newTar(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar[0] ^= 1;
+        TarPassThroughFileInput input = newInput(new BufferFileInput(512, tar),
+                EntryNameMatcher.of(""), new EntryStats());
+        input.nextFile();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedEntry() throws IOException {
+        byte[] tar = Arrays.copyOf(newTar(TarArchiveOutputStream.LONGFILE_POSIX), 512 + 2);
+        TarPassThroughFileInput input = newInput(new BufferFileInput(512, tar),
+                EntryNameMatcher.of(""), new EntryStats());
+        assertTrue(input.nextFile());
+        input.poll();
+        input.poll();
+    }
+
+    private TarPassThroughFileInput newInput(FileInput upstream, EntryNameMatcher matcher, EntryStats stats) {
+        return new TarPassThroughFileInput(upstream, matcher, stats, new DecoderMetrics());
+    }
+
+    private void verifyContents(FileInput input, String... contents) {
+        for (String expected : contents) {
+            assertTrue("Verify there is a file.", input.nextFile());
+            assertEquals(expected, readEntry(input));
+        }
+        assertFalse("Verify there is no file.", input.nextFile());
+    }
+
+    private String readEntry(FileInput input) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Buffer buffer = input.poll();
+        while (buffer != null) {
+            bout.write(buffer.array(), buffer.offset(), buffer.limit());
+            buffer.release();
+            buffer = input.poll();
+        }
+        return bout.toString();
+    }
+
+    private byte[] newTar(int longFileMode) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tout = new TarArchiveOutputStream(bout)) {
+            tout.setLongFileMode(longFileMode);
+            putEntry(tout, "a.csv", "1,a");
+            putEntry(tout, "empty.csv", "");
+            tout.putArchiveEntry(new TarArchiveEntry("dir/"));
+            tout.closeArchiveEntry();
+            putEntry(tout, "b.csv", repeat('x', 1000));
+            putEntry(tout, "dir/" + repeat('n', 150) + ".csv", "long");
+        }
+        return bout.toByteArray();
+    }
+
+    private void putEntry(TarArchiveOutputStream tout, String name, String contents) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(contents.length());
+        tout.putArchiveEntry(entry);
+        tout.write(contents.getBytes());
+        tout.closeArchiveEntry();
+    }
+
+    private String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /**
+     * FileInput which returns files split into buffers of a size.
+     */
+    private static class BufferFileInput implements FileInput {
+        private final int bufferSize;
+        private final byte[][] files;
+        private final List<Buffer> buffers = new ArrayList<>();
+        private int file = -1;
+        private int position = 0;
+        private int allocated = 0;
+        private int released = 0;
+
+        BufferFileInput(int bufferSize, byte[]... files) {
+            this.bufferSize = bufferSize;
+            this.files = files;
+        }
+
+        @Override
+        public boolean nextFile() {
+            position = 0;
+            return ++file < files.length;
+        }
+
+        @Override
+        public Buffer poll() {
+            byte[] data = files[file];
+            if (position >= data.length) {
+                return null;
+            }
+            // Put data at an offset to check offsets are handled.
+            int length = Math.min(bufferSize, data.length - position);
+            byte[] array = new byte[length + 10];
+            System.arraycopy(data, position, array, 5, length);
+            position += length;
+            allocated++;
+            Buffer buffer = new TestBuffer(array, 5, length);
+            buffers.add(buffer);
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private class TestBuffer extends Buffer {
+            private final byte[] bytes;
+            private int offset;
+            private int limit;
+
+            TestBuffer(byte[] bytes, int offset, int limit) {
+                this.bytes = bytes;
+                this.offset = offset;
+                this.limit = limit;
+            }
+
+            @Override
+            public byte[] array() {
+                return bytes;
+            }
+
+            @Override
+            public int offset() {
+                return offset;
+            }
+
+            @Override
+            public Buffer offset(int offset) {
+                this.offset = offset;
+                return this;
+            }
+
+            @Override
+            public int limit() {
+                return limit;
+            }
+
+            @Override
+            public Buffer limit(int limit) {
+                this.limit = limit;
+                return this;
+            }
+
+            @Override
+            public int capacity() {
+                return bytes.length - offset;
+            }
+
+            @Override
+            public void setBytes(int index, byte[] source, int sourceIndex, int length) {
+                System.arraycopy(source, sourceIndex, bytes, offset + index, length);
+            }
+
+            @Override
+            public void setBytes(int index, Buffer source, int sourceIndex, int length) {
+                source.getBytes(sourceIndex, bytes, offset + index, length);
+            }
+
+            @Override
+            public void getBytes(int index, byte[] dest, int destIndex, int length) {
+                System.arraycopy(bytes, offset + index, dest, destIndex, length);
+            }
+
+            @Override
+            public void getBytes(int index, Buffer dest, int destIndex, int length) {
+                dest.setBytes(destIndex, bytes, offset + index, length);
+            }
+
+            @Override
+            public void release() {
+                released++;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+public class TestXZArrayCacheInputStream {
+    @Test
+    public void testRead() throws IOException {
+        byte[] contents = newContents();
+        XZArrayCacheInputStream in = new XZArrayCacheInputStream(
+                new ByteArrayInputStream(xz(contents)), true, ArrayCache.getDummyCache());
+        assertArrayEquals(contents, toByteArray(in));
+        assertEquals(contents.length, in.getBytesRead());
+    }
+
+    @Test
+    public void testConcatenated() throws IOException {
+        byte[] contents = newContents();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(xz(contents));
+        bout.write(xz(contents));
+
+        assertEquals(contents.length * 2, toByteArray(new XZArrayCacheInputStream(
+                new ByteArrayInputStream(bout.toByteArray()), true, ArrayCache.getDummyCache())).length);
+        assertArrayEquals(contents, toByteArray(new XZArrayCacheInputStream(
+                new ByteArrayInputStream(bout.toByteArray()), false, ArrayCache.getDummyCache())));
+    }
+
+    @Test
+    public void testArraysAreReused() throws IOException {
+        byte[] compressed = xz(newContents());
+        CountingArrayCache cache = new CountingArrayCache();
+        for (int i = 0; i < 3; i++) {
+            // Streams are not closed. Arrays are returned at the end of a stream.
+            toByteArray(new XZArrayCacheInputStream(new ByteArrayInputStream(compressed), true, cache));
+        }
+        assertEquals("Verify a dictionary is allocated once.", 1, cache.allocated);
+    }
+
+    /**
+     * Count distinct dictionary arrays returned by the cache.
+     */
+    private static class CountingArrayCache extends BasicArrayCache {
+        private final int dictionarySize = new LZMA2Options().getDictSize();
+        private final Set<byte[]> dictionaries = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        private int allocated = 0;
+
+        @Override
+        public byte[] getByteArray(int size, boolean fillWithZeros) {
+            byte[] array = super.getByteArray(size, fillWithZeros);
+            if (size >= dictionarySize && dictionaries.add(array)) {
+                allocated++;
+            }
+            return array;
+        }
+    }
+
+    private byte[] xz(byte[] contents) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (XZOutputStream out = new XZOutputStream(bout, new LZMA2Options())) {
+            out.write(contents);
+        }
+        return bout.toByteArray();
+    }
+
+    private byte[] newContents() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append(i).append(",foo\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[4096];
+        int len = in.read(buff);
+        while (len != -1) {
+            bout.write(buff, 0, len);
+            len = in.read(buff);
+        }
+        return bout.toByteArray();
+    }
+}
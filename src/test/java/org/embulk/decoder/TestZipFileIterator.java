@@ -0,0 +1,162 @@
+package org.embulk.decoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.Test;
+
+public class TestZipFileIterator {
+
+    @Test
+    public void testIterateEntries() throws Exception {
+        SpillFile spill = spill(getResourceInputStream("samples.zip"));
+        ZipFileIterator it = new ZipFileIterator(new ZipFile(spill.getFile()), spill, EntryNameMatcher.of(""));
+
+        assertTrue("Verify there is 1st entry.", it.hasNext());
+        assertEquals("Verify 1st entry.", "1,foo", toString(it.next()).trim());
+        assertTrue("Verify there is 2nd entry.", it.hasNext());
+        assertEquals("Verify 2nd entry.", "2,bar", toString(it.next()).trim());
+        assertFalse("Verify there is no entry.", it.hasNext());
+        assertNull("Verify next() returns null at the end.", it.next());
+        assertFalse("Verify a spill file is deleted at the end.", Files.exists(spill.getPath()));
+    }
+
+    @Test
+    public void testMatchNameAndDirectory() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(bout)) {
+            out.putArchiveEntry(new ZipArchiveEntry("dir/"));
+            out.closeArchiveEntry();
+            for (int i = 0; i < 100; i++) {
+                ZipArchiveEntry entry = new ZipArchiveEntry("dir/file_" + i + (i % 10 == 0 ? ".csv" : ".txt"));
+                out.putArchiveEntry(entry);
+                byte[] bytes = ("contents" + i).getBytes();
+                out.write(bytes, 0, bytes.length);
+                out.closeArchiveEntry();
+            }
+        }
+
+        SpillFile spill = spill(new ByteArrayInputStream(bout.toByteArray()));
+        ZipFileIterator it = new ZipFileIterator(new ZipFile(spill.getFile()), spill,
+                EntryNameMatcher.of(".*\\.csv"));
+        for (int i = 0; i < 100; i += 10) {
+            assertTrue("Verify there is an entry.", it.hasNext());
+            assertEquals("Verify a matched entry.", "contents" + i, toString(it.next()));
+        }
+        assertFalse("Verify there is no entry.", it.hasNext());
+        assertEquals("Verify matched entries.", 10, it.getStats().getMatchedEntries());
+        assertEquals("Verify skipped entries.", 90, it.getStats().getSkippedEntries());
+        assertEquals("Verify decoded bytes.", 9 + 9 * 10, it.getStats().getDecodedBytes());
+    }
+
+    @Test
+    public void testStoredEntryWithDataDescriptor() throws Exception {
+        byte[] zip = newStoredZipWithDataDescriptor("stored.csv", "1,foo\n2,bar\n".getBytes());
+
+        // ZipArchiveInputStream doesn't support this entry by default.
+        try (ZipArchiveInputStream ain = new ZipArchiveInputStream(new ByteArrayInputStream(zip))) {
+            ain.getNextEntry();
+            ain.read(new byte[16]);
+            assertTrue("ZipArchiveInputStream should fail to read a STORED entry with a data descriptor.", false);
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        SpillFile spill = spill(new ByteArrayInputStream(zip));
+        ZipFileIterator it = new ZipFileIterator(new ZipFile(spill.getFile()), spill, EntryNameMatcher.of(""));
+        assertTrue("Verify there is an entry.", it.hasNext());
+        assertEquals("Verify the contents.", "1,foo\n2,bar\n", toString(it.next()));
+        assertFalse("Verify there is no entry.", it.hasNext());
+    }
+
+    @Test
+    public void testCloseDeletesSpillFile() throws Exception {
+        SpillFile spill = spill(getResourceInputStream("samples.zip"));
+        ZipFileIterator it = new ZipFileIterator(new ZipFile(spill.getFile()), spill, EntryNameMatcher.of(""));
+        assertTrue("Verify there is 1st entry.", it.hasNext());
+        it.next();
+        it.close();
+
+        assertFalse("Verify a spill file is deleted.", Files.exists(spill.getPath()));
+        assertFalse("Verify there is no entry after close().", it.hasNext());
+    }
+
+    private SpillFile spill(InputStream in) throws IOException {
+        return SpillFile.spill(in, "", ".zip");
+    }
+
+    /**
+     * Create a zip file which has a STORED entry with a data descriptor.
+     * Some streaming zip writers create this kind of entries.
+     */
+    private byte[] newStoredZipWithDataDescriptor(String name, byte[] data) {
+        byte[] nameBytes = name.getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer buf = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInt(0x04034b50).putShort((short) 20).putShort((short) 0x0008).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0x21)
+                .putInt(0).putInt(0).putInt(0)
+                .putShort((short) nameBytes.length).putShort((short) 0)
+                .put(nameBytes).put(data);
+        buf.putInt(0x08074b50).putInt((int) crc.getValue()).putInt(data.length).putInt(data.length);
+
+        int centralOffset = buf.position();
+        buf.putInt(0x02014b50).putShort((short) 20).putShort((short) 20).putShort((short) 0x0008)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0x21)
+                .putInt((int) crc.getValue()).putInt(data.length).putInt(data.length)
+                .putShort((short) nameBytes.length).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0).putInt(0)
+                .put(nameBytes);
+        int centralSize = buf.position() - centralOffset;
+
+        buf.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 1).putShort((short) 1)
+                .putInt(centralSize).putInt(centralOffset).putShort((short) 0);
+
+        byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private String toString(InputStream in) throws IOException {
+        return new String(toByteArray(in));
+    }
+
+    private byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buff = new byte[1024];
+        int len = in.read(buff);
+        while (len != -1) {
+            bout.write(buff, 0, len);
+            len = in.read(buff);
+        }
+        return bout.toByteArray();
+    }
+
+    private InputStream getResourceInputStream(String resource) throws IOException {
+        InputStream in = getClass().getResourceAsStream(resource);
+        try {
+            return new ByteArrayInputStream(toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+}